@@ -3,24 +3,65 @@ package lee.kyuhae.john.compphoto;
 import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.joran.JoranConfigurator;
 import lee.kyuhae.john.compphoto.algorithm.ImageProcessor;
+import lee.kyuhae.john.compphoto.algorithm.TournamentCompositor;
+import lee.kyuhae.john.compphoto.algorithm.histogram.MaxFlowBenchmark;
+import lee.kyuhae.john.compphoto.algorithm.histogram.SolverOptions;
+import lee.kyuhae.john.compphoto.algorithm.histogram.StorageBackend;
+import lee.kyuhae.john.compphoto.algorithm.histogram.StreamingStackBuilder;
+import lee.kyuhae.john.compphoto.distributed.TileWorker;
+import lee.kyuhae.john.compphoto.distributed.TiledSolveOptions;
+import lee.kyuhae.john.compphoto.pipeline.PipelineExecutor;
+import lee.kyuhae.john.compphoto.pipeline.PipelineOptions;
+import lee.kyuhae.john.compphoto.region.RegionCompositor;
+import lee.kyuhae.john.compphoto.server.CompositingServer;
 import lombok.extern.slf4j.Slf4j;
 import nu.pattern.OpenCV;
 import org.apache.commons.io.FileUtils;
 import org.opencv.core.Mat;
+import org.opencv.core.Rect;
 import org.opencv.highgui.Highgui;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
+ * Usage:
+ * - No arguments: composites the images in the test image folder.
+ * - batch OUTPUT_DIR INPUT_DIR...: composites each input directory through PipelineExecutor,
+ *   writing the results into OUTPUT_DIR/(name of the input directory).
+ * - serve [PORT] [SOLVE_PARALLELISM]: runs CompositingServer until the process is stopped.
+ * - region OUTPUT.ppm X Y WIDTH HEIGHT INPUT_DIR [MARGIN]: cleans only the region of the images in INPUT_DIR
+ *   through RegionCompositor, and writes the first image with the cleaned region.
+ * - tiled OUTPUT_DIR INPUT_DIR WORK_DIR [LOCAL_WORKERS] [TILE_SIZE]: composites the images in INPUT_DIR tile by tile
+ *   on worker processes that share WORK_DIR. See TileCoordinator.
+ * - worker WORK_DIR [GRAPH_PARALLELISM]: solves tiles of the job in WORK_DIR until it is done.
+ *   Started by the tiled mode on the same machine, and by hand on the other machines that mount WORK_DIR.
+ * - tournament OUTPUT_DIR INPUT_DIR [GROUP_SIZE] [GROUP_PARALLELISM]: composites a stack of hundreds of images
+ *   in INPUT_DIR group by group. See TournamentCompositor.
+ * - maxflow-bench INPUT_DIR: solves the images in INPUT_DIR and times every max-flow engine on its expansion graphs.
+ *   Exits with 1 when the engines cut a graph differently. See MaxFlowBenchmark.
+ *
  * Created by john.lee on 7/23/16.
  */
 @Slf4j
 public class Runner {
     private static final String TEST_IMAGE_FOLDER = "attpark";
     private static final String LOGBACK_APPENDER_PATH = "log/logback.xml";
+    private static final String BATCH_MODE = "batch";
+    private static final String SERVE_MODE = "serve";
+    private static final String REGION_MODE = "region";
+    private static final String TILED_MODE = "tiled";
+    private static final String WORKER_MODE = "worker";
+    private static final String TOURNAMENT_MODE = "tournament";
+    private static final String MAXFLOW_BENCH_MODE = "maxflow-bench";
+    private static final int SERVE_PORT_DEFAULT = 8080;
+    private static final int SERVE_QUEUE_CAPACITY = 16;
 
     static {
         OpenCV.loadLibrary();
@@ -42,28 +83,69 @@ public class Runner {
             e.printStackTrace();
         }
 
+        if (args.length > 0 && BATCH_MODE.equals(args[0])) {
+            runBatch(args);
+            return;
+        }
+
+        if (args.length > 0 && SERVE_MODE.equals(args[0])) {
+            runServer(args);
+            return;
+        }
+
+        if (args.length > 0 && REGION_MODE.equals(args[0])) {
+            runRegion(args);
+            return;
+        }
+
+        if (args.length > 0 && TILED_MODE.equals(args[0])) {
+            runTiled(args);
+            return;
+        }
+
+        if (args.length > 0 && WORKER_MODE.equals(args[0])) {
+            runWorker(args);
+            return;
+        }
+
+        if (args.length > 0 && TOURNAMENT_MODE.equals(args[0])) {
+            runTournament(args);
+            return;
+        }
+
+        if (args.length > 0 && MAXFLOW_BENCH_MODE.equals(args[0])) {
+            runMaxFlowBench(args);
+            return;
+        }
+
         // Read all .jpg files from the resource folder
         File testImageFolder = new File(TEST_IMAGE_FOLDER);
         File[] imageFiles = testImageFolder.listFiles();
 
         assert imageFiles != null;
 
-        ArrayList<Mat> imageList = new ArrayList<>();
-
+        ArrayList<File> jpgFiles = new ArrayList<>();
         for (File imageFile : imageFiles) {
-            if (imageFile.isFile()) {
-                String fileName = imageFile.getName();
-                if (fileName.endsWith(".jpg")) {
-                    log.info("Found {}. Reading it into a Mat.", imageFile.getName());
-                    Mat image = Highgui.imread(imageFile.getPath());
-                    imageList.add(image);
-                }
+            if (imageFile.isFile() && imageFile.getName().endsWith(".jpg")) {
+                jpgFiles.add(imageFile);
             }
         }
 
-        log.info("Successfully loaded {} images", imageList.size());
+        // Each image goes into the stack and the histogram as soon as it is decoded, and is released
+        // before the next one, so that the images are never all held as Mats. The stack is mapped from
+        // temporary files, so that it is not held on the heap either. See StreamingStackBuilder.
+        SolverOptions options = new SolverOptions().setStorageBackend(StorageBackend.MAPPED);
+        StreamingStackBuilder stackBuilder = new StreamingStackBuilder(jpgFiles.size(), options);
+        for (File imageFile : jpgFiles) {
+            log.info("Found {}. Adding it to the stack.", imageFile.getName());
+            Mat image = Highgui.imread(imageFile.getPath());
+            stackBuilder.add(image);
+            image.release();
+        }
 
-        ImageProcessor imageProcessor = new ImageProcessor(imageList.toArray(new Mat[imageList.size()]));
+        log.info("Successfully loaded {} images", jpgFiles.size());
+
+        ImageProcessor imageProcessor = new ImageProcessor(stackBuilder.build(), options);
 
         log.info("Start imageProcessor computing.");
         imageProcessor.compute();
@@ -72,4 +154,217 @@ public class Runner {
         Highgui.imwrite("composite.jpg", imageProcessor.getCompositeImage());
         Highgui.imwrite("label.jpg", imageProcessor.getLabelImage());
     }
+
+    private static void runBatch(String[] args) {
+        if (args.length < 3) {
+            log.error("Usage: {} OUTPUT_DIR INPUT_DIR...", BATCH_MODE);
+            return;
+        }
+
+        File outputRoot = new File(args[1]);
+        int numProcessors = Runtime.getRuntime().availableProcessors();
+        PipelineOptions options = new PipelineOptions().setLoadParallelism(2).setEncodeParallelism(2);
+        options.getSolverOptions().setGraphBuildParallelism(numProcessors);
+
+        List<CompletableFuture<PipelineExecutor.Result>> futures = new ArrayList<>();
+        try (PipelineExecutor executor = new PipelineExecutor(options)) {
+            for (int i = 2; i < args.length; i++) {
+                File inputDir = new File(args[i]);
+                futures.add(executor.submit(inputDir, new File(outputRoot, inputDir.getName())));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        for (CompletableFuture<PipelineExecutor.Result> future : futures) {
+            try {
+                PipelineExecutor.Result result = future.join();
+                log.info("Composited {} with energy {} into {}.", result.getInputDir(), result.getEnergy(),
+                        result.getCompositeFile());
+            } catch (Exception e) {
+                log.error("Batch job failed.", e);
+            }
+        }
+    }
+
+    private static void runServer(String[] args) {
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : SERVE_PORT_DEFAULT;
+        int solveParallelism = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+
+        // Processors are shared among the concurrent solves.
+        int numProcessors = Runtime.getRuntime().availableProcessors();
+        SolverOptions options = new SolverOptions()
+                .setGraphBuildParallelism(Math.max(1, numProcessors / solveParallelism));
+
+        try {
+            final CompositingServer server = new CompositingServer(port, solveParallelism, SERVE_QUEUE_CAPACITY,
+                    options);
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    server.stop();
+                }
+            });
+            server.start();
+        } catch (IOException e) {
+            log.error("Failed to start the server on port " + port + ".", e);
+        }
+    }
+
+    private static void runRegion(String[] args) {
+        if (args.length < 7) {
+            log.error("Usage: {} OUTPUT.ppm X Y WIDTH HEIGHT INPUT_DIR [MARGIN]", REGION_MODE);
+            return;
+        }
+
+        Rect region = new Rect(Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+                Integer.parseInt(args[4]), Integer.parseInt(args[5]));
+        int margin = args.length > 7 ? Integer.parseInt(args[7]) : RegionCompositor.MARGIN_DEFAULT;
+
+        File[] imageFiles = listImageFiles(new File(args[6]));
+        if (imageFiles == null) {
+            return;
+        }
+
+        try {
+            RegionCompositor compositor = new RegionCompositor(imageFiles, new SolverOptions());
+            compositor.composite(region, margin, RegionCompositor.STRIP_HEIGHT_DEFAULT, new File(args[1]));
+            log.info("Cleaned region {} with energy {} into {}.", region, compositor.getEnergy(), args[1]);
+        } catch (IOException e) {
+            log.error("Failed to clean the region.", e);
+        }
+    }
+
+    private static void runTiled(String[] args) {
+        if (args.length < 4) {
+            log.error("Usage: {} OUTPUT_DIR INPUT_DIR WORK_DIR [LOCAL_WORKERS] [TILE_SIZE]", TILED_MODE);
+            return;
+        }
+
+        TiledSolveOptions tiledSolveOptions = new TiledSolveOptions().setWorkDir(new File(args[3]));
+        if (args.length > 4) {
+            tiledSolveOptions.setLocalWorkers(Integer.parseInt(args[4]));
+        }
+        if (args.length > 5) {
+            tiledSolveOptions.setTileSize(Integer.parseInt(args[5]));
+        }
+
+        try {
+            File outputDir = new File(args[1]);
+            if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+                log.error("Failed to create {}.", outputDir);
+                return;
+            }
+
+            ImageProcessor imageProcessor = new ImageProcessor(PipelineExecutor.loadImages(new File(args[2])),
+                    new SolverOptions());
+            imageProcessor.computeTiled(tiledSolveOptions);
+            Highgui.imwrite(new File(outputDir, "composite.jpg").getPath(), imageProcessor.getCompositeImage());
+            Highgui.imwrite(new File(outputDir, "label.jpg").getPath(), imageProcessor.getLabelImage());
+            log.info("Composited {} tile by tile with energy {} into {}.", args[2], imageProcessor.getEnergy(),
+                    outputDir);
+        } catch (IOException e) {
+            log.error("Failed to composite tile by tile.", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void runWorker(String[] args) {
+        if (args.length < 2) {
+            log.error("Usage: {} WORK_DIR [GRAPH_PARALLELISM]", WORKER_MODE);
+            return;
+        }
+
+        int graphBuildParallelism = args.length > 2 ? Integer.parseInt(args[2])
+                : Runtime.getRuntime().availableProcessors();
+        try {
+            new TileWorker(new File(args[1]), graphBuildParallelism).run();
+        } catch (IOException e) {
+            log.error("Worker failed.", e);
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void runTournament(String[] args) {
+        if (args.length < 3) {
+            log.error("Usage: {} OUTPUT_DIR INPUT_DIR [GROUP_SIZE] [GROUP_PARALLELISM]", TOURNAMENT_MODE);
+            return;
+        }
+
+        File[] imageFiles = listImageFiles(new File(args[2]));
+        if (imageFiles == null) {
+            return;
+        }
+        int groupSize = args.length > 3 ? Integer.parseInt(args[3]) : TournamentCompositor.GROUP_SIZE_DEFAULT;
+        int groupParallelism = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+
+        // Processors are shared among the concurrent groups.
+        int numProcessors = Runtime.getRuntime().availableProcessors();
+        SolverOptions options = new SolverOptions()
+                .setGraphBuildParallelism(Math.max(1, numProcessors / groupParallelism));
+
+        File outputDir = new File(args[1]);
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            log.error("Failed to create {}.", outputDir);
+            return;
+        }
+
+        try {
+            TournamentCompositor compositor = new TournamentCompositor(groupSize, groupParallelism, options);
+            compositor.composite(imageFiles);
+            Highgui.imwrite(new File(outputDir, "composite.jpg").getPath(), compositor.getCompositeImage());
+            Highgui.imwrite(new File(outputDir, "label.jpg").getPath(), compositor.getLabelImage());
+            log.info("Composited {} images of {} with energy {} into {}.", imageFiles.length, args[2],
+                    compositor.getEnergy(), outputDir);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void runMaxFlowBench(String[] args) {
+        if (args.length < 2) {
+            log.error("Usage: {} INPUT_DIR", MAXFLOW_BENCH_MODE);
+            return;
+        }
+
+        File[] imageFiles = listImageFiles(new File(args[1]));
+        if (imageFiles == null) {
+            return;
+        }
+
+        Mat[] images = new Mat[imageFiles.length];
+        for (int i = 0; i < imageFiles.length; i++) {
+            images[i] = Highgui.imread(imageFiles[i].getPath());
+        }
+
+        MaxFlowBenchmark.Report report = new MaxFlowBenchmark(images, new SolverOptions()).run();
+        if (report.getNumMismatches() > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Sorted .jpg files in the directory, so that labels point to the same images on every run.
+     * Returns null when it is not a directory.
+     */
+    private static File[] listImageFiles(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            log.error("{} is not a directory.", dir);
+            return null;
+        }
+
+        Arrays.sort(files);
+        List<File> imageFiles = new ArrayList<>();
+        for (File file : files) {
+            if (file.isFile() && file.getName().endsWith(".jpg")) {
+                imageFiles.add(file);
+            }
+        }
+        return imageFiles.toArray(new File[imageFiles.size()]);
+    }
 }
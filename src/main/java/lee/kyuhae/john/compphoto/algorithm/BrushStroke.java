@@ -0,0 +1,42 @@
+package lee.kyuhae.john.compphoto.algorithm;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A stroke painted by the user on the composite.
+ * - USE: pixels under the stroke must come from the image of the label.
+ * - NEVER: pixels under the stroke must not come from the image of the label.
+ *
+ * Every point of the stroke covers a disk of the given radius.
+ */
+@Getter
+public class BrushStroke {
+    public enum Type {
+        USE,
+        NEVER
+    }
+
+    private final short label;
+    private final Type type;
+    private final int radius;
+    private final List<Coordinate> points = new ArrayList<>();
+
+    public BrushStroke(short label, Type type, int radius) {
+        if (label < 0 || radius < 0) {
+            throw new IllegalArgumentException("Received label " + label + " and radius " + radius
+                    + ". Both should not be negative.");
+        }
+
+        this.label = label;
+        this.type = type;
+        this.radius = radius;
+    }
+
+    public BrushStroke addPoint(int col, int row) {
+        points.add(new Coordinate(col, row));
+        return this;
+    }
+}
@@ -0,0 +1,220 @@
+package lee.kyuhae.john.compphoto.algorithm;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * FrameDeduplicator
+ *
+ * Reduces a stack of frames, e.g. from burst shooting, to its distinct frames before solving,
+ * so that expansions and memory scale with the number of distinct frames.
+ *
+ * Each frame is fingerprinted by downsampling it to FINGERPRINT_WIDTH x FINGERPRINT_HEIGHT.
+ * Frames are clustered in order: a frame joins the first cluster whose first frame is within the threshold,
+ * and starts a new cluster otherwise. Distance is the largest difference of a fingerprint pixel (0 - 255),
+ * since frames of a stack mostly differ in small moving objects that a mean would average out.
+ * Each cluster is replaced with its first frame (REPRESENTATIVE) or with the per-pixel median of its frames (MEDIAN).
+ *
+ * Frames are given one at a time with add(), e.g. as they are decoded, and belong to the deduplicator from then on.
+ * With REPRESENTATIVE, a duplicate is released as soon as it is added, so that only the distinct frames are held.
+ * MEDIAN needs every frame of a cluster, so frames are held until reduce().
+ *
+ * A label of the reduced stack is a cluster index. Use getFrameIndices to find out which frames it stands for.
+ */
+@Slf4j
+public class FrameDeduplicator {
+    public enum Mode {
+        REPRESENTATIVE,
+        MEDIAN
+    }
+
+    public static final double THRESHOLD_DEFAULT = 16.0d;
+    private static final int FINGERPRINT_WIDTH = 64;
+    private static final int FINGERPRINT_HEIGHT = 48;
+    private static final int MIN_REQUIRED_NUM_IMAGES = 2;
+    private static final int NUM_CHANNEL = 3;
+
+    private final double threshold;
+    private final Mode mode;
+
+    /**
+     * Frame indices of each cluster, and the frames that are held for each cluster.
+     * With REPRESENTATIVE only the first frame of a cluster is held, and the second frame while there is
+     * a single cluster, in case every frame turns out to be the same.
+     */
+    private final List<List<Integer>> clusters = new ArrayList<>();
+    private final List<List<Mat>> clusterFrames = new ArrayList<>();
+    private final List<byte[]> leaderFingerprints = new ArrayList<>();
+    @Getter private int numFrames = 0;
+
+    public FrameDeduplicator() {
+        this(THRESHOLD_DEFAULT, Mode.REPRESENTATIVE);
+    }
+
+    public FrameDeduplicator(double threshold, Mode mode) {
+        this.threshold = threshold;
+        this.mode = mode;
+    }
+
+    /**
+     * Adds the next frame, and returns the index of its cluster. The frame belongs to the deduplicator from here on.
+     */
+    public int add(Mat frame) {
+        byte[] fingerprint = fingerprint(frame);
+        int cluster = 0;
+        while (cluster < clusters.size() && distance(leaderFingerprints.get(cluster), fingerprint) > threshold) {
+            cluster++;
+        }
+
+        if (cluster == clusters.size()) {
+            clusters.add(new ArrayList<Integer>());
+            clusterFrames.add(new ArrayList<Mat>());
+            leaderFingerprints.add(fingerprint);
+            if (mode == Mode.REPRESENTATIVE && cluster == 1) {
+                // A second cluster exists, so the spare second frame of the first one is not needed.
+                releaseSpares(clusterFrames.get(0));
+            }
+        }
+        clusters.get(cluster).add(numFrames);
+
+        List<Mat> frames = clusterFrames.get(cluster);
+        boolean spare = numFrames == 1 && clusters.size() == 1;
+        if (mode == Mode.MEDIAN || frames.isEmpty() || spare) {
+            frames.add(frame);
+        } else {
+            frame.release();
+        }
+        numFrames++;
+        return cluster;
+    }
+
+    /**
+     * Returns one image per cluster of the added frames. At least MIN_REQUIRED_NUM_IMAGES images are returned
+     * as long as that many frames were added, since the minimizer needs them.
+     * Frames that are not returned are released. The returned images belong to the caller.
+     */
+    public Mat[] reduce() {
+        if (clusters.size() < MIN_REQUIRED_NUM_IMAGES && numFrames >= MIN_REQUIRED_NUM_IMAGES) {
+            // Every frame is the same. Second frame is split off, so that there is something to solve.
+            log.info("All {} frames are within the threshold {}. Keeping 2 of them.", numFrames, threshold);
+            clusters.get(0).remove(Integer.valueOf(1));
+            clusters.add(new ArrayList<>(Arrays.asList(1)));
+            clusterFrames.add(new ArrayList<>(Arrays.asList(clusterFrames.get(0).remove(1))));
+        }
+
+        Mat[] reduced = new Mat[clusters.size()];
+        for (int cluster = 0; cluster < clusters.size(); cluster++) {
+            List<Mat> frames = clusterFrames.get(cluster);
+            if (mode == Mode.MEDIAN && frames.size() > 2) {
+                reduced[cluster] = median(frames);
+                releaseFrames(frames, 0);
+            } else {
+                reduced[cluster] = frames.get(0);
+                releaseFrames(frames, 1);
+            }
+            frames.clear();
+        }
+
+        log.info("Reduced {} frames to {} distinct frames.", numFrames, reduced.length);
+        return reduced;
+    }
+
+    /**
+     * Same as add() of each frame followed by reduce(). The frames belong to the deduplicator.
+     */
+    public Mat[] reduce(Mat[] frames) {
+        for (Mat frame : frames) {
+            add(frame);
+        }
+        return reduce();
+    }
+
+    /**
+     * Releases the frames that are held, e.g. when the stack fails to load halfway.
+     */
+    public void release() {
+        for (List<Mat> frames : clusterFrames) {
+            releaseFrames(frames, 0);
+            frames.clear();
+        }
+    }
+
+    /**
+     * Frames that the label of the reduced stack stands for, in the order of the added frames.
+     */
+    public List<Integer> getFrameIndices(short label) {
+        return clusters.get(label);
+    }
+
+    public int getNumClusters() {
+        return clusters.size();
+    }
+
+    private static void releaseSpares(List<Mat> frames) {
+        releaseFrames(frames, 1);
+        frames.subList(1, frames.size()).clear();
+    }
+
+    private static void releaseFrames(List<Mat> frames, int from) {
+        for (int i = from; i < frames.size(); i++) {
+            frames.get(i).release();
+        }
+    }
+
+    private static byte[] fingerprint(Mat frame) {
+        Mat small = new Mat();
+        Imgproc.resize(frame, small, new Size(FINGERPRINT_WIDTH, FINGERPRINT_HEIGHT), 0, 0, Imgproc.INTER_AREA);
+        byte[] values = new byte[FINGERPRINT_WIDTH * FINGERPRINT_HEIGHT * NUM_CHANNEL];
+        small.get(0, 0, values);
+        small.release();
+        return values;
+    }
+
+    /**
+     * Largest difference of a pixel, averaged over the channels.
+     */
+    private static double distance(byte[] f1, byte[] f2) {
+        int max = 0;
+        for (int i = 0; i < f1.length; i += NUM_CHANNEL) {
+            int difference = 0;
+            for (int c = 0; c < NUM_CHANNEL; c++) {
+                difference += Math.abs((f1[i + c] & 0xFF) - (f2[i + c] & 0xFF));
+            }
+            max = Math.max(max, difference);
+        }
+        return max / (double) NUM_CHANNEL;
+    }
+
+    private static Mat median(List<Mat> frames) {
+        Mat first = frames.get(0);
+        int length = first.width() * first.height() * NUM_CHANNEL;
+
+        byte[][] values = new byte[frames.size()][length];
+        for (int m = 0; m < frames.size(); m++) {
+            Mat frame = frames.get(m);
+            (frame.isContinuous() ? frame : frame.clone()).get(0, 0, values[m]);
+        }
+
+        byte[] medianValues = new byte[length];
+        int[] sample = new int[frames.size()];
+        for (int i = 0; i < length; i++) {
+            for (int m = 0; m < sample.length; m++) {
+                sample[m] = values[m][i] & 0xFF;
+            }
+            Arrays.sort(sample);
+            medianValues[i] = (byte) ((sample[(sample.length - 1) / 2] + sample[sample.length / 2]) / 2);
+        }
+
+        Mat median = new Mat(first.height(), first.width(), CvType.CV_8UC3);
+        median.put(0, 0, medianValues);
+        return median;
+    }
+}
@@ -1,12 +1,23 @@
 package lee.kyuhae.john.compphoto.algorithm;
 
 import lee.kyuhae.john.compphoto.algorithm.histogram.MLOEnergyMinimizer;
+import lee.kyuhae.john.compphoto.algorithm.histogram.PreparedStack;
+import lee.kyuhae.john.compphoto.algorithm.histogram.SolverOptions;
+import lee.kyuhae.john.compphoto.distributed.TileCoordinator;
+import lee.kyuhae.john.compphoto.distributed.TiledSolveOptions;
 
 import lombok.extern.slf4j.Slf4j;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import lombok.Getter;
 
@@ -38,12 +49,45 @@ import lombok.Getter;
 public class ImageProcessor {
     private static final String TAG = "ImageProcessor";
     private static final double PENALTY_VALUE_CONVERSION_COEFFICIENT = 100.0d;
+    private static final int NUM_CHANNEL = 3;
 
+    /**
+     * A dirty span of a row ends after this many clean pixels in a row. Shorter clean gaps are rendered again
+     * along with the span, which is cheaper than another bulk copy.
+     */
+    private static final int SPAN_GAP = 16;
 
     private final int width, height;
-    private final short[] labels;
-    private final MLOEnergyMinimizer energyMinimizer;
+
+    /**
+     * Labels of the pixels, shared with the energy minimizer. In the StorageBackend of the options.
+     */
+    private final ShortBuffer labels;
+
+    /**
+     * Labels of the pixels as last rendered into compositeImage and labelImage, -1 until the composite is created.
+     * Only the pixels whose labels differ from these are rendered again. In the StorageBackend of the options.
+     */
+    private final ShortBuffer renderedLabels;
+
+    /**
+     * Null when solving on top of a PreparedStack. Rows are read through imageRows either way.
+     */
     private final Mat[] images;
+    private final ImageRows imageRows;
+    private final SolverOptions options;
+
+    /**
+     * Created on first use, so that a result cache hit does not pay for the histogram.
+     */
+    private MLOEnergyMinimizer energyMinimizer = null;
+
+    /**
+     * Previews of compute() and resume(). None when null.
+     */
+    private PreviewListener previewListener = null;
+    private long previewIntervalMillis = PreviewRenderer.INTERVAL_MILLIS_DEFAULT;
+    private int previewSize = PreviewRenderer.PREVIEW_SIZE_DEFAULT;
 
     /**
      * All products from this class.
@@ -52,53 +96,300 @@ public class ImageProcessor {
     @Getter private Mat labelImage = null;
     @Getter private Mat dataPenaltyImage = null;
     @Getter private Mat interactionPenaltyImage = null;
+    @Getter private double energy = Double.NaN;
 
     public ImageProcessor(Mat[] images) {
-        this.width = images[0].width();
-        this.height = images[0].height();
+        this(images, new SolverOptions());
+    }
+
+    public ImageProcessor(Mat[] images, SolverOptions options) {
+        this(images, ImageRows.of(images), options);
+    }
+
+    /**
+     * Solves on top of a PreparedStack, e.g. from StreamingStackBuilder so that the images are never all held
+     * as Mats. The result cache, computeTiled() and replaceImage() need the Mats, so they are not available.
+     */
+    public ImageProcessor(PreparedStack prepared, SolverOptions options) {
+        this(null, ImageRows.of(prepared), options);
+        this.energyMinimizer = new MLOEnergyMinimizer(prepared, labels, options);
+    }
+
+    private ImageProcessor(Mat[] images, ImageRows imageRows, SolverOptions options) {
+        this.width = imageRows.getWidth();
+        this.height = imageRows.getHeight();
         this.images = images;
+        this.imageRows = imageRows;
+        this.options = options;
+
+        this.labels = options.getStorageBackend().allocateShorts(width * height, options.getStorageDir());
+        this.renderedLabels = options.getStorageBackend().allocateShorts(width * height, options.getStorageDir());
+        for (int index = 0; index < width * height; index++) {
+            renderedLabels.put(index, (short) -1);
+        }
+
+        RGBVector rgbVector = LabelColor.get(0);
+        this.labelImage = new Mat(height, width, CvType.CV_8UC3,
+                new Scalar(rgbVector.getR(), rgbVector.getG(), rgbVector.getB()));
+    }
 
-        // Info: CV_8U may not be the right type... We'll see.
-        // CV_8U is for unsigned int 0-255.
-        this.labelImage = Mat.ones(height, width, CvType.CV_32S);
+    /**
+     * Builds the histogram and the data costs ahead of compute(), e.g. on another thread
+     * while the previous stack is being solved. compute() builds them on first use otherwise.
+     * Not needed when the result is going to be found in the result cache.
+     */
+    public void prepare() {
+        getEnergyMinimizer();
+    }
 
-        this.labels = new short[width * height];
-        Arrays.fill(labels, (short) 0);
-        colorLabelImage();
+    public void setPreviewListener(PreviewListener previewListener) {
+        setPreviewListener(previewListener, PreviewRenderer.INTERVAL_MILLIS_DEFAULT,
+                PreviewRenderer.PREVIEW_SIZE_DEFAULT);
+    }
 
-        this.energyMinimizer = new MLOEnergyMinimizer(images, labels);
+    /**
+     * While compute() or resume() is running, the listener receives a preview of the composite, downscaled so that
+     * its longer side is at most previewSize, at the end of every sweep and every intervalMillis within a sweep.
+     * The solver does not wait for the previews. A result cache hit has no previews.
+     */
+    public void setPreviewListener(PreviewListener previewListener, long intervalMillis, int previewSize) {
+        if (previewSize < 1) {
+            throw new IllegalArgumentException("Preview size should be at least 1. Given " + previewSize + ".");
+        }
+        this.previewListener = previewListener;
+        this.previewIntervalMillis = intervalMillis;
+        this.previewSize = previewSize;
     }
 
     public void compute() {
+        ResultCache resultCache = null;
+        String cacheKey = null;
+        if (options.getResultCacheDir() != null && images != null) {
+            resultCache = new ResultCache(options.getResultCacheDir(), options.getResultCacheBudgetBytes());
+            String signature = MLOEnergyMinimizer.getParameterSignature(options);
+            if (energyMinimizer != null && !energyMinimizer.getConstraintSignature().isEmpty()) {
+                // Strokes change the result, so results with constraints are kept apart from the ones without.
+                signature += ";constraints=" + energyMinimizer.getConstraintSignature();
+            }
+            cacheKey = ResultCache.computeKey(images, signature);
+
+            ResultCache.Entry entry = resultCache.get(cacheKey, width * height);
+            if (entry != null) {
+                // Histogram and minimization are skipped entirely.
+                putLabels(entry.getLabels());
+                this.energy = entry.getEnergy();
+                createProducts();
+                return;
+            }
+        }
+
         // This alters labels array.
         log.debug("Starting MLE Minimizer computation.");
-        this.energyMinimizer.compute();
+        PreviewRenderer previewRenderer = startPreviews();
+        try {
+            energyMinimizer.compute();
+        } finally {
+            stopPreviews(previewRenderer);
+        }
         log.debug("Completed MLE Minimizer computation.");
+        this.energy = energyMinimizer.getEnergy();
 
-        // Info: This is optional
-        // re-coloring of the label images after minimizer computation has ran.
-        colorLabelImage();
+        if (resultCache != null) {
+            resultCache.put(cacheKey, energy, labels);
+        }
+
+        createProducts();
+    }
+
+    /**
+     * Same as compute(), but continues from the checkpoint written by a previous run.
+     * Checkpoints are written when SolverOptions.checkpointFile is set.
+     * When the checkpoint file does not exist yet, starts from the beginning.
+     */
+    public void resume(File checkpointFile) throws IOException {
+        if (!checkpointFile.isFile()) {
+            log.info("No checkpoint found at {}. Starting from the beginning.", checkpointFile);
+            compute();
+            return;
+        }
+
+        log.debug("Resuming MLE Minimizer computation.");
+        PreviewRenderer previewRenderer = startPreviews();
+        try {
+            energyMinimizer.resume(checkpointFile);
+        } finally {
+            stopPreviews(previewRenderer);
+        }
+        log.debug("Completed MLE Minimizer computation.");
+        this.energy = energyMinimizer.getEnergy();
+
+        createProducts();
+    }
+
+    /**
+     * Same as compute(), but the images are solved by worker processes through TileCoordinator, tile by tile and
+     * then the seams between the tiles. No histogram of the whole image is built in this process.
+     */
+    public void computeTiled(TiledSolveOptions tiledSolveOptions) throws IOException, InterruptedException {
+        if (images == null) {
+            throw new IllegalStateException("Tiled solving needs the images as Mats.");
+        }
+        TileCoordinator coordinator = new TileCoordinator(tiledSolveOptions, options);
+        putLabels(coordinator.solve(images));
+        this.energy = coordinator.getEnergy();
+
+        createProducts();
+    }
+
+    /**
+     * Releases the composite and the other products. Images given to the constructor belong to the caller and
+     * are kept. The products cannot be used afterwards.
+     */
+    public void release() {
+        for (Mat product : new Mat[] {compositeImage, labelImage, dataPenaltyImage, interactionPenaltyImage}) {
+            if (product != null) {
+                product.release();
+            }
+        }
+    }
+
+    /**
+     * Index of the image that the composite takes the pixel from.
+     */
+    public short getLabel(int col, int row) {
+        return labels.get(row * width + col);
+    }
+
+    private void putLabels(short[] values) {
+        ShortBuffer target = labels.duplicate();
+        target.clear();
+        target.put(values);
+    }
+
+    private MLOEnergyMinimizer getEnergyMinimizer() {
+        if (energyMinimizer == null) {
+            this.energyMinimizer = new MLOEnergyMinimizer(images, labels, options);
+        }
+        return energyMinimizer;
+    }
+
+    /**
+     * Creates the energy minimizer, and hooks the preview listener up to it, if any.
+     */
+    private PreviewRenderer startPreviews() {
+        MLOEnergyMinimizer energyMinimizer = getEnergyMinimizer();
+        if (previewListener == null) {
+            return null;
+        }
+        PreviewRenderer previewRenderer = new PreviewRenderer(imageRows, previewListener, previewIntervalMillis,
+                previewSize);
+        energyMinimizer.setProgressListener(previewRenderer);
+        return previewRenderer;
+    }
+
+    private void stopPreviews(PreviewRenderer previewRenderer) {
+        if (previewRenderer != null) {
+            energyMinimizer.setProgressListener(null);
+            previewRenderer.close();
+        }
+    }
 
+    private void createProducts() {
         // Info: This is optional
         // This creates intermediate penalty data visualization.
         // createPenaltyVisualization();
 
-        // Now, build a composite based on updated labels.
-        this.compositeImage = createComposite();
+        // Now, bring the composite and the label image up to date with the labels.
+        renderProducts(new Rect(0, 0, width, height));
     }
 
-    private void colorLabelImage() {
-        int index = 0;
-        for (int row = 0; row < height; row++) {
-            for (int col = 0; col < width; col++, index++) {
-                RGBVector rgbVector = LabelColor.list.get(labels[index]);
-                int[] color = {rgbVector.getR(), rgbVector.getG(), rgbVector.getB()};
-                labelImage.put(row, col, color);
+    /**
+     * Replaces the image at slot with the given image. The next compute() starts from the current labels.
+     * Used by SlidingWindowCompositor to move the window one frame at a time.
+     */
+    public void replaceImage(int slot, Mat image) {
+        getEnergyMinimizer().replaceImage(slot, image);
+
+        // Pixels rendered from the slot show the old image, so they are rendered again with the next products.
+        for (int index = 0; index < width * height; index++) {
+            if (renderedLabels.get(index) == slot) {
+                renderedLabels.put(index, (short) -1);
+            }
+        }
+    }
+
+    /**
+     * Applies the stroke as hard constraints, and solves again only the neighborhood of the stroke
+     * starting from the current labels. Composite and label images are updated within the neighborhood.
+     *
+     * Returns the updated region. Interactive counterpart of compute().
+     */
+    public Rect applyStroke(BrushStroke stroke) {
+        if (stroke.getLabel() >= imageRows.size()) {
+            throw new IllegalArgumentException("Stroke label " + stroke.getLabel() + " should be less than "
+                    + imageRows.size() + ".");
+        }
+
+        List<Coordinate> covered = new ArrayList<>();
+        int minCol = width, minRow = height, maxCol = -1, maxRow = -1;
+        int radius = stroke.getRadius();
+        for (Coordinate center : stroke.getPoints()) {
+            for (int row = Math.max(center.getRow() - radius, 0);
+                 row <= Math.min(center.getRow() + radius, height - 1); row++) {
+                for (int col = Math.max(center.getCol() - radius, 0);
+                     col <= Math.min(center.getCol() + radius, width - 1); col++) {
+                    int dCol = col - center.getCol();
+                    int dRow = row - center.getRow();
+                    if (dCol * dCol + dRow * dRow > radius * radius) {
+                        continue;
+                    }
+
+                    covered.add(new Coordinate(col, row));
+                    minCol = Math.min(minCol, col);
+                    minRow = Math.min(minRow, row);
+                    maxCol = Math.max(maxCol, col);
+                    maxRow = Math.max(maxRow, row);
+                }
+            }
+        }
+
+        // A stroke that would leave a pixel without any label is rejected as a whole, before any of it applies.
+        if (stroke.getType() == BrushStroke.Type.NEVER) {
+            for (Coordinate point : covered) {
+                if (!getEnergyMinimizer().allowsAnotherLabel(point, stroke.getLabel())) {
+                    throw new IllegalArgumentException("Stroke never label " + stroke.getLabel() + " leaves "
+                            + point + " without any label.");
+                }
             }
         }
+        for (Coordinate point : covered) {
+            if (stroke.getType() == BrushStroke.Type.USE) {
+                getEnergyMinimizer().useLabel(point, stroke.getLabel());
+            } else {
+                getEnergyMinimizer().neverLabel(point, stroke.getLabel());
+            }
+        }
+
+        if (maxCol < 0) {
+            log.debug("Stroke does not cover any pixel.");
+            return new Rect(0, 0, 0, 0);
+        }
+
+        int margin = options.getStrokeSolveMargin();
+        int x = Math.max(minCol - margin, 0);
+        int y = Math.max(minRow - margin, 0);
+        Rect region = new Rect(x, y, Math.min(maxCol + margin + 1, width) - x, Math.min(maxRow + margin + 1, height) - y);
+
+        log.debug("Solving region {} for the stroke.", region);
+        getEnergyMinimizer().computeRegion(region);
+
+        renderProducts(region);
+
+        return region;
     }
 
     private void createPenaltyVisualization() {
+        MLOEnergyMinimizer energyMinimizer = getEnergyMinimizer();
         this.dataPenaltyImage = Mat.ones(height, width, CvType.CV_32S);
         this.interactionPenaltyImage = Mat.ones(height, width, CvType.CV_32S);
 
@@ -118,17 +409,91 @@ public class ImageProcessor {
         }
     }
 
-    private Mat createComposite() {
-        Mat composite = Mat.ones(height, width, CvType.CV_32S);
-        for (int row = 0; row < height; row++) {
-            for (int col = 0; col < width; col++) {
-                Coordinate cPoint = new Coordinate(col, row);
-                int imageIdx = labels[cPoint.getOneDimensionalIndex(width)];
-                double[] rgbVals = images[imageIdx].get(row, col);
-                composite.put(row, col, rgbVals);
+    /**
+     * Renders again the pixels within the region whose labels changed since they were last rendered, into both
+     * compositeImage and labelImage. Dirty pixels are found row by row and grouped into spans, and each span is
+     * written with one bulk copy per image, so that the cost follows the area that changed rather than the region.
+     * Creates the composite on first use, which renders the whole image.
+     */
+    private void renderProducts(Rect region) {
+        if (compositeImage == null) {
+            this.compositeImage = new Mat(height, width, CvType.CV_8UC3);
+            region = new Rect(0, 0, width, height);
+        }
+
+        long startMillis = System.currentTimeMillis();
+        int numRendered = 0, numSpans = 0;
+        // Only the rows of the images that appear in the spans of the row are read.
+        byte[][] rows = new byte[imageRows.size()][];
+        boolean[] read = new boolean[imageRows.size()];
+        for (int row = region.y; row < region.y + region.height; row++) {
+            Arrays.fill(read, false);
+            int rowIndex = row * width;
+            int endCol = region.x + region.width;
+            int col = region.x;
+            while (col < endCol) {
+                while (col < endCol && labels.get(rowIndex + col) == renderedLabels.get(rowIndex + col)) {
+                    col++;
+                }
+                if (col == endCol) {
+                    break;
+                }
+
+                int spanStart = col, spanEnd = col + 1;
+                for (col++; col < endCol && col - spanEnd < SPAN_GAP; col++) {
+                    if (labels.get(rowIndex + col) != renderedLabels.get(rowIndex + col)) {
+                        spanEnd = col + 1;
+                    }
+                }
+
+                renderSpan(row, spanStart, spanEnd, rows, read);
+                for (int index = rowIndex + spanStart; index < rowIndex + spanEnd; index++) {
+                    renderedLabels.put(index, labels.get(index));
+                }
+                numRendered += spanEnd - spanStart;
+                numSpans++;
+            }
+        }
+
+        log.debug("Rendered {} pixels in {} spans within {} in {}ms.", numRendered, numSpans, region,
+                System.currentTimeMillis() - startMillis);
+    }
+
+    /**
+     * Renders the pixels of the row from startCol up to endCol, copying a run of the same label at a time.
+     */
+    private void renderSpan(int row, int startCol, int endCol, byte[][] rows, boolean[] read) {
+        byte[] compositeSpan = new byte[(endCol - startCol) * NUM_CHANNEL];
+        byte[] labelSpan = new byte[compositeSpan.length];
+        int rowIndex = row * width;
+        for (int col = startCol; col < endCol; ) {
+            short imageIdx = labels.get(rowIndex + col);
+            int runEnd = col + 1;
+            while (runEnd < endCol && labels.get(rowIndex + runEnd) == imageIdx) {
+                runEnd++;
+            }
+
+            if (!read[imageIdx]) {
+                if (rows[imageIdx] == null) {
+                    rows[imageIdx] = new byte[width * NUM_CHANNEL];
+                }
+                imageRows.readRow(imageIdx, row, rows[imageIdx]);
+                read[imageIdx] = true;
+            }
+            int offset = (col - startCol) * NUM_CHANNEL;
+            int length = (runEnd - col) * NUM_CHANNEL;
+            System.arraycopy(rows[imageIdx], col * NUM_CHANNEL, compositeSpan, offset, length);
+
+            RGBVector rgbVector = LabelColor.get(imageIdx);
+            for (int i = offset; i < offset + length; i += NUM_CHANNEL) {
+                labelSpan[i] = (byte) rgbVector.getR();
+                labelSpan[i + 1] = (byte) rgbVector.getG();
+                labelSpan[i + 2] = (byte) rgbVector.getB();
             }
+            col = runEnd;
         }
 
-        return composite;
+        compositeImage.put(row, startCol, compositeSpan);
+        labelImage.put(row, startCol, labelSpan);
     }
 }
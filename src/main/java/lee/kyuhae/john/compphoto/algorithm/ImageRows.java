@@ -0,0 +1,72 @@
+package lee.kyuhae.john.compphoto.algorithm;
+
+import lee.kyuhae.john.compphoto.algorithm.histogram.PreparedStack;
+
+import org.opencv.core.Mat;
+
+/**
+ * ImageRows
+ *
+ * Rows of the input images, wherever they are kept -- in the Mats, or only in the stack of a PreparedStack
+ * built by StreamingStackBuilder. Composites are rendered from it a row at a time.
+ */
+abstract class ImageRows {
+    abstract int size();
+
+    abstract int getWidth();
+
+    abstract int getHeight();
+
+    /**
+     * Copies the row of the image into out, 3 channels per pixel as in a CV_8UC3 Mat.
+     */
+    abstract void readRow(int image, int row, byte[] out);
+
+    static ImageRows of(final Mat[] images) {
+        return new ImageRows() {
+            @Override
+            int size() {
+                return images.length;
+            }
+
+            @Override
+            int getWidth() {
+                return images[0].width();
+            }
+
+            @Override
+            int getHeight() {
+                return images[0].height();
+            }
+
+            @Override
+            void readRow(int image, int row, byte[] out) {
+                images[image].get(row, 0, out);
+            }
+        };
+    }
+
+    static ImageRows of(final PreparedStack prepared) {
+        return new ImageRows() {
+            @Override
+            int size() {
+                return prepared.size();
+            }
+
+            @Override
+            int getWidth() {
+                return prepared.getWidth();
+            }
+
+            @Override
+            int getHeight() {
+                return prepared.getHeight();
+            }
+
+            @Override
+            void readRow(int image, int row, byte[] out) {
+                prepared.readRow(image, row, out);
+            }
+        };
+    }
+}
@@ -18,6 +18,11 @@ import lombok.Data;
 public class LabelColor {
     public static final ArrayList<RGBVector> list = new ArrayList<>();
 
+    /**
+     * Hues of the colors beyond the list are spread by the golden ratio, so that nearby labels get distant hues.
+     */
+    private static final double GOLDEN_RATIO_CONJUGATE = 0.618033988749895d;
+
     static {
         list.add(new RGBVector(255, 0 ,0));
         list.add(new RGBVector(0, 255, 0));
@@ -41,4 +46,28 @@ public class LabelColor {
         list.add(new RGBVector(128, 64, 128));
         list.add(new RGBVector(128, 128, 64));
     }
+
+    /**
+     * Color of the label. Labels beyond the list get generated colors, so that any number of labels can be marked.
+     */
+    public static RGBVector get(int label) {
+        if (label < list.size()) {
+            return list.get(label);
+        }
+
+        double hue = ((label - list.size()) * GOLDEN_RATIO_CONJUGATE % 1.0d) * 6.0d;
+        // Alternates the brightness as well, since hues of far apart labels come close again.
+        int value = (label - list.size()) % 2 == 0 ? 255 : 176;
+        int sector = (int) hue;
+        int rising = (int) Math.round(value * (hue - sector));
+        int falling = value - rising;
+        switch (sector) {
+            case 0: return new RGBVector(value, rising, 0);
+            case 1: return new RGBVector(falling, value, 0);
+            case 2: return new RGBVector(0, value, rising);
+            case 3: return new RGBVector(0, falling, value);
+            case 4: return new RGBVector(rising, 0, value);
+            default: return new RGBVector(value, 0, falling);
+        }
+    }
 }
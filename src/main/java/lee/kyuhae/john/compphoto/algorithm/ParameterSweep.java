@@ -0,0 +1,133 @@
+package lee.kyuhae.john.compphoto.algorithm;
+
+import lee.kyuhae.john.compphoto.algorithm.histogram.MLOEnergyMinimizer;
+import lee.kyuhae.john.compphoto.algorithm.histogram.PreparedStack;
+import lee.kyuhae.john.compphoto.algorithm.histogram.SolverOptions;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * ParameterSweep
+ *
+ * Solves the same images with several variants of the solver options, e.g. to tune the interaction penalty
+ * for a kind of scene. The stack, the histogram and the data costs do not depend on the variants, so they are
+ * built once into a PreparedStack, and the variants are solved on top of it, parallelism at a time.
+ * Each variant only pays for its own labels and expansions.
+ *
+ * Storage options of the variants are ignored, the ones given to the constructor apply to the shared stack.
+ */
+@Slf4j
+public class ParameterSweep {
+    private static final int NUM_CHANNEL = 3;
+
+    private final Mat[] images;
+    private final PreparedStack prepared;
+    private final int parallelism;
+
+    public ParameterSweep(Mat[] images, SolverOptions options, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism should be at least 1. Given " + parallelism + ".");
+        }
+
+        long startMillis = System.currentTimeMillis();
+        this.images = images;
+        this.prepared = new PreparedStack(images, options);
+        this.parallelism = parallelism;
+        log.info("Prepared the stack of {} images in {}ms.", images.length, System.currentTimeMillis() - startMillis);
+    }
+
+    /**
+     * Solves every variant, and returns the results in the order of the variants.
+     */
+    public List<Result> run(List<SolverOptions> variants) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        List<Future<Result>> futures = new ArrayList<>();
+        try {
+            for (final SolverOptions variant : variants) {
+                futures.add(executor.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() {
+                        return solve(variant);
+                    }
+                }));
+            }
+
+            List<Result> results = new ArrayList<>();
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Failed to solve a variant.", e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Composite of the labels of a result, from the images of this sweep.
+     */
+    public Mat createComposite(Result result) {
+        int width = prepared.getWidth();
+        int height = prepared.getHeight();
+        short[] labels = result.getLabels();
+
+        Mat composite = new Mat(height, width, CvType.CV_8UC3);
+        byte[][] rows = new byte[images.length][width * NUM_CHANNEL];
+        byte[] row = new byte[width * NUM_CHANNEL];
+        for (int r = 0; r < height; r++) {
+            for (int i = 0; i < images.length; i++) {
+                images[i].get(r, 0, rows[i]);
+            }
+            for (int col = 0, index = r * width; col < width; col++, index++) {
+                System.arraycopy(rows[labels[index]], col * NUM_CHANNEL, row, col * NUM_CHANNEL, NUM_CHANNEL);
+            }
+            composite.put(r, 0, row);
+        }
+        return composite;
+    }
+
+    private Result solve(SolverOptions variant) {
+        long startMillis = System.currentTimeMillis();
+        short[] labels = new short[prepared.getWidth() * prepared.getHeight()];
+        MLOEnergyMinimizer minimizer = new MLOEnergyMinimizer(prepared, labels, variant);
+        minimizer.compute();
+
+        long millis = System.currentTimeMillis() - startMillis;
+        log.info("Solved variant {} with energy {} in {}ms.", MLOEnergyMinimizer.getParameterSignature(variant),
+                minimizer.getEnergy(), millis);
+        return new Result(variant, labels, minimizer.getEnergy(), millis);
+    }
+
+    /**
+     * Labels of a variant, in row-major order. Energies of variants with different interaction parameters
+     * are not comparable with each other.
+     */
+    @Getter
+    public static class Result {
+        private final SolverOptions options;
+        private final short[] labels;
+        private final double energy;
+        private final long millis;
+
+        Result(SolverOptions options, short[] labels, double energy, long millis) {
+            this.options = options;
+            this.labels = labels;
+            this.energy = energy;
+            this.millis = millis;
+        }
+    }
+}
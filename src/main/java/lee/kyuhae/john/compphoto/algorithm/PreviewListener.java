@@ -0,0 +1,14 @@
+package lee.kyuhae.john.compphoto.algorithm;
+
+import org.opencv.core.Mat;
+
+/**
+ * Receives previews of the composite while ImageProcessor is solving. See ImageProcessor.setPreviewListener.
+ */
+public interface PreviewListener {
+    /**
+     * preview is a CV_8UC3 composite of the labels after the given sweep, downscaled so that its longer side is
+     * at most the preview size. It belongs to the listener. Called on a preview thread, one preview at a time.
+     */
+    void onPreview(Mat preview, int sweep, double energy);
+}
@@ -0,0 +1,140 @@
+package lee.kyuhae.john.compphoto.algorithm;
+
+import lee.kyuhae.john.compphoto.algorithm.histogram.ProgressListener;
+
+import lombok.extern.slf4j.Slf4j;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * PreviewRenderer
+ *
+ * Turns the progress of a minimizer into previews for a PreviewListener.
+ * A preview is taken at the end of every sweep, and every intervalMillis within a sweep.
+ *
+ * The solver thread only samples the labels of the preview pixels, which is a small fraction of the labels.
+ * The preview is rendered from the sample on a preview thread, so that the solver does not wait for it.
+ * While a preview is being rendered, newer previews within a sweep are skipped instead of queued.
+ * Previews of the end of a sweep are always rendered, so that the last preview shows the final labels.
+ */
+@Slf4j
+class PreviewRenderer implements ProgressListener {
+    static final long INTERVAL_MILLIS_DEFAULT = 1000;
+    static final int PREVIEW_SIZE_DEFAULT = 320;
+    private static final long CLOSE_TIMEOUT_SECONDS = 10;
+    private static final int NUM_CHANNEL = 3;
+
+    private final ImageRows imageRows;
+    private final PreviewListener listener;
+    private final long intervalMillis;
+    private final int width;
+
+    /**
+     * Preview pixel (x, y) is the pixel (x * step, y * step) of the composite.
+     */
+    private final int step;
+    private final int previewWidth, previewHeight;
+
+    private final ExecutorService executor;
+    private final AtomicInteger pending = new AtomicInteger(0);
+    private long lastMillis = 0;
+
+    PreviewRenderer(ImageRows imageRows, PreviewListener listener, long intervalMillis, int previewSize) {
+        this.imageRows = imageRows;
+        this.listener = listener;
+        this.intervalMillis = intervalMillis;
+        this.width = imageRows.getWidth();
+
+        int height = imageRows.getHeight();
+        this.step = Math.max(1, (Math.max(width, height) + previewSize - 1) / previewSize);
+        this.previewWidth = (width + step - 1) / step;
+        this.previewHeight = (height + step - 1) / step;
+
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "preview-renderer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public void onProgress(final int sweep, boolean sweepDone, final double energy, ShortBuffer labels) {
+        long now = System.currentTimeMillis();
+        if (!sweepDone && (now - lastMillis < intervalMillis || pending.get() > 0)) {
+            return;
+        }
+        lastMillis = now;
+        pending.incrementAndGet();
+
+        final short[] sample = new short[previewWidth * previewHeight];
+        for (int y = 0, i = 0; y < previewHeight; y++) {
+            for (int x = 0, index = y * step * width; x < previewWidth; x++, i++, index += step) {
+                sample[i] = labels.get(index);
+            }
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    listener.onPreview(render(sample), sweep, energy);
+                } catch (RuntimeException e) {
+                    log.warn("Preview of sweep " + sweep + " failed.", e);
+                } finally {
+                    pending.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for the previews being rendered, if any.
+     */
+    void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                log.warn("Preview did not finish in {} seconds.", CLOSE_TIMEOUT_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reads the sampled row of only the images that appear in the row of the preview.
+     */
+    private Mat render(short[] sample) {
+        Mat preview = new Mat(previewHeight, previewWidth, CvType.CV_8UC3);
+        byte[][] rows = new byte[imageRows.size()][];
+        boolean[] read = new boolean[imageRows.size()];
+        byte[] previewRow = new byte[previewWidth * NUM_CHANNEL];
+        for (int y = 0; y < previewHeight; y++) {
+            Arrays.fill(read, false);
+            for (int x = 0, i = y * previewWidth; x < previewWidth; x++, i++) {
+                short label = sample[i];
+                if (!read[label]) {
+                    if (rows[label] == null) {
+                        rows[label] = new byte[width * NUM_CHANNEL];
+                    }
+                    imageRows.readRow(label, y * step, rows[label]);
+                    read[label] = true;
+                }
+                System.arraycopy(rows[label], x * step * NUM_CHANNEL, previewRow, x * NUM_CHANNEL, NUM_CHANNEL);
+            }
+            preview.put(y, 0, previewRow);
+        }
+        return preview;
+    }
+}
@@ -0,0 +1,201 @@
+package lee.kyuhae.john.compphoto.algorithm;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.opencv.core.Mat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ShortBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * ResultCache
+ *
+ * Local cache of the final labels, keyed by a hash of the decoded pixels of every image and the solver parameters,
+ * including the constraints of the strokes, if any.
+ * A hit skips the histogram and the minimization, only the composite needs to be built from the labels.
+ *
+ * Each entry is a file named by the key, holding the energy and the deflated labels.
+ * Last modified time of the file is used as the last access time for the LRU eviction.
+ */
+@Slf4j
+public class ResultCache {
+    private static final String ENTRY_SUFFIX = ".labels";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int MAGIC = 0x43534c42;
+
+    private final File directory;
+    private final long budgetBytes;
+
+    public ResultCache(File directory, long budgetBytes) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Cannot create cache directory " + directory + ".");
+        }
+
+        this.directory = directory;
+        this.budgetBytes = budgetBytes;
+    }
+
+    @Getter
+    public static class Entry {
+        private final double energy;
+        private final short[] labels;
+
+        Entry(double energy, short[] labels) {
+            this.energy = energy;
+            this.labels = labels;
+        }
+    }
+
+    public static String computeKey(Mat[] images, String parameterSignature) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
+
+        digest.update(parameterSignature.getBytes(StandardCharsets.UTF_8));
+        for (Mat image : images) {
+            Mat continuous = image.isContinuous() ? image : image.clone();
+            byte[] values = new byte[(int) (continuous.total() * continuous.channels())];
+            continuous.get(0, 0, values);
+            digest.update(String.format(";%dx%dx%d;", image.width(), image.height(), image.channels())
+                    .getBytes(StandardCharsets.UTF_8));
+            digest.update(values);
+            if (continuous != image) {
+                continuous.release();
+            }
+        }
+
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Returns the cached entry, or null on a miss or an unreadable entry.
+     */
+    public Entry get(String key, int numPixels) {
+        File file = getFile(key);
+        if (!file.isFile()) {
+            log.debug("Result cache miss for {}.", key);
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new InflaterInputStream(new FileInputStream(file))))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a result cache entry.");
+            }
+
+            double energy = in.readDouble();
+            short[] labels = new short[in.readInt()];
+            if (labels.length != numPixels) {
+                throw new IOException("Entry has " + labels.length + " labels. Expected " + numPixels + ".");
+            }
+            for (int i = 0; i < labels.length; i++) {
+                labels[i] = in.readShort();
+            }
+
+            // Marks it as recently used.
+            if (!file.setLastModified(System.currentTimeMillis())) {
+                log.debug("Failed to update the access time of {}.", file);
+            }
+            log.info("Result cache hit for {}.", key);
+            return new Entry(energy, labels);
+        } catch (IOException e) {
+            log.error("Failed to read result cache entry " + file + ". Treating it as a miss.", e);
+            return null;
+        }
+    }
+
+    public void put(String key, double energy, short[] labels) {
+        put(key, energy, ShortBuffer.wrap(labels));
+    }
+
+    /**
+     * Same as put(key, energy, short[] labels), with the labels in a buffer indexed from 0.
+     */
+    public void put(String key, double energy, ShortBuffer labels) {
+        File file = getFile(key);
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new DeflaterOutputStream(new FileOutputStream(temp), new Deflater(Deflater.BEST_SPEED))))) {
+                out.writeInt(MAGIC);
+                out.writeDouble(energy);
+                out.writeInt(labels.capacity());
+                for (int i = 0; i < labels.capacity(); i++) {
+                    out.writeShort(labels.get(i));
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.debug("Stored result cache entry {} ({} bytes).", key, file.length());
+        } catch (IOException e) {
+            log.error("Failed to store result cache entry " + file + ".", e);
+            return;
+        }
+
+        evict();
+    }
+
+    /**
+     * Deletes the least recently used entries until the total size is within the budget.
+     */
+    private void evict() {
+        File[] entries = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(ENTRY_SUFFIX);
+            }
+        });
+        if (entries == null) {
+            return;
+        }
+
+        long totalBytes = 0;
+        for (File entry : entries) {
+            totalBytes += entry.length();
+        }
+
+        Arrays.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.compare(f1.lastModified(), f2.lastModified());
+            }
+        });
+
+        for (int i = 0; i < entries.length && totalBytes > budgetBytes; i++) {
+            long length = entries[i].length();
+            if (entries[i].delete()) {
+                totalBytes -= length;
+                log.debug("Evicted result cache entry {}.", entries[i].getName());
+            }
+        }
+    }
+
+    private File getFile(String key) {
+        return new File(directory, key + ENTRY_SUFFIX);
+    }
+}
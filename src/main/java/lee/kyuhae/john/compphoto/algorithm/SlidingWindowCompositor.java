@@ -0,0 +1,81 @@
+package lee.kyuhae.john.compphoto.algorithm;
+
+import lee.kyuhae.john.compphoto.algorithm.histogram.SolverOptions;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.opencv.core.Mat;
+
+/**
+ * SlidingWindowCompositor
+ *
+ * Composites a moving window of frames from a time-lapse or a video, one frame at a time.
+ * Frames are kept in a ring buffer of windowSize slots. When the window is full, each new frame replaces
+ * the oldest one -- the histogram is updated by removing the old frame and adding the new one,
+ * and the minimizer starts from the labels of the previous window.
+ *
+ * A label is an index of the ring buffer slot. Use getFrameIndex to find out which frame it points to.
+ */
+@Slf4j
+public class SlidingWindowCompositor {
+    private final int windowSize;
+    private final SolverOptions options;
+    private final Mat[] window;
+    private final long[] frameIndices;
+
+    private ImageProcessor imageProcessor = null;
+    @Getter private long frameCount = 0;
+
+    public SlidingWindowCompositor(int windowSize) {
+        this(windowSize, new SolverOptions());
+    }
+
+    public SlidingWindowCompositor(int windowSize, SolverOptions options) {
+        if (windowSize < 2) {
+            throw new IllegalArgumentException("Window size should be at least 2. Given " + windowSize + ".");
+        }
+
+        this.windowSize = windowSize;
+        this.options = options;
+        this.window = new Mat[windowSize];
+        this.frameIndices = new long[windowSize];
+    }
+
+    /**
+     * Adds the next frame and returns the composite of the current window.
+     * Returns null until the window has been filled.
+     * The same Mat is returned every time, updated in place by the next push. Clone it to keep a composite.
+     */
+    public Mat push(Mat frame) {
+        int slot = (int) (frameCount % windowSize);
+        frameIndices[slot] = frameCount;
+        frameCount++;
+
+        if (imageProcessor == null) {
+            window[slot] = frame;
+            if (frameCount < windowSize) {
+                return null;
+            }
+
+            log.debug("Window of {} frames is filled. Building the histogram.", windowSize);
+            imageProcessor = new ImageProcessor(window, options);
+        } else {
+            log.debug("Sliding the window to frame {}. Replacing slot {}.", frameCount - 1, slot);
+            imageProcessor.replaceImage(slot, frame);
+        }
+
+        imageProcessor.compute();
+        return imageProcessor.getCompositeImage();
+    }
+
+    public Mat getLabelImage() {
+        return imageProcessor == null ? null : imageProcessor.getLabelImage();
+    }
+
+    /**
+     * Frame index (order of push) of the frame that the label currently points to.
+     */
+    public long getFrameIndex(short label) {
+        return frameIndices[label];
+    }
+}
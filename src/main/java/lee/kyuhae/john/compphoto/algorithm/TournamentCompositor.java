@@ -0,0 +1,303 @@
+package lee.kyuhae.john.compphoto.algorithm;
+
+import lee.kyuhae.john.compphoto.algorithm.histogram.MLOEnergyMinimizer;
+import lee.kyuhae.john.compphoto.algorithm.histogram.SolverOptions;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.highgui.Highgui;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * TournamentCompositor
+ *
+ * Composites stacks of hundreds of frames, whose single solve gets slow and large with the number of labels.
+ * 1. Splits the frames into groups of at most groupSize, and composites each group on its own into a clean plate.
+ *    Groups are composited groupParallelism at a time.
+ * 2. Does the same with the plates, level by level, until at most groupSize plates are left.
+ * 3. Composites the last plates into the result.
+ *
+ * Every solve has at most groupSize labels, and a level has about 1 / groupSize as many solves as the one before,
+ * so the cost grows close to linearly with the number of frames. Only the frames of the groups being solved are
+ * decoded at once, when the frames are given as files.
+ *
+ * Each plate remembers which frame each of its pixels came from, so that the result can be traced back to
+ * the frames. See getFrameIndex.
+ */
+@Slf4j
+public class TournamentCompositor {
+    public static final int GROUP_SIZE_DEFAULT = 16;
+    private static final int MIN_REQUIRED_NUM_IMAGES = 2;
+    private static final int NUM_CHANNEL = 3;
+
+    private final int groupSize;
+    private final int groupParallelism;
+    private final SolverOptions options;
+
+    private int width, height;
+
+    /**
+     * Frame index of each pixel of the result, in row-major order.
+     */
+    private short[] frameIndices = null;
+
+    @Getter private Mat compositeImage = null;
+    @Getter private Mat labelImage = null;
+
+    /**
+     * Energy of the last solve, over the plates of the last level.
+     */
+    @Getter private double energy = Double.NaN;
+
+    public TournamentCompositor() {
+        this(GROUP_SIZE_DEFAULT, 1, new SolverOptions());
+    }
+
+    /**
+     * Groups are solved concurrently, so options should not have a checkpoint file.
+     */
+    public TournamentCompositor(int groupSize, int groupParallelism, SolverOptions options) {
+        if (groupSize < MIN_REQUIRED_NUM_IMAGES || groupParallelism < 1) {
+            throw new IllegalArgumentException("Received groupSize " + groupSize + ", groupParallelism "
+                    + groupParallelism + ".");
+        }
+        if (options.getCheckpointFile() != null) {
+            throw new IllegalArgumentException("Checkpoints are not supported, since groups are solved concurrently.");
+        }
+
+        this.groupSize = groupSize;
+        this.groupParallelism = groupParallelism;
+        this.options = options;
+    }
+
+    /**
+     * Composites frames that are already decoded.
+     */
+    public Mat composite(Mat[] frames) throws InterruptedException {
+        List<Plate> plates = new ArrayList<>();
+        for (int i = 0; i < frames.length; i++) {
+            plates.add(new Plate(frames[i], null, i));
+        }
+        return composite(plates, frames[0].width(), frames[0].height());
+    }
+
+    /**
+     * Composites .jpg frames of the same size. Frames are decoded when their group is solved.
+     */
+    public Mat composite(File[] frameFiles) throws InterruptedException {
+        Mat first = Highgui.imread(frameFiles[0].getPath());
+        if (first.empty()) {
+            throw new IllegalArgumentException("Failed to decode " + frameFiles[0] + ".");
+        }
+
+        List<Plate> plates = new ArrayList<>();
+        for (int i = 0; i < frameFiles.length; i++) {
+            plates.add(new Plate(frameFiles[i], i));
+        }
+        int width = first.width();
+        int height = first.height();
+        first.release();
+        return composite(plates, width, height);
+    }
+
+    /**
+     * Index of the frame that the result takes the pixel from.
+     */
+    public int getFrameIndex(int col, int row) {
+        return frameIndices[row * width + col];
+    }
+
+    private Mat composite(List<Plate> plates, int width, int height) throws InterruptedException {
+        if (plates.size() < MIN_REQUIRED_NUM_IMAGES || plates.size() > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Between " + MIN_REQUIRED_NUM_IMAGES + " and " + Short.MAX_VALUE
+                    + " frames are required. Given " + plates.size() + ".");
+        }
+
+        this.width = width;
+        this.height = height;
+        long startMillis = System.currentTimeMillis();
+        int numFrames = plates.size();
+
+        ExecutorService executor = Executors.newFixedThreadPool(groupParallelism);
+        try {
+            int level = 0;
+            while (plates.size() > groupSize) {
+                plates = compositeLevel(executor, plates);
+                level++;
+                log.info("Level {}: reduced to {} plates.", level, plates.size());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        double[] groupEnergy = new double[1];
+        Plate result = compositeGroup(plates, groupEnergy);
+        this.energy = groupEnergy[0];
+        this.frameIndices = result.origins;
+        this.compositeImage = result.image;
+        this.labelImage = createLabelImage();
+
+        log.info("Composited {} frames with energy {} in {}ms.", numFrames, energy,
+                System.currentTimeMillis() - startMillis);
+        return compositeImage;
+    }
+
+    /**
+     * Composites the plates group by group. Groups are balanced, so that none of them ends up much smaller.
+     */
+    private List<Plate> compositeLevel(ExecutorService executor, List<Plate> plates) throws InterruptedException {
+        int numGroups = (plates.size() + groupSize - 1) / groupSize;
+        List<Future<Plate>> futures = new ArrayList<>();
+        int start = 0;
+        for (int group = 0; group < numGroups; group++) {
+            int end = start + plates.size() / numGroups + (group < plates.size() % numGroups ? 1 : 0);
+            final List<Plate> members = plates.subList(start, end);
+            start = end;
+
+            futures.add(executor.submit(new Callable<Plate>() {
+                @Override
+                public Plate call() {
+                    if (members.size() < MIN_REQUIRED_NUM_IMAGES) {
+                        // Nothing to solve. The plate goes on to the next level as it is.
+                        return members.get(0);
+                    }
+                    return compositeGroup(members, new double[1]);
+                }
+            }));
+        }
+
+        List<Plate> next = new ArrayList<>();
+        for (Future<Plate> future : futures) {
+            try {
+                next.add(future.get());
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Failed to composite a group.", e.getCause());
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Solves the labels of the plates, and builds the plate of the result. energy[0] is set to the energy.
+     */
+    private Plate compositeGroup(List<Plate> members, double[] energy) {
+        long startMillis = System.currentTimeMillis();
+        Mat[] images = new Mat[members.size()];
+        for (int i = 0; i < images.length; i++) {
+            images[i] = members.get(i).load();
+        }
+
+        short[] labels = new short[width * height];
+        MLOEnergyMinimizer minimizer = new MLOEnergyMinimizer(images, labels, options);
+        minimizer.compute();
+        energy[0] = minimizer.getEnergy();
+
+        Mat image = new Mat(height, width, CvType.CV_8UC3);
+        short[] origins = new short[width * height];
+        byte[][] rows = new byte[images.length][width * NUM_CHANNEL];
+        byte[] row = new byte[width * NUM_CHANNEL];
+        for (int r = 0; r < height; r++) {
+            for (int i = 0; i < images.length; i++) {
+                images[i].get(r, 0, rows[i]);
+            }
+            int index = r * width;
+            for (int col = 0; col < width; col++, index++) {
+                Plate plate = members.get(labels[index]);
+                System.arraycopy(rows[labels[index]], col * NUM_CHANNEL, row, col * NUM_CHANNEL, NUM_CHANNEL);
+                origins[index] = plate.getOrigin(index);
+            }
+            image.put(r, 0, row);
+        }
+
+        for (int i = 0; i < images.length; i++) {
+            members.get(i).release(images[i]);
+        }
+
+        log.debug("Composited a group of {} plates with energy {} in {}ms.", images.length, energy[0],
+                System.currentTimeMillis() - startMillis);
+        return new Plate(image, origins, 0);
+    }
+
+    private Mat createLabelImage() {
+        Mat image = new Mat(height, width, CvType.CV_8UC3);
+        byte[] row = new byte[width * NUM_CHANNEL];
+        for (int r = 0; r < height; r++) {
+            int index = r * width;
+            for (int col = 0; col < width; col++, index++) {
+                RGBVector rgbVector = LabelColor.get(frameIndices[index]);
+                row[col * NUM_CHANNEL] = (byte) rgbVector.getR();
+                row[col * NUM_CHANNEL + 1] = (byte) rgbVector.getG();
+                row[col * NUM_CHANNEL + 2] = (byte) rgbVector.getB();
+            }
+            image.put(r, 0, row);
+        }
+        return image;
+    }
+
+    /**
+     * A frame, or the composite of a group. A frame given as a file is decoded only while its group is solved,
+     * and a composite is released once the next level has used it.
+     */
+    private static class Plate {
+        private final File file;
+        private Mat image;
+
+        /**
+         * Frame index of each pixel of a composite. Null for a frame, whose pixels all come from frameIndex.
+         */
+        private final short[] origins;
+        private final int frameIndex;
+
+        Plate(Mat image, short[] origins, int frameIndex) {
+            this.file = null;
+            this.image = image;
+            this.origins = origins;
+            this.frameIndex = frameIndex;
+        }
+
+        Plate(File file, int frameIndex) {
+            this.file = file;
+            this.image = null;
+            this.origins = null;
+            this.frameIndex = frameIndex;
+        }
+
+        short getOrigin(int index) {
+            return origins == null ? (short) frameIndex : origins[index];
+        }
+
+        Mat load() {
+            if (file == null) {
+                return image;
+            }
+
+            Mat decoded = Highgui.imread(file.getPath());
+            if (decoded.empty()) {
+                throw new IllegalArgumentException("Failed to decode " + file + ".");
+            }
+            return decoded;
+        }
+
+        /**
+         * Frames given as Mats belong to the caller and are kept.
+         */
+        void release(Mat loaded) {
+            if (file != null) {
+                loaded.release();
+            } else if (origins != null) {
+                image.release();
+                image = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package lee.kyuhae.john.compphoto.algorithm.histogram;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * CandidateLabels
+ *
+ * Keeps a short list of candidate labels per pixel.
+ * An expansion of a label only adds graph nodes for pixels where the label is a candidate,
+ * all other pixels are held fixed at their current label.
+ *
+ * Stored as one BitSet per label over the pixel indices so that BVZExpand(a) only looks at one BitSet.
+ */
+@Slf4j
+class CandidateLabels {
+    private final CandidatePruning pruning;
+    private final double threshold;
+    private final int topK;
+    private final BitSet[] candidates;
+    private final int numPixels;
+
+    @Getter private long numCandidates = 0;
+
+    CandidateLabels(CandidatePruning pruning, double threshold, int topK, int numLabels, int numPixels) {
+        if (pruning == CandidatePruning.TOP_K && topK < 1) {
+            throw new IllegalArgumentException("topK should be at least 1. Given " + topK + ".");
+        }
+
+        this.pruning = pruning;
+        this.threshold = threshold;
+        this.topK = topK;
+        this.numPixels = numPixels;
+        this.candidates = new BitSet[numLabels];
+        for (int label = 0; label < numLabels; label++) {
+            candidates[label] = new BitSet(numPixels);
+        }
+    }
+
+    /**
+     * Selects candidates at the pixel index given data costs of all labels at that pixel.
+     */
+    void select(int index, double[] dataCosts) {
+        short best = 0;
+        for (short label = 1; label < dataCosts.length; label++) {
+            if (dataCosts[label] < dataCosts[best]) {
+                best = label;
+            }
+        }
+        keep(index, best);
+
+        switch (pruning) {
+            case NONE:
+                for (short label = 0; label < dataCosts.length; label++) {
+                    keep(index, label);
+                }
+                break;
+            case DATA_COST_THRESHOLD:
+                for (short label = 0; label < dataCosts.length; label++) {
+                    if (dataCosts[label] < threshold) {
+                        keep(index, label);
+                    }
+                }
+                break;
+            case TOP_K:
+                double[] sorted = Arrays.copyOf(dataCosts, dataCosts.length);
+                Arrays.sort(sorted);
+                double kthCost = sorted[Math.min(topK, sorted.length) - 1];
+                int kept = 1;
+                for (short label = 0; label < dataCosts.length && kept < topK; label++) {
+                    if (label != best && dataCosts[label] <= kthCost) {
+                        keep(index, label);
+                        kept++;
+                    }
+                }
+                break;
+        }
+    }
+
+    boolean isCandidate(int index, short label) {
+        return candidates[label].get(index);
+    }
+
+    double getCandidateRatio() {
+        return numCandidates / ((double) numPixels * candidates.length);
+    }
+
+    private void keep(int index, short label) {
+        if (!candidates[label].get(index)) {
+            candidates[label].set(index);
+            numCandidates++;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package lee.kyuhae.john.compphoto.algorithm.histogram;
+
+/**
+ * How candidate labels are selected per pixel after the histogram is computed.
+ * - NONE: every label is a candidate at every pixel. (Same as the original algorithm)
+ * - DATA_COST_THRESHOLD: labels with data cost below the threshold are candidates.
+ * - TOP_K: K labels with the lowest data cost are candidates.
+ *
+ * Label with the lowest data cost is always a candidate.
+ */
+public enum CandidatePruning {
+    NONE,
+    DATA_COST_THRESHOLD,
+    TOP_K
+}
@@ -0,0 +1,101 @@
+package lee.kyuhae.john.compphoto.algorithm.histogram;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * CheckpointWriter
+ *
+ * Writes MinimizerCheckpoint to a file on a background thread so the solve loop does not wait for the disk.
+ * - isDue() tells whether the checkpoint interval has passed since the last one.
+ * - When the previous checkpoint is still being written, a new one is dropped instead of queued.
+ *   The next one will be taken when the minimizer reaches the next expansion.
+ */
+@Slf4j
+class CheckpointWriter {
+    private static final long CLOSE_TIMEOUT_SECONDS = 60;
+
+    private final File file;
+    private final long intervalMillis;
+    private final AtomicBoolean writing = new AtomicBoolean(false);
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "checkpoint-writer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private long lastCheckpointMillis;
+
+    CheckpointWriter(File file, long intervalMillis) {
+        this.file = file;
+        this.intervalMillis = intervalMillis;
+        this.lastCheckpointMillis = System.currentTimeMillis();
+    }
+
+    boolean isDue() {
+        return System.currentTimeMillis() - lastCheckpointMillis >= intervalMillis;
+    }
+
+    void submit(final MinimizerCheckpoint checkpoint) {
+        if (!writing.compareAndSet(false, true)) {
+            log.debug("Previous checkpoint is still being written. Skipping this one.");
+            return;
+        }
+
+        lastCheckpointMillis = System.currentTimeMillis();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkpoint.write(file);
+                } catch (IOException e) {
+                    log.error("Failed to write a checkpoint to " + file, e);
+                } finally {
+                    writing.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops without a final checkpoint, e.g. when the minimization failed. A checkpoint being written is finished.
+     */
+    void abandon() {
+        executor.shutdown();
+    }
+
+    /**
+     * Writes the final checkpoint after the ones already submitted, and waits until it is written.
+     */
+    void close(final MinimizerCheckpoint finalCheckpoint) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    finalCheckpoint.write(file);
+                } catch (IOException e) {
+                    log.error("Failed to write the final checkpoint to " + file, e);
+                }
+            }
+        });
+
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                log.error("Checkpoint writer did not finish in {} seconds.", CLOSE_TIMEOUT_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package lee.kyuhae.john.compphoto.algorithm.histogram;
+
+import java.nio.ShortBuffer;
+
+/**
+ * ColorKernels
+ *
+ * Bulk kernels over the pixel arrays of ImageStack, computing a whole row at once.
+ * Loops are kept to plain counted loops over primitive arrays without calls or branches,
+ * so that the JIT can unroll and vectorize them.
+ */
+final class ColorKernels {
+    private static final int NUM_CHANNEL = ImageStack.NUM_CHANNEL;
+
+    private ColorKernels() {
+    }
+
+    /**
+     * Euclidean RGB distance between p and q at the pixel index.
+     */
+    static double distance(byte[] p, byte[] q, int index) {
+        int i = index * NUM_CHANNEL;
+        int d0 = (p[i] & 0xFF) - (q[i] & 0xFF);
+        int d1 = (p[i + 1] & 0xFF) - (q[i + 1] & 0xFF);
+        int d2 = (p[i + 2] & 0xFF) - (q[i + 2] & 0xFF);
+        return Math.sqrt(d0 * d0 + d1 * d1 + d2 * d2);
+    }
+
+    /**
+     * out[outOffset + i] = distance(p, q, pOffset + i) for count pixels.
+     * p is indexed with pOffset, q with qOffset, so that a gathered row buffer can be compared with an image.
+     */
+    static void distanceRow(byte[] p, int pOffset, byte[] q, int qOffset, int count, double[] out, int outOffset) {
+        int i = pOffset * NUM_CHANNEL;
+        int j = qOffset * NUM_CHANNEL;
+        for (int n = 0; n < count; n++, i += NUM_CHANNEL, j += NUM_CHANNEL) {
+            int d0 = (p[i] & 0xFF) - (q[j] & 0xFF);
+            int d1 = (p[i + 1] & 0xFF) - (q[j + 1] & 0xFF);
+            int d2 = (p[i + 2] & 0xFF) - (q[j + 2] & 0xFF);
+            out[outOffset + n] = Math.sqrt(d0 * d0 + d1 * d1 + d2 * d2);
+        }
+    }
+
+    /**
+     * Copies pixel values of count pixels starting at index, each from the image of its label, into out.
+     * Result is the current composite of the row. Runs of the same label are copied at once.
+     */
+    static void gatherRow(ImageStack stack, ShortBuffer labels, int index, int count, byte[] out) {
+        int runStart = 0;
+        for (int n = 1; n <= count; n++) {
+            if (n == count || labels.get(index + n) != labels.get(index + runStart)) {
+                stack.readRow(labels.get(index + runStart), index + runStart, n - runStart, out, runStart);
+                runStart = n;
+            }
+        }
+    }
+}
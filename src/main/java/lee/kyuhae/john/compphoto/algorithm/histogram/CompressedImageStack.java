@@ -0,0 +1,248 @@
+package lee.kyuhae.john.compphoto.algorithm.histogram;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * CompressedImageStack
+ *
+ * ImageStack that keeps each image as bands of BAND_ROWS rows, each compressed with Deflater on its fastest level.
+ * Values are stored as differences from the pixel on their left before compression. See predict.
+ * Bands are decompressed when a value in them is read, into a cache of decompressed bands of the reading thread.
+ * Solver passes go row by row, so a couple of bands per image serve almost every read.
+ *
+ * Every thread has its own cache, so that reads from the graph build and speculative expansion threads take
+ * no lock. Band b of an image is kept in way b % ways of the image, so that two neighboring rows, which the
+ * interaction penalties read together, never evict each other.
+ *
+ * With delta, bands of images other than the first hold the difference from the same band of the first image.
+ * Replacing the first image encodes the other images again against the new one.
+ */
+class CompressedImageStack extends ImageStack {
+    static final int BAND_ROWS = 16;
+    private static final int NO_BAND = -1;
+
+    private final boolean delta;
+    private final int numBands;
+    private final byte[][][] bands;
+
+    /**
+     * Decompressed bands kept per image in the cache of each thread.
+     */
+    private final int ways;
+    private final ThreadLocal<BandCache> caches = new ThreadLocal<BandCache>() {
+        @Override
+        protected BandCache initialValue() {
+            return new BandCache();
+        }
+    };
+
+    /**
+     * Incremented by write(), so that the caches of every thread drop the bands decompressed before.
+     */
+    private volatile int generation = 0;
+
+    CompressedImageStack(int width, int height, int numImages, boolean delta, long cacheBytes) {
+        super(width, height, numImages);
+        this.delta = delta;
+        this.numBands = (height + BAND_ROWS - 1) / BAND_ROWS;
+        this.bands = new byte[numImages][numBands][];
+
+        // At least two bands of every image, so that a row and the next can be read from every image
+        // without thrashing.
+        long bandBytes = (long) width * BAND_ROWS * NUM_CHANNEL;
+        this.ways = (int) Math.max(Math.min(cacheBytes / (bandBytes * numImages), numBands), Math.min(2, numBands));
+    }
+
+    @Override
+    int getValue(int image, int index, int channel) {
+        int row = index / getWidth();
+        byte[] band = getBand(image, row / BAND_ROWS);
+        return band[(index - (row / BAND_ROWS) * BAND_ROWS * getWidth()) * NUM_CHANNEL + channel] & 0xFF;
+    }
+
+    @Override
+    void readRow(int image, int index, int count, byte[] out, int outOffset) {
+        int bandPixels = BAND_ROWS * getWidth();
+        while (count > 0) {
+            int band = index / bandPixels;
+            int offset = index - band * bandPixels;
+            int n = Math.min(count, bandPixels - offset);
+            System.arraycopy(getBand(image, band), offset * NUM_CHANNEL, out, outOffset * NUM_CHANNEL,
+                    n * NUM_CHANNEL);
+            index += n;
+            outOffset += n;
+            count -= n;
+        }
+    }
+
+    @Override
+    double distance(int x, int y, int index) {
+        int band = index / (BAND_ROWS * getWidth());
+        return ColorKernels.distance(getBand(x, band), getBand(y, band), index - band * BAND_ROWS * getWidth());
+    }
+
+    @Override
+    void write(int image, byte[] values) {
+        byte[] base = null;
+        if (delta && image == 0) {
+            // Others are relative to the old first image. Decodes them before it goes.
+            for (int other = 1; other < size(); other++) {
+                if (bands[other][0] != null) {
+                    byte[] otherValues = new byte[values.length];
+                    readRow(other, 0, getWidth() * getHeight(), otherValues, 0);
+                    encode(other, otherValues, values);
+                }
+            }
+        } else if (delta) {
+            if (bands[0][0] == null) {
+                throw new IllegalStateException("First image should be written before image " + image + ".");
+            }
+            base = new byte[values.length];
+            readRow(0, 0, getWidth() * getHeight(), base, 0);
+        }
+
+        encode(image, values, base);
+        generation++;
+    }
+
+    /**
+     * Bytes of the compressed bands of every image.
+     */
+    long getCompressedBytes() {
+        long bytes = 0;
+        for (byte[][] imageBands : bands) {
+            for (byte[] band : imageBands) {
+                bytes += band == null ? 0 : band.length;
+            }
+        }
+        return bytes;
+    }
+
+    private void encode(int image, byte[] values, byte[] base) {
+        int bandBytes = BAND_ROWS * getWidth() * NUM_CHANNEL;
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        byte[] raw = new byte[bandBytes];
+        byte[] compressed = new byte[bandBytes + bandBytes / 1000 + 64];
+        try {
+            for (int band = 0; band < numBands; band++) {
+                int start = band * bandBytes;
+                int length = Math.min(bandBytes, values.length - start);
+                for (int i = 0; i < length; i++) {
+                    raw[i] = base == null ? values[start + i] : (byte) (values[start + i] - base[start + i]);
+                }
+                predict(raw, length);
+
+                deflater.reset();
+                deflater.setInput(raw, 0, length);
+                deflater.finish();
+                int compressedLength = 0;
+                while (!deflater.finished()) {
+                    if (compressedLength == compressed.length) {
+                        byte[] larger = new byte[compressed.length * 2];
+                        System.arraycopy(compressed, 0, larger, 0, compressedLength);
+                        compressed = larger;
+                    }
+                    compressedLength += deflater.deflate(compressed, compressedLength,
+                            compressed.length - compressedLength);
+                }
+
+                byte[] encoded = new byte[compressedLength];
+                System.arraycopy(compressed, 0, encoded, 0, compressedLength);
+                bands[image][band] = encoded;
+            }
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private byte[] getBand(int image, int band) {
+        BandCache cache = caches.get();
+        if (cache.generation != generation) {
+            cache.clear(generation);
+        }
+
+        int way = band % ways;
+        if (cache.bandIndices[image][way] != band) {
+            cache.values[image][way] = decode(image, band, cache.values[image][way]);
+            cache.bandIndices[image][way] = band;
+        }
+        return cache.values[image][way];
+    }
+
+    /**
+     * Decompressed bands of a thread. values[image][way] holds the band bandIndices[image][way] of the image.
+     */
+    private class BandCache {
+        private final int[][] bandIndices = new int[size()][ways];
+        private final byte[][][] values = new byte[size()][ways][];
+        private int generation;
+
+        private BandCache() {
+            clear(CompressedImageStack.this.generation);
+        }
+
+        private void clear(int generation) {
+            for (int[] imageBands : bandIndices) {
+                Arrays.fill(imageBands, NO_BAND);
+            }
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * Decompresses the band into reuse, or into a new array when reuse is null or of another length.
+     */
+    private byte[] decode(int image, int band, byte[] reuse) {
+        int length = (Math.min((band + 1) * BAND_ROWS, getHeight()) - band * BAND_ROWS) * getWidth() * NUM_CHANNEL;
+        byte[] values = reuse != null && reuse.length == length ? reuse : new byte[length];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bands[image][band]);
+            int decoded = 0;
+            while (decoded < length && !inflater.finished() && !inflater.needsInput()) {
+                decoded += inflater.inflate(values, decoded, length - decoded);
+            }
+            if (decoded != length) {
+                throw new IllegalStateException("Band " + band + " of image " + image + " is truncated.");
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Band " + band + " of image " + image + " is corrupt.", e);
+        } finally {
+            inflater.end();
+        }
+
+        unpredict(values, length);
+        if (delta && image != 0) {
+            byte[] base = getBand(0, band);
+            for (int i = 0; i < length; i++) {
+                values[i] += base[i];
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Replaces each value with its difference from the same channel of the pixel on its left, which is mostly
+     * close to 0 in photos and compresses much better than the values themselves.
+     */
+    private void predict(byte[] values, int length) {
+        int rowBytes = getWidth() * NUM_CHANNEL;
+        for (int rowStart = 0; rowStart < length; rowStart += rowBytes) {
+            for (int i = rowStart + rowBytes - 1; i >= rowStart + NUM_CHANNEL; i--) {
+                values[i] -= values[i - NUM_CHANNEL];
+            }
+        }
+    }
+
+    private void unpredict(byte[] values, int length) {
+        int rowBytes = getWidth() * NUM_CHANNEL;
+        for (int rowStart = 0; rowStart < length; rowStart += rowBytes) {
+            for (int i = rowStart + NUM_CHANNEL; i < rowStart + rowBytes; i++) {
+                values[i] += values[i - NUM_CHANNEL];
+            }
+        }
+    }
+}
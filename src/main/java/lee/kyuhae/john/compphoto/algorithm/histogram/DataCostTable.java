@@ -0,0 +1,111 @@
+package lee.kyuhae.john.compphoto.algorithm.histogram;
+
+import java.io.File;
+import java.nio.CharBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * DataCostTable
+ *
+ * Data cost of every label at every pixel, so that expansions only look them up.
+ * Costs of a label are in an array on the heap, or in a ByteBuffer of the StorageBackend.
+ *
+ * A data cost is 1 - (r / n) * (g / n) * (b / n), where r, g and b are the counts of the histogram bins of the
+ * pixel's value among the n images (see Histogram). Up to MAX_EXACT_IMAGES images, the count product r * g * b
+ * fits in a char, so the table keeps the product in 2 bytes, which gives back the cost to the last bits of a
+ * double. With more images, costs are kept as floats, to about 1e-7.
+ *
+ * Each label has its own array or buffer of at most 4 bytes per pixel, so that a buffer stays within the 2 GB
+ * limit up to 512 megapixels.
+ */
+class DataCostTable {
+    static final int MAX_EXACT_IMAGES = 40;
+
+    /**
+     * A cost that is further than this from its count product is not a histogram cost.
+     */
+    private static final double COUNT_PRODUCT_TOLERANCE = 1e-6;
+
+    /**
+     * n^3, the count product of a cost of 0. Zero when costs are kept as floats.
+     */
+    private final double maxCountProduct;
+
+    private final char[][] heapCountProducts;
+    private final CharBuffer[] bufferCountProducts;
+    private final float[][] heapCosts;
+    private final FloatBuffer[] bufferCosts;
+
+    DataCostTable(int numLabels, int numImages, int numPixels, StorageBackend backend, File dir) {
+        boolean exact = numImages <= MAX_EXACT_IMAGES;
+        this.maxCountProduct = exact ? (double) numImages * numImages * numImages : 0.0d;
+
+        if (backend == StorageBackend.HEAP) {
+            this.heapCountProducts = exact ? new char[numLabels][numPixels] : null;
+            this.heapCosts = exact ? null : new float[numLabels][numPixels];
+            this.bufferCountProducts = null;
+            this.bufferCosts = null;
+        } else {
+            this.heapCountProducts = null;
+            this.heapCosts = null;
+            this.bufferCountProducts = exact ? new CharBuffer[numLabels] : null;
+            this.bufferCosts = exact ? null : new FloatBuffer[numLabels];
+            for (int d = 0; d < numLabels; d++) {
+                if (exact) {
+                    bufferCountProducts[d] = backend.allocate((long) numPixels * Character.BYTES, dir).asCharBuffer();
+                } else {
+                    bufferCosts[d] = backend.allocate((long) numPixels * Float.BYTES, dir).asFloatBuffer();
+                }
+            }
+        }
+    }
+
+    double get(short d, int index) {
+        if (heapCountProducts != null) {
+            return 1.0d - heapCountProducts[d][index] / maxCountProduct;
+        } else if (bufferCountProducts != null) {
+            return 1.0d - bufferCountProducts[d].get(index) / maxCountProduct;
+        }
+        return heapCosts != null ? heapCosts[d][index] : bufferCosts[d].get(index);
+    }
+
+    /**
+     * Sets costs of the label d for count pixels starting at index, from costs starting at 0.
+     */
+    void putRow(short d, int index, double[] costs, int count) {
+        if (heapCountProducts != null) {
+            char[] labelProducts = heapCountProducts[d];
+            for (int i = 0; i < count; i++) {
+                labelProducts[index + i] = toCountProduct(costs[i]);
+            }
+        } else if (bufferCountProducts != null) {
+            CharBuffer buffer = bufferCountProducts[d].duplicate();
+            buffer.position(index);
+            for (int i = 0; i < count; i++) {
+                buffer.put(toCountProduct(costs[i]));
+            }
+        } else if (heapCosts != null) {
+            float[] labelCosts = heapCosts[d];
+            for (int i = 0; i < count; i++) {
+                labelCosts[index + i] = (float) costs[i];
+            }
+        } else {
+            FloatBuffer buffer = bufferCosts[d].duplicate();
+            buffer.position(index);
+            for (int i = 0; i < count; i++) {
+                buffer.put((float) costs[i]);
+            }
+        }
+    }
+
+    private char toCountProduct(double cost) {
+        double countProduct = (1.0d - cost) * maxCountProduct;
+        long rounded = Math.round(countProduct);
+        if (rounded < 0 || rounded > Character.MAX_VALUE
+                || Math.abs(countProduct - rounded) > COUNT_PRODUCT_TOLERANCE) {
+            throw new IllegalStateException("Data cost " + cost + " is not a histogram cost of "
+                    + Math.round(Math.cbrt(maxCountProduct)) + " images.");
+        }
+        return (char) rounded;
+    }
+}
@@ -3,11 +3,29 @@ package lee.kyuhae.john.compphoto.algorithm.histogram;
 
 import lee.kyuhae.john.compphoto.algorithm.Coordinate;
 import lee.kyuhae.john.compphoto.algorithm.maxflow.Graph;
-import lee.kyuhae.john.compphoto.algorithm.maxflow.MaxFlowFinder;
+import lee.kyuhae.john.compphoto.algorithm.maxflow.MaxFlowEngine;
+import lee.kyuhae.john.compphoto.algorithm.maxflow.MaxFlowSolver;
 import lee.kyuhae.john.compphoto.algorithm.maxflow.Node;
 
 import lombok.extern.slf4j.Slf4j;
 import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * EnergyMinimizer.
@@ -29,18 +47,22 @@ import org.opencv.core.Mat;
  */
 @Slf4j
 abstract class EnergyMinimizer {
-    private static final long ACTIVE_NODE_INDEX = -1;
-    private static final long NON_PRESENT_NODE_INDEX = -2;
-    private static final Node ACTIVE_NODE = new Node(ACTIVE_NODE_INDEX);
-    private static final Node NON_PRESENT_NODE = new Node(NON_PRESENT_NODE_INDEX);
+    /**
+     * States of the pixels of an expansion, other than the number of their graph node.
+     * ACTIVE_PIXEL already has the label a, FIXED_PIXEL is held at its label, and GRAPH_PIXEL gets a graph node
+     * once the nodes are numbered.
+     */
+    private static final int ACTIVE_PIXEL = -1;
+    private static final int FIXED_PIXEL = -2;
+    private static final int GRAPH_PIXEL = -3;
 
     static final double INFINITE_CAPACITY = 1000000;
 
     /**
-     * Constants for Interaction Penalty calculation.
+     * Constants for Interaction Penalty calculation. The coefficient is per minimizer, see SolverOptions.
      */
-    private static final float INTERACTION_PENALTY_COEFFICIENT = 6.0f;
-    private static final int NUM_CHANNEL = 3;
+    static final float INTERACTION_PENALTY_COEFFICIENT_DEFAULT = 6.0f;
+    private static final int NUM_CHANNEL = ImageStack.NUM_CHANNEL;
     private static final double INTERACTION_PENALTY_EXPANSION_THRESHOLD = 0.0001d;
 
     /**
@@ -48,6 +70,7 @@ abstract class EnergyMinimizer {
      */
     static final Coordinate ZERO_COORDINATE = new Coordinate(0, 0);
     private static final Coordinate[] NEIGHBORS = {new Coordinate(1, 0), new Coordinate(0, -1)};
+    private static final int NUM_NEIGHBORS = NEIGHBORS.length;
 
     /**
      * BVZ termA expansion sink-source configuration variables.
@@ -57,27 +80,123 @@ abstract class EnergyMinimizer {
     private int termA;
     private int termB;
 
-    final Mat[] images;
+    final int numImages;
+    final ImageStack stack;
     final int height;
     final int width;
-    final short[] labels;
+
+    /**
+     * Labels of the pixels, indexed from 0. Either an array of the caller, or in the StorageBackend.
+     */
+    final ShortBuffer labels;
     final Coordinate coordinateLimit;
+    private final float interactionPenaltyCoefficient;
+
+    /**
+     * Index offsets of NEIGHBORS, so that neighbors are visited with plain int indices.
+     */
+    private final int[] neighborOffsets;
+
+    /**
+     * Graph size statistics over all BVZExpand calls.
+     */
+    long expandCount = 0;
+    long graphNodeCount = 0;
+    long graphEdgeCount = 0;
+
+    /**
+     * Number of threads that compute penalties while building the graph. 1 builds it on the calling thread.
+     */
+    static final int GRAPH_BUILD_PARALLELISM_DEFAULT = Runtime.getRuntime().availableProcessors();
+    private static final int BANDS_PER_THREAD = 4;
+    private final int graphBuildParallelism;
+
+    /**
+     * Graph build pools shared by all the minimizers, one per parallelism, so that concurrent solves, e.g. of
+     * ParameterSweep or CompositingServer, share the threads instead of each starting their own.
+     * Their worker threads are daemons, and exit while the pool is idle.
+     */
+    private static final ConcurrentMap<Integer, ForkJoinPool> GRAPH_BUILD_POOLS = new ConcurrentHashMap<>();
+
+    private final MaxFlowEngine maxFlowEngine;
+
+    /**
+     * Where the buffers of the expansions are allocated.
+     */
+    private final StorageBackend storageBackend;
+    private final File storageDir;
+
+    /**
+     * Expansion buffers that are not in use. Only kept with DIRECT and MAPPED, where allocating them is expensive.
+     * With HEAP, every expansion allocates its own, so that the heap does not keep them between solves.
+     * Concurrent expansions, e.g. speculative ones, take one each.
+     */
+    private final Queue<ExpansionBuffers> idleExpansionBuffers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Called with the nodes of every expansion graph right before its max-flow. Not called when null.
+     */
+    GraphListener graphListener = null;
 
     EnergyMinimizer(Mat[] images, short[] labels) {
         this(images, labels, ALPHA_EXPANSION_FLAG_DEFAULT);
     }
 
     EnergyMinimizer(Mat[] images, short[] labels, boolean expansionFlag) {
-        this.images = images;
+        this(images, labels, expansionFlag, GRAPH_BUILD_PARALLELISM_DEFAULT);
+    }
+
+    EnergyMinimizer(Mat[] images, short[] labels, boolean expansionFlag, int graphBuildParallelism) {
+        this(ShortBuffer.wrap(labels), expansionFlag, graphBuildParallelism,
+                ImageStack.create(images, StorageBackend.HEAP, null), INTERACTION_PENALTY_COEFFICIENT_DEFAULT,
+                MaxFlowEngine.BOYKOV_KOLMOGOROV, StorageBackend.HEAP, null);
+    }
+
+    /**
+     * Images are only read through the stack, so that they do not have to be kept as Mats.
+     * Buffers of the expansions are allocated in the storageBackend, with its files in storageDir.
+     */
+    EnergyMinimizer(ShortBuffer labels, boolean expansionFlag, int graphBuildParallelism, ImageStack stack,
+                    float interactionPenaltyCoefficient, MaxFlowEngine maxFlowEngine, StorageBackend storageBackend,
+                    File storageDir) {
+        this.numImages = stack.size();
+        this.interactionPenaltyCoefficient = interactionPenaltyCoefficient;
+        this.maxFlowEngine = maxFlowEngine;
+        this.storageBackend = storageBackend;
+        this.storageDir = storageDir;
+        this.graphBuildParallelism = Math.max(1, graphBuildParallelism);
         this.labels = labels;
-        this.height = images[0].height();
-        this.width = images[0].width();
+        this.height = stack.getHeight();
+        this.width = stack.getWidth();
         this.coordinateLimit = new Coordinate(width, height);
-        log.info("Energy Minimizer initialized with {} images, {} height, {} width", images.length, height, width);
+        this.stack = stack;
+        this.neighborOffsets = new int[NUM_NEIGHBORS];
+        for (int k = 0; k < NUM_NEIGHBORS; k++) {
+            neighborOffsets[k] = NEIGHBORS[k].getRow() * width + NEIGHBORS[k].getCol();
+        }
+        log.info("Energy Minimizer initialized with {} images, {} height, {} width", numImages, height, width);
 
         setAlphaSink(expansionFlag);
     }
 
+    /**
+     * Labels of the size of the image in the StorageBackend of the minimizer, e.g. for proposals.
+     */
+    ShortBuffer allocateLabels() {
+        return storageBackend.allocateShorts(width * height, storageDir);
+    }
+
+    /**
+     * Copies all of source over target. Both are indexed from 0.
+     */
+    static void copyLabels(ShortBuffer source, ShortBuffer target) {
+        ShortBuffer from = source.duplicate();
+        from.clear();
+        ShortBuffer to = target.duplicate();
+        to.clear();
+        to.put(from);
+    }
+
     private void setAlphaSink(boolean flag) {
         alphaSink = flag;
         if (alphaSink) {
@@ -89,14 +208,38 @@ abstract class EnergyMinimizer {
         }
     }
 
-    abstract double BVZDataPenalty(Coordinate point, short d);
+    /**
+     * Data penalty of the label d at the pixel index. index is always within the image.
+     */
+    abstract double BVZDataPenalty(int index, short d);
+
+    double BVZDataPenalty(Coordinate point, short d) {
+        if (point.greaterThanOrEqualTo(ZERO_COORDINATE) && point.smallerThan(coordinateLimit)) {
+            return BVZDataPenalty(point.getOneDimensionalIndex(width), d);
+        } else {
+            return INFINITE_CAPACITY;
+        }
+    }
+
+    /**
+     * Whether the pixel at index can switch to the label a in BVZExpand(a).
+     * Pixels that cannot switch are held fixed at their current label and are not added to the graph.
+     */
+    boolean isCandidate(int index, short a) {
+        return true;
+    }
 
     double BVZInteractionPenalty(
            Coordinate cPoint, Coordinate nPoint, short cLabel, short nLabel) {
+        return BVZInteractionPenalty(cPoint.getOneDimensionalIndex(width), nPoint.getOneDimensionalIndex(width),
+                cLabel, nLabel);
+    }
+
+    double BVZInteractionPenalty(int cIndex, int nIndex, short cLabel, short nLabel) {
         // Warn: For max histogram, I think C_NORMAL type is used - this could be source of trouble.
-        if (cLabel >= images.length || nLabel >= images.length) {
+        if (cLabel >= numImages || nLabel >= numImages) {
             String message = "Received curPointLabel: " + cLabel + ", neighborPointLabel: " + nLabel
-                    + ", images.length: " + images.length + "\nLabelValue should be less than image length.";
+                    + ", numImages: " + numImages + "\nLabelValue should be less than image length.";
             log.debug(message);
             throw new IllegalStateException(message);
         }
@@ -107,28 +250,15 @@ abstract class EnergyMinimizer {
         }
 
         // C_NORMAL type interaction penalty calculation.
-        // 1. Calculate the difference at point Coordinate.
-        double a = 0, M;
-        double[] cPointRGB = images[cLabel].get(cPoint.getRow(), cPoint.getCol());
-        double[] nPointRGB = images[nLabel].get(cPoint.getRow(), cPoint.getCol());
-        for (int c = 0; c < NUM_CHANNEL; c++) {
-            int k = (int) cPointRGB[c] - (int) nPointRGB[c];
-            // log.debug("Difference at cPoint: {}", k);
-            a += (k * k);
-        }
-        M = Math.sqrt(a);
-
-        // 2. Calculate the difference at neighborPoint Coordinate.
-        a = 0;
-        cPointRGB = images[cLabel].get(nPoint.getRow(), nPoint.getCol());
-        nPointRGB = images[nLabel].get(nPoint.getRow(), nPoint.getCol());
-        for (int c = 0; c < NUM_CHANNEL; c++) {
-            int k = (int) cPointRGB[c] - (int) nPointRGB[c];
-            // log.debug("Difference at nPoint: {}", k);
-            a += (k * k);
-        }
-        M += Math.sqrt(a);
-        M /= INTERACTION_PENALTY_COEFFICIENT;
+        // Sum of the differences at the current pixel and at the neighbor pixel.
+        return toInteractionPenalty(stack.distance(cLabel, nLabel, cIndex) + stack.distance(cLabel, nLabel, nIndex));
+    }
+
+    /**
+     * Interaction penalty of two different labels, given the sum of their color distances at both pixels.
+     */
+    double toInteractionPenalty(double distanceSum) {
+        double M = distanceSum / interactionPenaltyCoefficient;
         if (M > INFINITE_CAPACITY) {
             M = INFINITE_CAPACITY;
         }
@@ -136,28 +266,44 @@ abstract class EnergyMinimizer {
         return M;
     }
 
-    private boolean isNode(Node n) {
-        return n != null && n != ACTIVE_NODE && n != NON_PRESENT_NODE && n.getIndex() >= 0;
+    /**
+     * Whether the k-th neighbor of the pixel at (col, row) is within the image.
+     */
+    private boolean hasNeighbor(int col, int row, int k) {
+        int nCol = col + NEIGHBORS[k].getCol();
+        int nRow = row + NEIGHBORS[k].getRow();
+        return nCol >= 0 && nCol < width && nRow >= 0 && nRow < height;
+    }
+
+    private boolean isNode(int state) {
+        return state >= 0;
     }
 
     double BVZComputeEnergy() {
+        return BVZComputeEnergy(new Rect(0, 0, width, height));
+    }
+
+    /**
+     * Energy terms that involve the region -- data penalties of the pixels in the region and
+     * interaction penalties of the edges with at least one end in the region.
+     * Same as the total energy for the whole image.
+     */
+    double BVZComputeEnergy(Rect region) {
         double energy = 0.0;
-        for (int row = 0; row < images[0].height(); row++) {
-            for (int col = 0; col < images[0].width(); col++) {
-                Coordinate cPoint = new Coordinate(col, row);
-
-                // Instead of increment index each iterations using index calculation from the Coordinate.
-                // TODO: If something's off, this is changed from the original code.
-                short cLabel = labels[cPoint.getOneDimensionalIndex(width)];
-                energy += BVZDataPenalty(cPoint, cLabel);
-
-                for (Coordinate adjPoint : NEIGHBORS) {
-                    Coordinate nPoint =
-                            new Coordinate(cPoint.getCol() + adjPoint.getCol(), cPoint.getRow() + adjPoint.getRow());
-
-                    if (nPoint.greaterThanOrEqualTo(ZERO_COORDINATE) && nPoint.smallerThan(coordinateLimit)) {
-                        short nLabel = labels[nPoint.getOneDimensionalIndex(width)];
-                        energy += BVZInteractionPenalty(cPoint, nPoint, cLabel, nLabel);
+        for (int row = region.y; row < Math.min(region.y + region.height + 1, height); row++) {
+            int col = Math.max(region.x - 1, 0);
+            for (int index = row * width + col; col < region.x + region.width; col++, index++) {
+                boolean cInRegion = isInRegion(col, row, region);
+                short cLabel = labels.get(index);
+                if (cInRegion) {
+                    energy += BVZDataPenalty(index, cLabel);
+                }
+
+                for (int k = 0; k < NUM_NEIGHBORS; k++) {
+                    if (hasNeighbor(col, row, k)
+                            && (cInRegion || isInRegion(col + NEIGHBORS[k].getCol(), row + NEIGHBORS[k].getRow(), region))) {
+                        int nIndex = index + neighborOffsets[k];
+                        energy += BVZInteractionPenalty(index, nIndex, cLabel, labels.get(nIndex));
                     }
                 }
             }
@@ -166,71 +312,444 @@ abstract class EnergyMinimizer {
         return energy;
     }
 
+    /**
+     * Energy of the proposal minus the energy of the current labels, where indices[0..count) are
+     * all the pixels at which the two differ. Only the terms that involve those pixels are computed.
+     */
+    double BVZComputeEnergyDifference(ShortBuffer proposal, int[] indices, int count) {
+        double difference = 0.0d;
+        for (int i = 0; i < count; i++) {
+            int index = indices[i];
+            int col = index % width;
+            int row = index / width;
+            difference += BVZDataPenalty(index, proposal.get(index)) - BVZDataPenalty(index, labels.get(index));
+
+            // Edges to the neighbors and from the pixels that have this pixel as their neighbor.
+            for (int k = 0; k < NUM_NEIGHBORS * 2; k++) {
+                Coordinate offset = NEIGHBORS[k % NUM_NEIGHBORS];
+                int sign = k < NUM_NEIGHBORS ? 1 : -1;
+                int nCol = col + sign * offset.getCol();
+                int nRow = row + sign * offset.getRow();
+                if (nCol < 0 || nCol >= width || nRow < 0 || nRow >= height) {
+                    continue;
+                }
+
+                int nIndex = nRow * width + nCol;
+                if (proposal.get(nIndex) != labels.get(nIndex) && nIndex < index) {
+                    // Counted from the other end.
+                    continue;
+                }
+                difference += BVZInteractionPenalty(index, nIndex, proposal.get(index), proposal.get(nIndex))
+                        - BVZInteractionPenalty(index, nIndex, labels.get(index), labels.get(nIndex));
+            }
+        }
+        return difference;
+    }
+
     double BVZExpand(short a, double energyOld) {
+        return BVZExpand(a, energyOld, new Rect(0, 0, width, height));
+    }
+
+    /**
+     * Expansion of the label a restricted to the region. Pixels outside of the region are held fixed.
+     * energyOld should be BVZComputeEnergy(region) of the current labels, or the total energy for the whole image.
+     * Returned energy is in the same terms.
+     *
+     * Graph is built in two phases.
+     * 1. Penalties are computed in parallel by row bands into per-pixel and per-edge buffers of the StorageBackend.
+     *    Each edge only writes to its own slot, and energy is summed per band. Graph nodes are numbered in between.
+     * 2. Edges are inserted into the graph sequentially in the original order, followed by t-weights.
+     */
+    double BVZExpand(short a, double energyOld, Rect region) {
+        return BVZExpand(a, energyOld, region, labels);
+    }
+
+    /**
+     * Same as BVZExpand(a, energyOld, region), but expands the given labels instead of the labels of the minimizer.
+     * Expansions of different label arrays can run concurrently.
+     */
+    double BVZExpand(short a, double energyOld, Rect region, ShortBuffer labels) {
+        // One column to the left and one row below the region have edges into the region.
+        // Edge buffers are indexed with (index within this box) * NUM_NEIGHBORS + neighbor.
+        Rect box = new Rect(Math.max(region.x - 1, 0), region.y, 0, 0);
+        box.width = region.x + region.width - box.x;
+        box.height = Math.min(region.y + region.height + 1, height) - box.y;
+
+        ExpansionBuffers buffers = takeExpansionBuffers(region.width * region.height,
+                box.width * box.height * NUM_NEIGHBORS);
+        try {
+            return BVZExpand(a, energyOld, region, box, labels, buffers);
+        } finally {
+            releaseExpansionBuffers(buffers);
+        }
+    }
+
+    private double BVZExpand(final short a, double energyOld, final Rect region, final Rect box,
+                             final ShortBuffer labels, final ExpansionBuffers buffers) {
         log.debug("BVZExpand starting with a {}, energyOld {}", a, energyOld);
         double energy = 0.0d;
 
-        Node[] nodeArray = new Node[width * height];
-        double[] penaltyArray = new double[width * height];
+        // Pixel buffers are indexed with the index within the region.
+        IntBuffer states = buffers.states;
+        DoubleBuffer penalties = buffers.penalties;
+        int numEdges = 0;
 
-        // Initializing -- Start of the graph building.
+        // Phase 1 -- Start of the graph building.
         log.debug("Starting dataPenalty computation.");
-        Coordinate cPoint = new Coordinate(0, 0);
-        for (cPoint.setRow(0); cPoint.getRow() < height; cPoint.incrementRow()) {
-            // Warn: Original code uses index and increment it by 1 each loop.
-            for (cPoint.setCol(0); cPoint.getCol() < width; cPoint.incrementColumn()) {
-                int index = cPoint.getOneDimensionalIndex(width);
-                short cLabel = labels[index];
+        final double[] bandEnergy = runInBands(region, new BandTask() {
+            @Override
+            public double run(int rowStart, int rowEnd) {
+                return computeDataPenalties(a, labels, region, rowStart, rowEnd, buffers);
+            }
+        });
+        log.debug("Completed dataPenalty computation.");
+
+        // Only the pixels that are in the graph are handed to the MaxFlowFinder, numbered in the order of the region.
+        int numNodes = 0;
+        for (int rIndex = 0; rIndex < region.width * region.height; rIndex++) {
+            if (states.get(rIndex) == GRAPH_PIXEL) {
+                numNodes++;
+            }
+        }
+        Node[] graphNodes = new Node[numNodes];
+        int graphNodeIndex = 0;
+        for (int row = region.y; row < region.y + region.height; row++) {
+            int index = row * width + region.x;
+            int rIndex = (row - region.y) * region.width;
+            for (int col = region.x; col < region.x + region.width; col++, index++, rIndex++) {
+                if (states.get(rIndex) == GRAPH_PIXEL) {
+                    graphNodes[graphNodeIndex] = new Node(index);
+                    states.put(rIndex, graphNodeIndex++);
+                }
+            }
+        }
+
+        log.debug("Starting InteractionPenalty calculation.");
+        final double[] bandEdgeEnergy = runInBands(box, new BandTask() {
+            @Override
+            public double run(int rowStart, int rowEnd) {
+                return computeInteractionPenalties(a, labels, region, box, rowStart, rowEnd, buffers);
+            }
+        });
+        runInBands(region, new BandTask() {
+            @Override
+            public double run(int rowStart, int rowEnd) {
+                gatherEdgePenalties(region, box, rowStart, rowEnd, buffers);
+                return 0.0d;
+            }
+        });
+        for (int band = 0; band < bandEnergy.length; band++) {
+            energy += bandEnergy[band];
+        }
+        for (int band = 0; band < bandEdgeEnergy.length; band++) {
+            energy += bandEdgeEnergy[band];
+        }
+        log.debug("Completed Interaction Penalty calculation.");
+
+        // Phase 2 -- Insert edges in the original order.
+        for (int row = box.y; row < box.y + box.height; row++) {
+            for (int col = box.x; col < box.x + box.width; col++) {
+                int slot = ((row - box.y) * box.width + (col - box.x)) * NUM_NEIGHBORS;
+                for (int k = 0; k < NUM_NEIGHBORS; k++, slot++) {
+                    if (buffers.isGraphEdge.get(slot) == 0) {
+                        continue;
+                    }
+
+                    Node cNode = graphNodes[states.get(getRegionIndex(col, row, region))];
+                    int nCol = col + NEIGHBORS[k].getCol();
+                    int nRow = row + NEIGHBORS[k].getRow();
+                    Node nNode = graphNodes[states.get(getRegionIndex(nCol, nRow, region))];
+                    if (alphaSink) {
+                        Graph.addEdge(cNode, nNode, buffers.capacity0A.get(slot), buffers.capacityA0.get(slot));
+                    } else {
+                        Graph.addEdge(cNode, nNode, buffers.capacityA0.get(slot), buffers.capacity0A.get(slot));
+                    }
+                    numEdges++;
+                }
+            }
+        }
+        /* -- end of the graph building. ready to call MaxFlowFinder */
+
+        recordGraphSize(numNodes, numEdges);
+        log.debug("Graph for a {} has {} nodes and {} edges.", a, numNodes, numEdges);
+
+        MaxFlowSolver maxFlowFinder = maxFlowEngine.create(graphNodes);
+        log.debug("Updating source and sink edges.");
+        /* Adding source and sink edges */
+        for (int rIndex = 0; rIndex < region.width * region.height; rIndex++) {
+            int state = states.get(rIndex);
+            if (isNode(state)) {
+                Node cNode = graphNodes[state];
+                double delta = penalties.get(rIndex);
+                if (alphaSink) {
+                    if (delta > 0) {
+                        maxFlowFinder.setTweights(cNode, delta, 0);
+                    } else {
+                        maxFlowFinder.setTweights(cNode, 0, -delta);
+                        energy += delta;
+                    }
+                } else {
+                    if (delta > 0) {
+                        maxFlowFinder.setTweights(cNode, 0, delta);
+                    } else {
+                        maxFlowFinder.setTweights(cNode, -delta, 0);
+                        energy += delta;
+                    }
+                }
+            }
+        }
+
+        if (graphListener != null) {
+            graphListener.onGraph(graphNodes);
+        }
+
+        log.debug("Finding a maxflow now..");
+        energy += maxFlowFinder.findMaxFlow();
+
+        log.debug("After addting maxflow, energy is {}", energy);
+        if (energy < energyOld) {
+            for (Node cNode : graphNodes) {
+                if (Graph.whatSegment(cNode) == termB) {
+                    labels.put((int) cNode.getIndex(), a);
+                }
+            }
+            return energy;
+        }
+        return energyOld;
+    }
+
+    private ExpansionBuffers takeExpansionBuffers(int numPixels, int numEdges) {
+        if (storageBackend == StorageBackend.HEAP) {
+            return new ExpansionBuffers(numPixels, numEdges, storageBackend, storageDir);
+        }
+
+        ExpansionBuffers buffers = idleExpansionBuffers.poll();
+        if (buffers == null) {
+            return new ExpansionBuffers(numPixels, numEdges, storageBackend, storageDir);
+        } else if (buffers.numPixels < numPixels || buffers.numEdges < numEdges) {
+            // Grown to the larger of both, so that alternating sizes do not allocate every time.
+            return new ExpansionBuffers(Math.max(buffers.numPixels, numPixels),
+                    Math.max(buffers.numEdges, numEdges), storageBackend, storageDir);
+        }
+        return buffers;
+    }
+
+    private void releaseExpansionBuffers(ExpansionBuffers buffers) {
+        if (storageBackend != StorageBackend.HEAP) {
+            idleExpansionBuffers.add(buffers);
+        }
+    }
+
+    /**
+     * Per-pixel and per-edge buffers of an expansion, in the StorageBackend of the minimizer.
+     * - states: number of the graph node of each pixel in the region, or ACTIVE_PIXEL, FIXED_PIXEL.
+     * - penalties: t-weight of each pixel in the region.
+     * - isGraphEdge, capacity0A, capacityA0: whether each edge of the box is a graph edge, and its capacities.
+     * - deltaCurrent, deltaNeighbor: amount to add to the penalties (t-weights) of the two ends of each edge.
+     * An expansion writes every slot of its region and box before reading it, so buffers are reused without clearing.
+     */
+    private static class ExpansionBuffers {
+        final int numPixels;
+        final int numEdges;
+        final IntBuffer states;
+        final DoubleBuffer penalties;
+        final ByteBuffer isGraphEdge;
+        final DoubleBuffer capacity0A;
+        final DoubleBuffer capacityA0;
+        final DoubleBuffer deltaCurrent;
+        final DoubleBuffer deltaNeighbor;
+
+        ExpansionBuffers(int numPixels, int numEdges, StorageBackend backend, File dir) {
+            this.numPixels = numPixels;
+            this.numEdges = numEdges;
+            this.states = backend.allocateInts(numPixels, dir);
+            this.penalties = backend.allocateDoubles(numPixels, dir);
+            this.isGraphEdge = backend.allocate(numEdges, dir);
+            this.capacity0A = backend.allocateDoubles(numEdges, dir);
+            this.capacityA0 = backend.allocateDoubles(numEdges, dir);
+            this.deltaCurrent = backend.allocateDoubles(numEdges, dir);
+            this.deltaNeighbor = backend.allocateDoubles(numEdges, dir);
+        }
+
+        void clearEdge(int slot) {
+            isGraphEdge.put(slot, (byte) 0);
+            deltaCurrent.put(slot, 0.0d);
+            deltaNeighbor.put(slot, 0.0d);
+        }
+    }
+
+    private interface BandTask {
+        /**
+         * Processes rows [rowStart, rowEnd) and returns the energy of the band.
+         */
+        double run(int rowStart, int rowEnd);
+    }
+
+    /**
+     * Splits rows of the area into bands and runs them on the graph build pool.
+     * Returns the energy of each band, so that the sum does not depend on the order the bands finished.
+     */
+    private double[] runInBands(Rect area, final BandTask task) {
+        int numBands = Math.max(1, Math.min(area.height, graphBuildParallelism * BANDS_PER_THREAD));
+        final double[] bandEnergy = new double[numBands];
+        final int rowsPerBand = (area.height + numBands - 1) / numBands;
+        final int rowStart = area.y;
+        final int rowLimit = area.y + area.height;
+
+        if (numBands == 1 || graphBuildParallelism <= 1) {
+            for (int band = 0; band < numBands; band++) {
+                int start = rowStart + band * rowsPerBand;
+                bandEnergy[band] = task.run(start, Math.min(start + rowsPerBand, rowLimit));
+            }
+            return bandEnergy;
+        }
+
+        List<Callable<Void>> bandTasks = new ArrayList<>(numBands);
+        for (int band = 0; band < numBands; band++) {
+            final int bandIndex = band;
+            bandTasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    int start = rowStart + bandIndex * rowsPerBand;
+                    bandEnergy[bandIndex] = task.run(start, Math.min(start + rowsPerBand, rowLimit));
+                    return null;
+                }
+            });
+        }
+
+        try {
+            for (Future<Void> future : getGraphBuildPool().invokeAll(bandTasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while building the graph.", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to build the graph.", e.getCause());
+        }
+        return bandEnergy;
+    }
+
+    private ForkJoinPool getGraphBuildPool() {
+        ForkJoinPool pool = GRAPH_BUILD_POOLS.get(graphBuildParallelism);
+        if (pool == null) {
+            ForkJoinPool created = new ForkJoinPool(graphBuildParallelism);
+            pool = GRAPH_BUILD_POOLS.putIfAbsent(graphBuildParallelism, created);
+            if (pool == null) {
+                pool = created;
+            } else {
+                created.shutdown();
+            }
+        }
+        return pool;
+    }
+
+    private double computeDataPenalties(short a, ShortBuffer labels, Rect region, int rowStart, int rowEnd,
+                                        ExpansionBuffers buffers) {
+        double energy = 0.0d;
+        for (int row = rowStart; row < rowEnd; row++) {
+            int index = row * width + region.x;
+            int rIndex = (row - region.y) * region.width;
+            for (int col = region.x; col < region.x + region.width; col++, index++, rIndex++) {
+                short cLabel = labels.get(index);
 
                 if (a == cLabel) {
-                    nodeArray[index] = ACTIVE_NODE;
-                    energy += BVZDataPenalty(cPoint, cLabel);
-                    log.trace("index {}: cLabel {} and a {} are equal. " +
-                            "Energy is updated to {}. Continuing.", index, cLabel, a, energy);
+                    buffers.states.put(rIndex, ACTIVE_PIXEL);
+                    buffers.penalties.put(rIndex, 0.0d);
+                    energy += BVZDataPenalty(index, cLabel);
                     continue;
                 }
 
-                nodeArray[index] = new Node(index);
-                double delta = BVZDataPenalty(cPoint, cLabel);
-                penaltyArray[index] = BVZDataPenalty(cPoint, a) - delta;
+                if (!isCandidate(index, a)) {
+                    // Pixel is held at its current label.
+                    buffers.states.put(rIndex, FIXED_PIXEL);
+                    buffers.penalties.put(rIndex, 0.0d);
+                    energy += BVZDataPenalty(index, cLabel);
+                    continue;
+                }
+
+                buffers.states.put(rIndex, GRAPH_PIXEL);
+                double delta = BVZDataPenalty(index, cLabel);
+                buffers.penalties.put(rIndex, BVZDataPenalty(index, a) - delta);
                 energy += delta;
-                log.trace("index {}: cLabel {}, a {}, energy {}.", index, cLabel, a, energy);
             }
         }
-        log.debug("Completed dataPenalty computation.");
+        return energy;
+    }
 
-        log.debug("Starting InteractionPenalty calculation.");
-        for (cPoint.setRow(0); cPoint.getRow() < height; cPoint.incrementRow()) {
-            // Warn: Original code uses index and increment it by 1 each loop.
-            for (cPoint.setCol(0); cPoint.getCol() < width; cPoint.incrementColumn()) {
-                int cIndex = cPoint.getOneDimensionalIndex(width);
-                short cLabel = labels[cIndex];
-                Node cNode = nodeArray[cIndex];
+    /**
+     * Interaction penalties of the edges starting in rows [rowStart, rowEnd) of the box.
+     *
+     * Most of the color distances needed here are between the current label of a pixel and a.
+     * They are computed a row at a time with ColorKernels, for the row and the row above (up neighbors),
+     * and only the remaining pairs are computed per pixel.
+     */
+    private double computeInteractionPenalties(short a, ShortBuffer labels, Rect region, Rect box,
+                                               int rowStart, int rowEnd, ExpansionBuffers buffers) {
+        double energy = 0.0d;
 
-                // Adding interactionug
-                for (Coordinate adjPoint : NEIGHBORS) {
-                    Coordinate nPoint =
-                            new Coordinate(cPoint.getCol() + adjPoint.getCol(), cPoint.getRow() + adjPoint.getRow());
+        // Up to the right neighbor of the last column.
+        int colEnd = Math.min(box.x + box.width + 1, width);
+        byte[] rowBuffer = new byte[width * NUM_CHANNEL];
+        byte[] aRowBuffer = new byte[width * NUM_CHANNEL];
+        double[] distanceToA = new double[width];
+        double[] distanceToAAbove = new double[width];
+        if (rowStart > 0) {
+            computeDistanceToA(a, labels, rowStart - 1, box.x, colEnd, rowBuffer, aRowBuffer, distanceToAAbove);
+        }
+
+        for (int row = rowStart; row < rowEnd; row++) {
+            if (row > rowStart) {
+                double[] previous = distanceToAAbove;
+                distanceToAAbove = distanceToA;
+                distanceToA = previous;
+            }
+            computeDistanceToA(a, labels, row, box.x, colEnd, rowBuffer, aRowBuffer, distanceToA);
+
+            int index = row * width + box.x;
+            int slot = (row - box.y) * box.width * NUM_NEIGHBORS;
+            for (int col = box.x; col < box.x + box.width; col++, index++) {
+                short cLabel = labels.get(index);
+                boolean cInRegion = isInRegion(col, row, region);
+                int cState = cInRegion ? buffers.states.get(getRegionIndex(col, row, region)) : FIXED_PIXEL;
 
-                    boolean skip = !(nPoint.greaterThanOrEqualTo(ZERO_COORDINATE)
-                            && nPoint.smallerThan(coordinateLimit));
+                // Adding interactionug
+                for (int k = 0; k < NUM_NEIGHBORS; k++, slot++) {
+                    buffers.clearEdge(slot);
+                    if (!hasNeighbor(col, row, k)) {
+                        continue;
+                    }
 
-                    if (skip) {
+                    int nCol = col + NEIGHBORS[k].getCol();
+                    int nRow = row + NEIGHBORS[k].getRow();
+                    boolean nInRegion = isInRegion(nCol, nRow, region);
+                    if (!cInRegion && !nInRegion) {
                         continue;
                     }
 
-                    int nIndex = nPoint.getOneDimensionalIndex(width);
-                    short nLabel = labels[nIndex];
-                    Node nNode = nodeArray[nIndex];
+                    int nIndex = index + neighborOffsets[k];
+                    short nLabel = labels.get(nIndex);
+                    int nState = nInRegion ? buffers.states.get(getRegionIndex(nCol, nRow, region)) : FIXED_PIXEL;
+
+                    // Neighbors are either on the same row or on the row above.
+                    double cDistance = distanceToA[col];
+                    double nDistance = nRow == row ? distanceToA[nCol] : distanceToAAbove[nCol];
 
-                    if (isNode(cNode) && isNode(nNode)) {
-                        double penalty00 = BVZInteractionPenalty(cPoint, nPoint, cLabel, nLabel);
-                        double penalty0A = BVZInteractionPenalty(cPoint, nPoint, cLabel, a);
-                        double penaltyA0 = BVZInteractionPenalty(cPoint, nPoint, a, nLabel);
+                    // Label of a pixel that is not in the graph. ACTIVE_PIXEL is already a.
+                    short cFixedLabel = cState == ACTIVE_PIXEL ? a : cLabel;
+                    short nFixedLabel = nState == ACTIVE_PIXEL ? a : nLabel;
+
+                    if (isNode(cState) && isNode(nState)) {
+                        double penalty00 =
+                                interactionPenalty(labels, cLabel, nLabel, a, index, cDistance, nIndex, nDistance);
+                        double penalty0A =
+                                interactionPenalty(labels, cLabel, a, a, index, cDistance, nIndex, nDistance);
+                        double penaltyA0 =
+                                interactionPenalty(labels, a, nLabel, a, index, cDistance, nIndex, nDistance);
 
                         double delta = penalty00 < penalty0A ? penalty00 : penalty0A;
                         if (delta > 0) {
-                            penaltyArray[cPoint.getOneDimensionalIndex(width)] -= delta;
+                            buffers.deltaCurrent.put(slot, -delta);
                             energy += delta;
                             penalty00 -= delta;
                             penalty0A -= delta;
@@ -238,7 +757,7 @@ abstract class EnergyMinimizer {
 
                         delta = penalty00 < penaltyA0 ? penalty00 : penaltyA0;
                         if (delta > 0) {
-                            penaltyArray[nPoint.getOneDimensionalIndex(width)] -= delta;
+                            buffers.deltaNeighbor.put(slot, -delta);
                             energy += delta;
                             penalty00 -= delta;
                             penaltyA0 -= delta;
@@ -248,71 +767,133 @@ abstract class EnergyMinimizer {
                            log.error("penalty00 is over the threshold. It is non-metric: " + penalty00);
                         }
 
-                        if (alphaSink) {
-                            Graph.addEdge(cNode, nNode, penalty0A, penaltyA0);
-                        } else {
-                            Graph.addEdge(cNode, nNode, penaltyA0, penalty0A);
-                        }
-                    } else if (isNode(cNode) && !isNode(nNode)) {
-                        // Case where nNode does not exist.
-                        double delta = BVZInteractionPenalty(cPoint, nPoint, cLabel, a);
-                        penaltyArray[cPoint.getOneDimensionalIndex(width)] -= delta;
+                        buffers.isGraphEdge.put(slot, (byte) 1);
+                        buffers.capacity0A.put(slot, penalty0A);
+                        buffers.capacityA0.put(slot, penaltyA0);
+                    } else if (isNode(cState) && !isNode(nState)) {
+                        // Case where nNode does not exist. It stays at nFixedLabel.
+                        double delta = interactionPenalty(labels, cLabel, nFixedLabel, a,
+                                index, cDistance, nIndex, nDistance);
+                        buffers.deltaCurrent.put(slot,
+                                interactionPenalty(labels, a, nFixedLabel, a, index, cDistance, nIndex, nDistance)
+                                        - delta);
                         energy += delta;
-                    } else if (!isNode(cNode) && isNode(nNode)) {
-                        // Case where nNode does not exist.
-                        double delta = BVZInteractionPenalty(cPoint, nPoint, a, nLabel);
-                        penaltyArray[nPoint.getOneDimensionalIndex(width)] -= delta;
+                    } else if (!isNode(cState) && isNode(nState)) {
+                        // Case where cNode does not exist. It stays at cFixedLabel.
+                        double delta = interactionPenalty(labels, cFixedLabel, nLabel, a,
+                                index, cDistance, nIndex, nDistance);
+                        buffers.deltaNeighbor.put(slot,
+                                interactionPenalty(labels, cFixedLabel, a, a, index, cDistance, nIndex, nDistance)
+                                        - delta);
                         energy += delta;
+                    } else {
+                        // Neither exists. Constant term -- zero when both are ACTIVE_PIXEL.
+                        energy += interactionPenalty(labels, cFixedLabel, nFixedLabel, a,
+                                index, cDistance, nIndex, nDistance);
                     }
                 }
             }
         }
-        log.debug("Completed Interaction Penalty calculation.");
-        /* -- end of the graph building. ready to call MaxFlowFinder */
+        return energy;
+    }
 
-        MaxFlowFinder maxFlowFinder = new MaxFlowFinder(nodeArray);
-        log.debug("Updating source and sink edges.");
-        /* Adding source and sink edges */
-        for (cPoint.setRow(0); cPoint.getRow() < height; cPoint.incrementRow()) {
-            for (cPoint.setCol(0); cPoint.getCol() < width; cPoint.incrementColumn()) {
-                Node cNode = nodeArray[cPoint.getOneDimensionalIndex(width)];
-                if (isNode(cNode)) {
-                    double delta = penaltyArray[cPoint.getOneDimensionalIndex(width)];
-                    if (alphaSink) {
-                        if (delta > 0) {
-                            maxFlowFinder.setTweights(cNode, delta, 0);
-                        } else {
-                            maxFlowFinder.setTweights(cNode, 0, -delta);
-                            energy += delta;
-                        }
-                    } else {
-                        if (delta > 0) {
-                            maxFlowFinder.setTweights(cNode, 0, delta);
-                        } else {
-                            maxFlowFinder.setTweights(cNode, -delta, 0);
-                            energy += delta;
-                        }
-                    }
-                }
-            }
+    /**
+     * distanceToA[col] = color distance between the current label and a, for columns [colStart, colEnd) of the row.
+     */
+    private void computeDistanceToA(short a, ShortBuffer labels, int row, int colStart, int colEnd, byte[] rowBuffer,
+                                    byte[] aRowBuffer, double[] distanceToA) {
+        int index = row * width + colStart;
+        int count = colEnd - colStart;
+        ColorKernels.gatherRow(stack, labels, index, count, rowBuffer);
+        stack.readRow(a, index, count, aRowBuffer, 0);
+        ColorKernels.distanceRow(rowBuffer, 0, aRowBuffer, 0, count, distanceToA, colStart);
+    }
+
+    /**
+     * Same as BVZInteractionPenalty(cIndex, nIndex, cLabel, nLabel), but takes the color distances
+     * between the current labels and a at both pixels from the row buffers.
+     */
+    private double interactionPenalty(ShortBuffer labels, short cLabel, short nLabel, short a,
+                                      int cIndex, double cDistanceToA, int nIndex, double nDistanceToA) {
+        if (cLabel == nLabel) {
+            return 0.0d;
         }
 
-        log.debug("Finding a maxflow now..");
-        energy += maxFlowFinder.findMaxFlow();
+        return toInteractionPenalty(colorDistance(labels, cLabel, nLabel, a, cIndex, cDistanceToA)
+                + colorDistance(labels, cLabel, nLabel, a, nIndex, nDistanceToA));
+    }
 
-        log.debug("After addting maxflow, energy is {}", energy);
-        if (energy < energyOld) {
-            for (cPoint.setRow(0); cPoint.getRow() < height; cPoint.incrementRow()) {
-                for (cPoint.setCol(0); cPoint.getCol() < width; cPoint.incrementColumn()) {
-                    Node cNode = nodeArray[cPoint.getOneDimensionalIndex(width)];
+    private double colorDistance(ShortBuffer labels, short x, short y, short a, int index, double distanceToA) {
+        short label = labels.get(index);
+        if ((x == label && y == a) || (x == a && y == label)) {
+            return distanceToA;
+        }
+        return stack.distance(x, y, index);
+    }
 
-                    if (isNode(cNode) && Graph.whatSegment(cNode) == termB) {
-                        labels[cPoint.getOneDimensionalIndex(width)] = a;
+    /**
+     * Adds edge deltas to the penalty of each pixel in the region.
+     * A pixel is the current end of its own edges, and the neighbor end of
+     * the right edge of the pixel on its left and the up edge of the pixel below it.
+     */
+    private void gatherEdgePenalties(Rect region, Rect box, int rowStart, int rowEnd, ExpansionBuffers buffers) {
+        for (int row = rowStart; row < rowEnd; row++) {
+            for (int col = region.x; col < region.x + region.width; col++) {
+                int rIndex = (row - region.y) * region.width + (col - region.x);
+                double delta = 0.0d;
+                for (int k = 0; k < NUM_NEIGHBORS; k++) {
+                    delta += buffers.deltaCurrent.get(getEdgeSlot(box, col, row, k));
+
+                    // The pixel that has this pixel as its k-th neighbor.
+                    int sCol = col - NEIGHBORS[k].getCol();
+                    int sRow = row - NEIGHBORS[k].getRow();
+                    if (sCol >= box.x && sCol < box.x + box.width && sRow >= box.y && sRow < box.y + box.height) {
+                        delta += buffers.deltaNeighbor.get(getEdgeSlot(box, sCol, sRow, k));
                     }
                 }
+                buffers.penalties.put(rIndex, buffers.penalties.get(rIndex) + delta);
             }
-            return energy;
         }
-        return energyOld;
+    }
+
+    private int getEdgeSlot(Rect box, int col, int row, int k) {
+        return ((row - box.y) * box.width + (col - box.x)) * NUM_NEIGHBORS + k;
+    }
+
+    private boolean isInRegion(int col, int row, Rect region) {
+        return col >= region.x && col < region.x + region.width
+                && row >= region.y && row < region.y + region.height;
+    }
+
+    private int getRegionIndex(int col, int row, Rect region) {
+        return (row - region.y) * region.width + (col - region.x);
+    }
+
+    private synchronized void recordGraphSize(int numNodes, int numEdges) {
+        expandCount++;
+        graphNodeCount += numNodes;
+        graphEdgeCount += numEdges;
+    }
+
+    synchronized void logGraphSizeReport() {
+        if (expandCount == 0) {
+            return;
+        }
+
+        long fullEdgeCount = 2L * width * height - width - height;
+        log.info("Average graph over {} expansions: {} nodes ({}% of pixels), {} edges ({}% of full grid).",
+                expandCount, graphNodeCount / expandCount,
+                String.format("%.1f", 100.0 * graphNodeCount / expandCount / (width * height)),
+                graphEdgeCount / expandCount,
+                String.format("%.1f", 100.0 * graphEdgeCount / expandCount / fullEdgeCount));
+    }
+
+    /**
+     * Sees the expansion graphs, e.g. to replay them on other max-flow engines. Nodes already have their terminal
+     * capacities, and are only valid during the call. Called on the solver thread, or the threads of the speculative
+     * expansions.
+     */
+    interface GraphListener {
+        void onGraph(Node[] graphNodes);
     }
 }
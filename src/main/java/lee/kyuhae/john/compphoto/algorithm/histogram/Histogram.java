@@ -31,38 +31,93 @@ class Histogram {
         private int[] histogram;
         @Getter private double variance;
 
+        /**
+         * Running sums over the data points to keep the variance without visiting all bins.
+         * Each data point contributes with the upper and the lower edges of its bin.
+         */
+        private double upperSum = 0.0;
+        private double lowerSum = 0.0;
+        private double upperLowerSum = 0.0;
+
         Channel() {
             this.histogram = new int[NUM_BINS];
             Arrays.fill(histogram, 0);
         }
 
-        void addValue(int val) {
-            if (val < MIN || val > MAX) {
-                log.error("A given data with value " + val + ".");
-                throw new IllegalArgumentException("Data should be between " + MIN + " and " + MAX
-                        + ". Given " + val + ".");
-            }
+        void clear() {
+            Arrays.fill(histogram, 0);
+            totalNumDataPoint = 0;
+            peakBinIdx = -1;
+            variance = 0.0;
+            upperSum = 0.0;
+            lowerSum = 0.0;
+            upperLowerSum = 0.0;
+        }
 
-            int binIdx = (int) ( val / BIN_SIZE );
+        void addValue(int val) {
+            int binIdx = toBinIdx(val);
             histogram[binIdx]++;
             totalNumDataPoint++;
+            updateSums(binIdx, 1);
 
             if (peakBinIdx < 0 || histogram[binIdx] > histogram[peakBinIdx]) {
                 peakBinIdx = binIdx;
             }
         }
 
+        void removeValue(int val) {
+            int binIdx = toBinIdx(val);
+            if (histogram[binIdx] <= 0) {
+                log.error("Removing value " + val + " that has never been added.");
+                throw new IllegalStateException("Bin " + binIdx + " is already empty. Given " + val + ".");
+            }
+
+            histogram[binIdx]--;
+            totalNumDataPoint--;
+            updateSums(binIdx, -1);
+
+            if (binIdx == peakBinIdx) {
+                // Only the peak bin got smaller. Another bin may be the peak now.
+                for (int i = 0; i < NUM_BINS; i++) {
+                    if (histogram[i] > histogram[peakBinIdx]) {
+                        peakBinIdx = i;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Same as
+         * variance = sum of histogram[i] * ((i + 1) * BIN_SIZE - mean) * (i * BIN_SIZE - mean)
+         * where mean = sum of histogram[i] * (i + 1) * BIN_SIZE / totalNumDataPoint,
+         * but computed from the running sums.
+         */
         void computeVariance() {
-            double mean = 0.0;
-            for (int i = 0; i < NUM_BINS; i++) {
-                mean += histogram[i] * ((i + 1) * BIN_SIZE);
+            if (totalNumDataPoint == 0) {
+                variance = 0.0;
+                return;
             }
-            mean /= totalNumDataPoint;
 
-            variance = 0.0;
-            for (int i = 0; i < NUM_BINS; i++) {
-                variance += histogram[i] * (((i + 1) * BIN_SIZE - mean) * (i * BIN_SIZE - mean));
+            double mean = upperSum / totalNumDataPoint;
+            variance = upperLowerSum - mean * lowerSum;
+        }
+
+        private int toBinIdx(int val) {
+            if (val < MIN || val > MAX) {
+                log.error("A given data with value " + val + ".");
+                throw new IllegalArgumentException("Data should be between " + MIN + " and " + MAX
+                        + ". Given " + val + ".");
             }
+
+            return (int) ( val / BIN_SIZE );
+        }
+
+        private void updateSums(int binIdx, int count) {
+            double upper = (binIdx + 1) * BIN_SIZE;
+            double lower = binIdx * BIN_SIZE;
+            upperSum += count * upper;
+            lowerSum += count * lower;
+            upperLowerSum += count * upper * lower;
         }
 
         double getProbability(int val) {
@@ -86,6 +141,18 @@ class Histogram {
             this.bChannel.addValue(b);
         }
 
+        void removeValues(int r, int g, int b) {
+            this.rChannel.removeValue(r);
+            this.gChannel.removeValue(g);
+            this.bChannel.removeValue(b);
+        }
+
+        void clear() {
+            this.rChannel.clear();
+            this.gChannel.clear();
+            this.bChannel.clear();
+        }
+
         void computeVariance() {
             this.rChannel.computeVariance();
             this.gChannel.computeVariance();
@@ -104,42 +171,165 @@ class Histogram {
     }
 
     private static final int MIN_REQUIRED_NUM_IMAGES = 2;
-    private final Pixel[] pixels;
+    private static final int NUM_CHANNEL = ImageStack.NUM_CHANNEL;
     private final int width, height;
-    private final Mat[] images;
+    @Getter private final ImageStack stack;
 
-    Histogram(final Mat[] images) {
+    /**
+     * Histogram of every pixel, or null when they are not kept.
+     * When not kept, the histogram of a pixel is built again from the stack whenever it is needed,
+     * so that the histograms do not take heap that grows with the image size.
+     */
+    private final Pixel[] pixels;
+
+    Histogram(final ImageStack stack) {
+        this(stack, true);
+    }
+
+    /**
+     * Pixel histograms take about 500 bytes per pixel, far more than the stack they are built from.
+     * They are only kept along with a plain heap stack, where they make replaceImage() incremental.
+     * With an off-heap StorageBackend or a StackCompression, the memory matters more.
+     */
+    static boolean keepsPixels(SolverOptions options) {
+        return options.getStorageBackend() == StorageBackend.HEAP
+                && options.getStackCompression() == StackCompression.NONE;
+    }
+
+    Histogram(final ImageStack stack, boolean keepPixels) {
         // Check that at least MIN_REQUIRED_NUM_IMAGES are given.
-        if (images.length < MIN_REQUIRED_NUM_IMAGES) {
+        if (stack.size() < MIN_REQUIRED_NUM_IMAGES) {
             throw new IllegalArgumentException("Mininum of " + MIN_REQUIRED_NUM_IMAGES +
-                    " images required. Given " + images.length + " images.");
+                    " images required. Given " + stack.size() + " images.");
         }
 
         // Assuming that all images are of the same height and same weights.
-        width = images[0].width();
-        height = images[0].height();
-        this.pixels = new Pixel[width * height];
-        this.images = images;
+        width = stack.getWidth();
+        height = stack.getHeight();
+        this.pixels = keepPixels ? new Pixel[width * height] : null;
+        this.stack = stack;
 
+        if (pixels != null) {
+            for (int pixelLocation = 0; pixelLocation < pixels.length; pixelLocation++) {
+                pixels[pixelLocation] = new Pixel();
+            }
+        }
     }
 
     void compute() {
-        for (int col = 0; col < width; col++) {
+        for (int image = 0; image < stack.size(); image++) {
+            addImage(image);
+        }
+        finish();
+    }
+
+    /**
+     * Adds the values of the image in the stack to every pixel histogram, a row at a time.
+     */
+    void addImage(int image) {
+        if (pixels == null) {
+            return;
+        }
+
+        byte[] values = new byte[width * NUM_CHANNEL];
+        for (int row = 0; row < height; row++) {
+            stack.readRow(image, row * width, width, values, 0);
+            addValues(values, row * width, width);
+        }
+    }
+
+    /**
+     * Same as addImage(int), from values of the whole image in the layout of ImageStack.read(Mat).
+     * Nothing else is read, so that images can be added as they arrive. See StreamingStackBuilder.
+     */
+    void addImage(byte[] values) {
+        if (pixels == null) {
+            return;
+        }
+
+        addValues(values, 0, pixels.length);
+    }
+
+    private void addValues(byte[] values, int from, int count) {
+        for (int n = 0, i = 0; n < count; n++, i += NUM_CHANNEL) {
+            pixels[from + n].addValues(values[i] & 0xFF, values[i + 1] & 0xFF, values[i + 2] & 0xFF);
+        }
+    }
+
+    /**
+     * Completes the pixel histograms once every image has been added.
+     */
+    void finish() {
+        if (pixels == null) {
+            return;
+        }
+
+        for (Pixel pixel : pixels) {
+            pixel.computeVariance();
+        }
+    }
+
+    /**
+     * Replaces the image at slot with the given image, and updates every pixel histogram
+     * by removing values of the old image and adding values of the new one.
+     * Cost is proportional to the number of pixels, not to the number of images.
+     * The stack is updated as well.
+     */
+    void replaceImage(int slot, Mat image) {
+        byte[] newValues = stack.read(image);
+        if (pixels != null) {
+            byte[] oldValues = new byte[width * NUM_CHANNEL];
             for (int row = 0; row < height; row++) {
-                int pixelLocation = row * width + col;
-                pixels[pixelLocation] = new Pixel();
-                for (Mat image : images) {
-                    // openCV expects row first.
-                    double[] pixelValues = image.get(row, col);
-                    pixels[pixelLocation].addValues(pixelValues);
+                stack.readRow(slot, row * width, width, oldValues, 0);
+                for (int col = 0, i = 0, j = row * width * NUM_CHANNEL; col < width;
+                     col++, i += NUM_CHANNEL, j += NUM_CHANNEL) {
+                    Pixel pixel = pixels[row * width + col];
+                    pixel.removeValues(oldValues[i] & 0xFF, oldValues[i + 1] & 0xFF, oldValues[i + 2] & 0xFF);
+                    pixel.addValues(newValues[j] & 0xFF, newValues[j + 1] & 0xFF, newValues[j + 2] & 0xFF);
+                    pixel.computeVariance();
                 }
-                pixels[pixelLocation].computeVariance();
             }
         }
+
+        stack.write(slot, newValues);
     }
 
     Pixel getPixel(int col, int row) {
+        if (pixels == null) {
+            throw new IllegalStateException("Pixel histograms are not kept.");
+        }
+
         int pixelLocation = row * width + col;
         return pixels[pixelLocation];
     }
+
+    /**
+     * out[d][outOffset + n] = probability of the values of the image d at the pixel (from + n),
+     * for count pixels and every image in the stack.
+     */
+    void getProbabilities(int from, int count, double[][] out, int outOffset) {
+        byte[][] values = new byte[stack.size()][count * NUM_CHANNEL];
+        for (int image = 0; image < stack.size(); image++) {
+            stack.readRow(image, from, count, values[image], 0);
+        }
+
+        Pixel scratch = pixels == null ? new Pixel() : null;
+        for (int n = 0, i = 0; n < count; n++, i += NUM_CHANNEL) {
+            Pixel pixel;
+            if (pixels != null) {
+                pixel = pixels[from + n];
+            } else {
+                pixel = scratch;
+                pixel.clear();
+                for (byte[] imageValues : values) {
+                    pixel.addValues(imageValues[i] & 0xFF, imageValues[i + 1] & 0xFF, imageValues[i + 2] & 0xFF);
+                }
+            }
+
+            for (int image = 0; image < values.length; image++) {
+                out[image][outOffset + n] = pixel.getProbability(values[image][i] & 0xFF,
+                        values[image][i + 1] & 0xFF, values[image][i + 2] & 0xFF);
+            }
+        }
+    }
 }
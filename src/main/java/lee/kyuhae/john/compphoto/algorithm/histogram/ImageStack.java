@@ -0,0 +1,188 @@
+package lee.kyuhae.john.compphoto.algorithm.histogram;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * ImageStack
+ *
+ * Pixel values of all images copied out of the Mats once, so that penalty computations read plain arrays
+ * instead of calling Mat.get for every pixel.
+ * Values are stored as in the Mat -- 3 channels per pixel, row major.
+ *
+ * Values are on the heap or in ByteBuffers, depending on the StorageBackend, or compressed.
+ * See CompressedImageStack.
+ * Bulk access goes through readRow, which copies a row of values into a buffer of the caller.
+ */
+@Slf4j
+abstract class ImageStack {
+    static final int NUM_CHANNEL = 3;
+
+    @Getter private final int width;
+    @Getter private final int height;
+    private final int numImages;
+
+    ImageStack(int width, int height, int numImages) {
+        this.width = width;
+        this.height = height;
+        this.numImages = numImages;
+    }
+
+    static ImageStack create(Mat[] images, StorageBackend backend, File dir) {
+        ImageStack stack = backend == StorageBackend.HEAP
+                ? new HeapImageStack(images[0].width(), images[0].height(), images.length)
+                : new BufferImageStack(images[0].width(), images[0].height(), images.length, backend, dir);
+        for (int i = 0; i < images.length; i++) {
+            stack.replace(i, images[i]);
+        }
+        return stack;
+    }
+
+    /**
+     * Stack of the storage backend, or a CompressedImageStack on the heap when SolverOptions.stackCompression is set.
+     */
+    static ImageStack create(Mat[] images, SolverOptions options) {
+        ImageStack stack = create(images[0].width(), images[0].height(), images.length, options);
+        for (int i = 0; i < images.length; i++) {
+            stack.replace(i, images[i]);
+        }
+        logCompression(stack, options);
+        return stack;
+    }
+
+    /**
+     * Empty stack of the options, to be filled an image at a time with replace().
+     */
+    static ImageStack create(int width, int height, int numImages, SolverOptions options) {
+        if (options.getStackCompression() == StackCompression.NONE) {
+            return options.getStorageBackend() == StorageBackend.HEAP
+                    ? new HeapImageStack(width, height, numImages)
+                    : new BufferImageStack(width, height, numImages, options.getStorageBackend(),
+                            options.getStorageDir());
+        }
+
+        return new CompressedImageStack(width, height, numImages,
+                options.getStackCompression() == StackCompression.DELTA, options.getStackCacheBytes());
+    }
+
+    static void logCompression(ImageStack stack, SolverOptions options) {
+        if (stack instanceof CompressedImageStack) {
+            long rawBytes = (long) stack.getWidth() * stack.getHeight() * NUM_CHANNEL * stack.size();
+            log.info("Compressed the stack of {} bytes into {} bytes ({}).", rawBytes,
+                    ((CompressedImageStack) stack).getCompressedBytes(), options.getStackCompression());
+        }
+    }
+
+    int size() {
+        return numImages;
+    }
+
+    void replace(int slot, Mat image) {
+        write(slot, read(image));
+    }
+
+    /**
+     * Value of the channel at the pixel index of the image, 0 - 255.
+     */
+    abstract int getValue(int image, int index, int channel);
+
+    /**
+     * Copies values of count pixels starting at the pixel index of the image into out, starting at outOffset.
+     * outOffset is in pixels.
+     */
+    abstract void readRow(int image, int index, int count, byte[] out, int outOffset);
+
+    /**
+     * Replaces all values of the image. values are in the layout of read(Mat).
+     */
+    abstract void write(int image, byte[] values);
+
+    /**
+     * Euclidean RGB distance between the images x and y at the pixel index.
+     */
+    double distance(int x, int y, int index) {
+        int d0 = getValue(x, index, 0) - getValue(y, index, 0);
+        int d1 = getValue(x, index, 1) - getValue(y, index, 1);
+        int d2 = getValue(x, index, 2) - getValue(y, index, 2);
+        return Math.sqrt(d0 * d0 + d1 * d1 + d2 * d2);
+    }
+
+    byte[] read(Mat image) {
+        if (image.width() != width || image.height() != height || image.type() != CvType.CV_8UC3) {
+            throw new IllegalArgumentException("Image should be " + width + "x" + height + " CV_8UC3. Given "
+                    + image.width() + "x" + image.height() + " of type " + image.type() + ".");
+        }
+
+        // Bulk read instead of calling get(row, col) per pixel.
+        Mat continuous = image.isContinuous() ? image : image.clone();
+        byte[] values = new byte[width * height * NUM_CHANNEL];
+        continuous.get(0, 0, values);
+        return values;
+    }
+
+    private static class HeapImageStack extends ImageStack {
+        private final byte[][] pixels;
+
+        HeapImageStack(int width, int height, int numImages) {
+            super(width, height, numImages);
+            this.pixels = new byte[numImages][];
+        }
+
+        @Override
+        int getValue(int image, int index, int channel) {
+            return pixels[image][index * NUM_CHANNEL + channel] & 0xFF;
+        }
+
+        @Override
+        void readRow(int image, int index, int count, byte[] out, int outOffset) {
+            System.arraycopy(pixels[image], index * NUM_CHANNEL, out, outOffset * NUM_CHANNEL, count * NUM_CHANNEL);
+        }
+
+        @Override
+        void write(int image, byte[] values) {
+            pixels[image] = values;
+        }
+
+        @Override
+        double distance(int x, int y, int index) {
+            return ColorKernels.distance(pixels[x], pixels[y], index);
+        }
+    }
+
+    private static class BufferImageStack extends ImageStack {
+        private final ByteBuffer[] pixels;
+
+        BufferImageStack(int width, int height, int numImages, StorageBackend backend, File dir) {
+            super(width, height, numImages);
+            this.pixels = new ByteBuffer[numImages];
+            for (int i = 0; i < numImages; i++) {
+                pixels[i] = backend.allocate((long) width * height * NUM_CHANNEL, dir);
+            }
+        }
+
+        @Override
+        int getValue(int image, int index, int channel) {
+            return pixels[image].get(index * NUM_CHANNEL + channel) & 0xFF;
+        }
+
+        @Override
+        void readRow(int image, int index, int count, byte[] out, int outOffset) {
+            // Duplicate keeps the position per caller, so that rows can be read from several threads.
+            ByteBuffer buffer = pixels[image].duplicate();
+            buffer.position(index * NUM_CHANNEL);
+            buffer.get(out, outOffset * NUM_CHANNEL, count * NUM_CHANNEL);
+        }
+
+        @Override
+        void write(int image, byte[] values) {
+            ByteBuffer buffer = pixels[image].duplicate();
+            buffer.clear();
+            buffer.put(values);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package lee.kyuhae.john.compphoto.algorithm.histogram;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+
+/**
+ * LabelConstraints
+ *
+ * Hard constraints painted by the user.
+ * - use: the pixel must take the label.
+ * - never: the pixel must not take the label.
+ * A later constraint on the same pixel and label overrides the earlier one.
+ *
+ * Violating labels get INFINITE_CAPACITY as their data penalty, which becomes an infinite t-weight in BVZExpand.
+ * use labels are allocated in the StorageBackend with the first use constraint.
+ */
+class LabelConstraints {
+    private static final short NO_LABEL = -1;
+
+    private final int numPixels;
+    private final StorageBackend backend;
+    private final File dir;
+    private ShortBuffer useLabels = null;
+    private final BitSet[] neverLabels;
+    private final BitSet constrained;
+
+    LabelConstraints(int numLabels, int numPixels, StorageBackend backend, File dir) {
+        this.numPixels = numPixels;
+        this.backend = backend;
+        this.dir = dir;
+        this.neverLabels = new BitSet[numLabels];
+        this.constrained = new BitSet(numPixels);
+    }
+
+    void use(int index, short label) {
+        if (useLabels == null) {
+            useLabels = backend.allocateShorts(numPixels, dir);
+            for (int i = 0; i < numPixels; i++) {
+                useLabels.put(i, NO_LABEL);
+            }
+        }
+        useLabels.put(index, label);
+        if (neverLabels[label] != null) {
+            neverLabels[label].clear(index);
+        }
+        constrained.set(index);
+    }
+
+    void never(int index, short label) {
+        if (!allowsAnotherLabel(index, label)) {
+            throw new IllegalArgumentException("Pixel " + index + " would not be allowed any label without label "
+                    + label + ".");
+        }
+
+        if (getUseLabel(index) == label) {
+            useLabels.put(index, NO_LABEL);
+        }
+        if (neverLabels[label] == null) {
+            neverLabels[label] = new BitSet(numPixels);
+        }
+        neverLabels[label].set(index);
+        constrained.set(index);
+    }
+
+    boolean allows(int index, short label) {
+        if (!constrained.get(index)) {
+            return true;
+        }
+
+        short useLabel = getUseLabel(index);
+        if (useLabel != NO_LABEL && useLabel != label) {
+            return false;
+        }
+        return neverLabels[label] == null || !neverLabels[label].get(index);
+    }
+
+    /**
+     * Whether the pixel may take a label other than the given one. A never constraint of the given label would
+     * leave the pixel without any label otherwise.
+     */
+    boolean allowsAnotherLabel(int index, short label) {
+        short useLabel = getUseLabel(index);
+        if (useLabel != NO_LABEL && useLabel != label) {
+            return true;
+        }
+        for (short other = 0; other < neverLabels.length; other++) {
+            if (other != label && (neverLabels[other] == null || !neverLabels[other].get(index))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private short getUseLabel(int index) {
+        return useLabels == null ? NO_LABEL : useLabels.get(index);
+    }
+
+    boolean isConstrained(int index) {
+        return constrained.get(index);
+    }
+
+    /**
+     * Digest of all the constraints, or an empty string when there are none.
+     * Two sets of constraints with the same signature constrain every pixel the same way.
+     */
+    String getSignature() {
+        if (constrained.isEmpty()) {
+            return "";
+        }
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + Short.BYTES);
+        for (int index = constrained.nextSetBit(0); index >= 0; index = constrained.nextSetBit(index + 1)) {
+            buffer.clear();
+            buffer.putInt(index).putShort(getUseLabel(index));
+            digest.update(buffer.array());
+        }
+        for (int label = 0; label < neverLabels.length; label++) {
+            if (neverLabels[label] != null && !neverLabels[label].isEmpty()) {
+                buffer.clear();
+                buffer.putInt(label);
+                digest.update(buffer.array(), 0, Integer.BYTES);
+                digest.update(neverLabels[label].toByteArray());
+            }
+        }
+
+        StringBuilder signature = new StringBuilder();
+        for (byte b : digest.digest()) {
+            signature.append(String.format("%02x", b));
+        }
+        return signature.toString();
+    }
+}
@@ -0,0 +1,17 @@
+package lee.kyuhae.john.compphoto.algorithm.histogram;
+
+/**
+ * How labels are initialized before the minimization.
+ * - NONE: starts from the given labels, all zeros from ImageProcessor. (Same as the original algorithm)
+ * - DATA_COST_ARGMIN: label with the lowest data cost at each pixel.
+ * - DOWNSCALED_SOLVE: labels of a solve on downscaled images, upsampled to the full size.
+ * - PRIOR_RUN: labels of the checkpoint file in SolverOptions.priorLabelsFile, e.g. of a previous run.
+ *
+ * Constrained pixels always start from a label that their constraints allow.
+ */
+public enum LabelInitialization {
+    NONE,
+    DATA_COST_ARGMIN,
+    DOWNSCALED_SOLVE,
+    PRIOR_RUN
+}
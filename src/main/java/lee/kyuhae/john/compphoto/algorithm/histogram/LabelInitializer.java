@@ -0,0 +1,155 @@
+package lee.kyuhae.john.compphoto.algorithm.histogram;
+
+import lombok.extern.slf4j.Slf4j;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ShortBuffer;
+
+/**
+ * LabelInitializer
+ *
+ * Sets the starting labels of a minimizer according to LabelInitialization.
+ */
+@Slf4j
+class LabelInitializer {
+    /**
+     * Longer side of the images for DOWNSCALED_SOLVE.
+     */
+    private static final int DOWNSCALED_SIZE = 128;
+
+    private final MLOEnergyMinimizer minimizer;
+    private final SolverOptions options;
+
+    LabelInitializer(MLOEnergyMinimizer minimizer, SolverOptions options) {
+        this.minimizer = minimizer;
+        this.options = options;
+    }
+
+    void initialize() {
+        switch (options.getLabelInitialization()) {
+            case NONE:
+                break;
+            case DATA_COST_ARGMIN:
+                initializeWithArgmin();
+                break;
+            case DOWNSCALED_SOLVE:
+                initializeWithDownscaledSolve();
+                break;
+            case PRIOR_RUN:
+                initializeWithPriorRun(options.getPriorLabelsFile());
+                break;
+            default:
+                throw new IllegalStateException("Unknown label initialization " + options.getLabelInitialization());
+        }
+
+        // Constraints may not allow the starting label.
+        ShortBuffer labels = minimizer.labels;
+        for (int index = 0; index < minimizer.width * minimizer.height; index++) {
+            if (minimizer.BVZDataPenalty(index, labels.get(index)) >= EnergyMinimizer.INFINITE_CAPACITY) {
+                labels.put(index, argmin(index));
+            }
+        }
+    }
+
+    private void initializeWithArgmin() {
+        ShortBuffer labels = minimizer.labels;
+        for (int index = 0; index < minimizer.width * minimizer.height; index++) {
+            labels.put(index, argmin(index));
+        }
+    }
+
+    private short argmin(int index) {
+        short best = 0;
+        double bestCost = Double.POSITIVE_INFINITY;
+        for (short d = 0; d < minimizer.numImages; d++) {
+            double cost = minimizer.BVZDataPenalty(index, d);
+            if (cost < bestCost) {
+                best = d;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    private void initializeWithDownscaledSolve() {
+        int width = minimizer.width;
+        int height = minimizer.height;
+        double scale = Math.max(width, height) / (double) DOWNSCALED_SIZE;
+        if (scale < 2) {
+            log.debug("Images are already small. Initializing with the data cost argmin instead.");
+            initializeWithArgmin();
+            return;
+        }
+
+        int smallWidth = Math.max(1, (int) Math.round(width / scale));
+        int smallHeight = Math.max(1, (int) Math.round(height / scale));
+        Mat[] smallImages = new Mat[minimizer.numImages];
+        PreparedStack prepared = minimizer.prepared;
+        for (int i = 0; i < smallImages.length; i++) {
+            Mat image = prepared.getImage(i);
+            smallImages[i] = new Mat();
+            Imgproc.resize(image, smallImages[i], new Size(smallWidth, smallHeight), 0, 0, Imgproc.INTER_AREA);
+            if (!prepared.hasImages()) {
+                // Decoded from the stack only for the resize.
+                image.release();
+            }
+        }
+
+        // Same solve without checkpoints, starting from the argmin.
+        SolverOptions smallOptions = new SolverOptions()
+                .setExpansionFlag(options.isExpansionFlag())
+                .setPottsInteractionEnergyConstant(options.getPottsInteractionEnergyConstant())
+                .setRegularInteractionEnergyConstant(options.getRegularInteractionEnergyConstant())
+                .setInteractionPenaltyCoefficient(options.getInteractionPenaltyCoefficient())
+                .setGraphBuildParallelism(options.getGraphBuildParallelism())
+                .setCandidatePruning(options.getCandidatePruning())
+                .setPruningDataCostThreshold(options.getPruningDataCostThreshold())
+                .setPruningTopK(options.getPruningTopK())
+                .setMaxFlowEngine(options.getMaxFlowEngine())
+                .setLabelInitialization(LabelInitialization.DATA_COST_ARGMIN);
+        short[] smallLabels = new short[smallWidth * smallHeight];
+        new MLOEnergyMinimizer(smallImages, smallLabels, smallOptions).compute();
+
+        // Nearest neighbor upsampling.
+        ShortBuffer labels = minimizer.labels;
+        for (int row = 0; row < height; row++) {
+            int smallRow = Math.min((int) (row / scale), smallHeight - 1);
+            for (int col = 0; col < width; col++) {
+                int smallCol = Math.min((int) (col / scale), smallWidth - 1);
+                labels.put(row * width + col, smallLabels[smallRow * smallWidth + smallCol]);
+            }
+        }
+    }
+
+    private void initializeWithPriorRun(File priorLabelsFile) {
+        if (priorLabelsFile == null) {
+            throw new IllegalStateException("PRIOR_RUN initialization requires SolverOptions.priorLabelsFile.");
+        }
+
+        MinimizerCheckpoint checkpoint;
+        try {
+            checkpoint = MinimizerCheckpoint.read(priorLabelsFile);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to read prior labels from " + priorLabelsFile + ".", e);
+        }
+
+        if (checkpoint.getWidth() != minimizer.width || checkpoint.getHeight() != minimizer.height) {
+            throw new IllegalStateException("Prior labels " + priorLabelsFile + " are for "
+                    + checkpoint.getWidth() + "x" + checkpoint.getHeight() + " images. Given "
+                    + minimizer.width + "x" + minimizer.height + ".");
+        }
+
+        short[] priorLabels = checkpoint.getLabels();
+        for (int index = 0; index < priorLabels.length; index++) {
+            if (priorLabels[index] < 0 || priorLabels[index] >= minimizer.numImages) {
+                throw new IllegalStateException("Prior labels " + priorLabelsFile + " have label "
+                        + priorLabels[index] + ". Given " + minimizer.numImages + " images.");
+            }
+        }
+        EnergyMinimizer.copyLabels(ShortBuffer.wrap(priorLabels), minimizer.labels);
+    }
+}
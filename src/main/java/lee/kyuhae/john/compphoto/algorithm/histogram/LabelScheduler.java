@@ -0,0 +1,191 @@
+package lee.kyuhae.john.compphoto.algorithm.histogram;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * LabelScheduler
+ *
+ * Decides which labels are expanded in a sweep of the energy minimizer and in which order.
+ * - Labels are ordered by the energy decrease of their last expansion (largest first).
+ *   Labels that have never been expanded come first, in index order.
+ * - A label whose last backOffThreshold expansions did not lower the energy is skipped,
+ *   but it is re-probed once every reprobeInterval sweeps.
+ * - A label that has been expanded without gain since the last gain of any label is skipped,
+ *   since expanding it again on the same labels would not change anything.
+ *
+ * The minimization is converged when every label has been expanded without gain since the last gain.
+ * This is the same criteria as the stepCounter in the original fixed order loop.
+ */
+@Slf4j
+class LabelScheduler {
+    static final int BACK_OFF_THRESHOLD_DEFAULT = 2;
+    static final int REPROBE_INTERVAL_DEFAULT = 3;
+
+    @Getter private final int numLabels;
+    private final int backOffThreshold;
+    private final int reprobeInterval;
+
+    private final double[] lastGain;
+    private final double[] totalGain;
+    private final int[] expansionCount;
+    private final int[] consecutiveNoOps;
+    private final int[] lastProbedSweep;
+    private final BitSet idleSinceLastGain;
+
+    @Getter private int sweep = 0;
+    @Getter private int totalExpansions = 0;
+
+    LabelScheduler(int numLabels) {
+        this(numLabels, BACK_OFF_THRESHOLD_DEFAULT, REPROBE_INTERVAL_DEFAULT);
+    }
+
+    LabelScheduler(int numLabels, int backOffThreshold, int reprobeInterval) {
+        if (numLabels < 1 || backOffThreshold < 1 || reprobeInterval < 1) {
+            throw new IllegalArgumentException("Received numLabels: " + numLabels
+                    + ", backOffThreshold: " + backOffThreshold + ", reprobeInterval: " + reprobeInterval
+                    + ". All of them should be positive.");
+        }
+
+        this.numLabels = numLabels;
+        this.backOffThreshold = backOffThreshold;
+        this.reprobeInterval = reprobeInterval;
+
+        this.lastGain = new double[numLabels];
+        this.totalGain = new double[numLabels];
+        this.expansionCount = new int[numLabels];
+        this.consecutiveNoOps = new int[numLabels];
+        this.lastProbedSweep = new int[numLabels];
+        this.idleSinceLastGain = new BitSet(numLabels);
+
+        // Unknown gain is treated as the most promising one.
+        Arrays.fill(lastGain, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Starts a new sweep and returns the labels to expand in order.
+     * Empty array is returned once converged.
+     */
+    short[] nextSweep() {
+        sweep++;
+
+        List<Short> candidates = new ArrayList<>();
+        for (short label = 0; label < numLabels; label++) {
+            if (!idleSinceLastGain.get(label) && !isBackedOff(label)) {
+                candidates.add(label);
+            }
+        }
+
+        if (candidates.isEmpty()) {
+            // Every remaining label is backed off. Probe them anyway so the convergence can be confirmed.
+            for (short label = 0; label < numLabels; label++) {
+                if (!idleSinceLastGain.get(label)) {
+                    candidates.add(label);
+                }
+            }
+        }
+
+        PriorityQueue<Short> queue = new PriorityQueue<>(Math.max(1, candidates.size()), new Comparator<Short>() {
+            @Override
+            public int compare(Short l1, Short l2) {
+                int byGain = Double.compare(lastGain[l2], lastGain[l1]);
+                return byGain != 0 ? byGain : Short.compare(l1, l2);
+            }
+        });
+        queue.addAll(candidates);
+
+        short[] order = new short[queue.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = queue.poll();
+        }
+
+        log.debug("Sweep {}: scheduled {} of {} labels.", sweep, order.length, numLabels);
+        return order;
+    }
+
+    /**
+     * Records result of an expansion. gain is energyOld - energy, which is zero for a no-op expansion.
+     */
+    void record(short label, double gain) {
+        expansionCount[label]++;
+        totalExpansions++;
+        lastProbedSweep[label] = sweep;
+        lastGain[label] = gain;
+
+        if (gain > 0) {
+            totalGain[label] += gain;
+            consecutiveNoOps[label] = 0;
+            idleSinceLastGain.clear();
+        } else {
+            consecutiveNoOps[label]++;
+            idleSinceLastGain.set(label);
+        }
+    }
+
+    boolean isConverged() {
+        return idleSinceLastGain.cardinality() >= numLabels;
+    }
+
+    int getExpansionCount(short label) {
+        return expansionCount[label];
+    }
+
+    double getTotalGain(short label) {
+        return totalGain[label];
+    }
+
+    void logReport() {
+        log.info("Label scheduler ran {} expansions over {} sweeps for {} labels.", totalExpansions, sweep, numLabels);
+        for (short label = 0; label < numLabels; label++) {
+            log.info("label {}: expansions {}, total gain {}", label, expansionCount[label], totalGain[label]);
+        }
+    }
+
+    /**
+     * Writes the whole state so that a resumed minimization continues with the same schedule.
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(numLabels);
+        out.writeInt(backOffThreshold);
+        out.writeInt(reprobeInterval);
+        out.writeInt(sweep);
+        out.writeInt(totalExpansions);
+        for (int label = 0; label < numLabels; label++) {
+            out.writeDouble(lastGain[label]);
+            out.writeDouble(totalGain[label]);
+            out.writeInt(expansionCount[label]);
+            out.writeInt(consecutiveNoOps[label]);
+            out.writeInt(lastProbedSweep[label]);
+            out.writeBoolean(idleSinceLastGain.get(label));
+        }
+    }
+
+    static LabelScheduler readFrom(DataInput in) throws IOException {
+        LabelScheduler scheduler = new LabelScheduler(in.readInt(), in.readInt(), in.readInt());
+        scheduler.sweep = in.readInt();
+        scheduler.totalExpansions = in.readInt();
+        for (int label = 0; label < scheduler.numLabels; label++) {
+            scheduler.lastGain[label] = in.readDouble();
+            scheduler.totalGain[label] = in.readDouble();
+            scheduler.expansionCount[label] = in.readInt();
+            scheduler.consecutiveNoOps[label] = in.readInt();
+            scheduler.lastProbedSweep[label] = in.readInt();
+            scheduler.idleSinceLastGain.set(label, in.readBoolean());
+        }
+        return scheduler;
+    }
+
+    private boolean isBackedOff(short label) {
+        return consecutiveNoOps[label] >= backOffThreshold && sweep - lastProbedSweep[label] < reprobeInterval;
+    }
+}
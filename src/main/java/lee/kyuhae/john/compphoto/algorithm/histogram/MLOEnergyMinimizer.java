@@ -2,8 +2,16 @@ package lee.kyuhae.john.compphoto.algorithm.histogram;
 
 import lee.kyuhae.john.compphoto.algorithm.Coordinate;
 
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Maximum Likelihood Object (MLO) Energy Minimizer
@@ -24,101 +32,452 @@ public class MLOEnergyMinimizer extends EnergyMinimizer {
      * Max Histogram Cut related Constants.
      */
     private static final int MAX_ITERATION = 100;
-    private static final float MAX_PROBABILITY = 1.0f;
 
     /**
-     * Interaction Penalty related constants.
+     * Version of the solver in the result cache key. Bump it with every change that gives other labels or another
+     * energy for the same images and parameters, so that results of an older solver are not served from the cache.
+     *
+     * 1: max-flow queue and orphan fixes, data costs kept as exact count products.
+     */
+    static final int SOLVER_VERSION = 1;
+
+    /**
+     * Interaction Penalty related defaults. See SolverOptions.
+     */
+    static final float POTTS_INTERACTION_ENERGY_CONSTANT_DEFAULT = 0.000001f;
+    static final float REGULAR_INTERACTION_ENERGY_CONSTANT_DEFAULT = 0.1f;
+
+    private final float pottsInteractionEnergyConstant;
+    private final float regularInteractionEnergyConstant;
+
+    /**
+     * Stack, histogram and data costs. Shared with other minimizers unless it was built by this one.
      */
-    private static final float POTTS_INTERACTION_ENERGY_CONSTANT = 0.000001f;
-    private static final float REGULAR_INTERACTION_ENERGY_CONSTANT = 0.1f;
+    final PreparedStack prepared;
+    private final boolean sharedPrepared;
+    private final SolverOptions options;
+    private CandidateLabels candidateLabels;
+    private final LabelConstraints constraints;
 
-    private final Histogram histogram;
+    /**
+     * Energy of the labels after the last compute() or resume().
+     */
+    @Getter private double energy = Double.NaN;
+
+    /**
+     * Called after the initialization of compute(), and after every expansion of compute() and resume().
+     * No progress is reported when null.
+     */
+    private ProgressListener progressListener = null;
 
     public MLOEnergyMinimizer(Mat[] images, short[] labels) {
         this(images, labels, ALPHA_EXPANSION_FLAG_DEFAULT);
     }
 
     public MLOEnergyMinimizer(Mat[] images, short[] labels, boolean expansionFlag) {
-        super(images, labels, expansionFlag);
+        this(images, labels, new SolverOptions().setExpansionFlag(expansionFlag));
+    }
+
+    public MLOEnergyMinimizer(Mat[] images, short[] labels, SolverOptions options) {
+        this(images, ShortBuffer.wrap(labels), options);
+    }
+
+    /**
+     * Same as MLOEnergyMinimizer(images, short[] labels, options), with the labels in a buffer indexed from 0,
+     * e.g. one of StorageBackend.allocateShorts(), so that they do not have to be on the heap.
+     */
+    public MLOEnergyMinimizer(Mat[] images, ShortBuffer labels, SolverOptions options) {
+        this(new PreparedStack(images, options), labels, options, false);
+    }
+
+    /**
+     * Solves on top of a PreparedStack that other minimizers may share, e.g. with different interaction
+     * parameters. The stack is only read. replaceImage() is not supported.
+     */
+    public MLOEnergyMinimizer(PreparedStack prepared, short[] labels, SolverOptions options) {
+        this(prepared, ShortBuffer.wrap(labels), options, true);
+    }
+
+    /**
+     * Same as MLOEnergyMinimizer(prepared, short[] labels, options), with the labels in a buffer.
+     */
+    public MLOEnergyMinimizer(PreparedStack prepared, ShortBuffer labels, SolverOptions options) {
+        this(prepared, labels, options, true);
+    }
+
+    private MLOEnergyMinimizer(PreparedStack prepared, ShortBuffer labels, SolverOptions options,
+                               boolean sharedPrepared) {
+        super(labels, options.isExpansionFlag(), options.getGraphBuildParallelism(), prepared.stack,
+                options.getInteractionPenaltyCoefficient(), options.getMaxFlowEngine(), options.getStorageBackend(),
+                options.getStorageDir());
+
+        this.prepared = prepared;
+        this.sharedPrepared = sharedPrepared;
+        this.pottsInteractionEnergyConstant = options.getPottsInteractionEnergyConstant();
+        this.regularInteractionEnergyConstant = options.getRegularInteractionEnergyConstant();
+        this.options = options;
+        this.constraints = new LabelConstraints(numImages, width * height, options.getStorageBackend(),
+                options.getStorageDir());
+        pruneCandidateLabels();
+    }
+
+    /**
+     * Everything that changes the result of compute() for the same images.
+     * Used as a part of the result cache key.
+     */
+    public static String getParameterSignature(SolverOptions options) {
+        return "MLO"
+                + ";version=" + SOLVER_VERSION
+                + ";maxIteration=" + MAX_ITERATION
+                + ";potts=" + options.getPottsInteractionEnergyConstant()
+                + ";regular=" + options.getRegularInteractionEnergyConstant()
+                + ";coefficient=" + options.getInteractionPenaltyCoefficient()
+                + ";expansionFlag=" + options.isExpansionFlag()
+                + ";pruning=" + options.getCandidatePruning()
+                + ";pruningThreshold=" + options.getPruningDataCostThreshold()
+                + ";pruningTopK=" + options.getPruningTopK()
+                + ";speculativeExpansions=" + options.getSpeculativeExpansions()
+                + ";initialization=" + options.getLabelInitialization()
+                + (options.getLabelInitialization() == LabelInitialization.PRIOR_RUN
+                        && options.getPriorLabelsFile() != null
+                        ? "," + options.getPriorLabelsFile() + "," + options.getPriorLabelsFile().lastModified()
+                        : "")
+                + ";scheduler=" + LabelScheduler.BACK_OFF_THRESHOLD_DEFAULT
+                + "," + LabelScheduler.REPROBE_INTERVAL_DEFAULT
+                + ";maxFlow=" + options.getMaxFlowEngine();
+    }
+
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Constrains the pixel to take the label d. The label is set right away.
+     */
+    public void useLabel(Coordinate point, short d) {
+        checkConstraint(point, d);
+        int index = point.getOneDimensionalIndex(width);
+        constraints.use(index, d);
+        labels.put(index, d);
+    }
+
+    /**
+     * Constrains the pixel not to take the label d. The pixel moves to another label in the next expansions.
+     * Throws IllegalArgumentException when every other label is already ruled out at the pixel.
+     */
+    public void neverLabel(Coordinate point, short d) {
+        checkConstraint(point, d);
+        constraints.never(point.getOneDimensionalIndex(width), d);
+    }
+
+    /**
+     * Whether neverLabel(point, d) leaves the pixel a label to take.
+     */
+    public boolean allowsAnotherLabel(Coordinate point, short d) {
+        checkConstraint(point, d);
+        return constraints.allowsAnotherLabel(point.getOneDimensionalIndex(width), d);
+    }
+
+    /**
+     * Digest of the constraints given so far, or an empty string when there are none.
+     * Results with different constraints must not be mixed up, e.g. in the result cache.
+     */
+    public String getConstraintSignature() {
+        return constraints.getSignature();
+    }
+
+    private void checkConstraint(Coordinate point, short d) {
+        if (!(point.greaterThanOrEqualTo(ZERO_COORDINATE) && point.smallerThan(coordinateLimit))
+                || d < 0 || d >= numImages) {
+            String message = "Received constraint of label " + d + " at " + point.toString()
+                    + ". numImages: " + numImages;
+            log.debug(message);
+            throw new IllegalArgumentException(message);
+        }
+    }
+
+    /**
+     * Minimizes the energy only within the region, starting from the current labels.
+     * Pixels outside of the region are held fixed. Meant for small regions around the user's strokes.
+     */
+    public void computeRegion(Rect region) {
+        Rect clipped = new Rect(Math.max(region.x, 0), Math.max(region.y, 0), 0, 0);
+        clipped.width = Math.min(region.x + region.width, width) - clipped.x;
+        clipped.height = Math.min(region.y + region.height, height) - clipped.y;
+        if (clipped.width <= 0 || clipped.height <= 0) {
+            log.debug("Region {} is outside of the image. Nothing to compute.", region);
+            return;
+        }
+
+        LabelScheduler scheduler = new LabelScheduler(numImages);
+        double energy = BVZComputeEnergy(clipped);
+        log.debug("Starting region {} energy: {}", clipped, energy);
+        for (int i = 0; i < MAX_ITERATION && !scheduler.isConverged(); i++) {
+            for (short step : scheduler.nextSweep()) {
+                double energyOld = energy;
+                energy = BVZExpand(step, energyOld, clipped);
+                scheduler.record(step, energyOld - energy);
+
+                if (scheduler.isConverged()) {
+                    break;
+                }
+            }
+        }
+        log.debug("Region {} energy after {} expansions: {}", clipped, scheduler.getTotalExpansions(), energy);
+    }
+
+    /**
+     * computeRegion() of each region in turn, e.g. the seams between tiles that were solved separately.
+     * getEnergy() is updated to the energy of the whole image afterwards.
+     */
+    public void computeRegions(List<Rect> regions) {
+        for (Rect region : regions) {
+            computeRegion(region);
+        }
+        this.energy = BVZComputeEnergy();
+        log.info("Energy after solving {} regions: {}", regions.size(), energy);
+    }
+
+    /**
+     * Energy terms of the current labels that involve the region -- data penalties of its pixels, and interaction
+     * penalties of the edges with at least one end in it. Same as getEnergy() for the whole image.
+     */
+    public double getRegionEnergy(Rect region) {
+        return BVZComputeEnergy(region);
+    }
+
+    /**
+     * Replaces the image at slot, e.g. the oldest frame of a sliding window, with the given image.
+     * The histogram is updated incrementally. Labels are kept as they are, so the next compute()
+     * starts from the labels of the previous window.
+     */
+    public void replaceImage(int slot, Mat image) {
+        if (slot < 0 || slot >= numImages) {
+            String message = "Received slot " + slot + ", numImages: " + numImages;
+            log.debug(message);
+            throw new IllegalArgumentException(message);
+        }
+        if (sharedPrepared) {
+            throw new IllegalStateException("Images of a shared PreparedStack cannot be replaced.");
+        }
 
-        this.histogram = new Histogram(images);
-        log.debug("Starting to compute histogram for the given images.");
-        histogram.compute();
-        log.debug("Completed histogram computation.");
+        log.debug("Replacing image at slot {}.", slot);
+        prepared.replaceImage(slot, image);
+
+        // Data costs of every label have changed. Candidates need to be selected again.
+        pruneCandidateLabels();
     }
 
-    private double getDataCost(Coordinate point, short d) {
-        if (histogram == null) {
-            log.debug("Calling getDataCost when histogram has not set.");
-            throw new IllegalStateException("Histogram has not set!");
+    private void pruneCandidateLabels() {
+        if (options.getCandidatePruning() == CandidatePruning.NONE) {
+            this.candidateLabels = null;
+            return;
         }
 
-        Histogram.Pixel histogramPixel = histogram.getPixel(point.getCol(), point.getRow());
-        double[] rgbValues = images[d].get(point.getRow(), point.getCol());
-        double probability = histogramPixel.getProbability(rgbValues);
+        this.candidateLabels = new CandidateLabels(options.getCandidatePruning(),
+                options.getPruningDataCostThreshold(), options.getPruningTopK(), numImages, width * height);
+
+        log.debug("Starting candidate label pruning.");
+        double[] dataCosts = new double[numImages];
+        for (int index = 0; index < width * height; index++) {
+            for (short d = 0; d < numImages; d++) {
+                dataCosts[d] = getDataCost(index, d);
+            }
+            candidateLabels.select(index, dataCosts);
+        }
+        log.info("Candidate label pruning kept {} of {} pixel labels ({}%).",
+                candidateLabels.getNumCandidates(), (long) width * height * numImages,
+                String.format("%.1f", 100.0 * candidateLabels.getCandidateRatio()));
+    }
 
-        if (probability < 0 || probability > MAX_PROBABILITY) {
-            log.debug("Probability is " + probability + ", Your codes seem to be broken. " +
-                    "Have fun debugging :)");
-            throw new IllegalStateException("Probability is not within the limit.");
+    private MinimizerCheckpoint takeCheckpoint(int iteration, short[] sweepOrder, int sweepPosition,
+                                               int stepCounter, double energy, LabelScheduler scheduler) {
+        try {
+            return new MinimizerCheckpoint(width, height, iteration, sweepPosition, stepCounter, energy,
+                    sweepOrder, scheduler, labels);
+        } catch (IOException e) {
+            // Only in-memory streams are involved here.
+            throw new IllegalStateException("Failed to take a checkpoint.", e);
         }
+    }
+
+    @Override
+    boolean isCandidate(int index, short a) {
+        // Constrained pixels always get a node, their data penalty takes care of the constraints.
+        return candidateLabels == null || candidateLabels.isCandidate(index, a) || constraints.isConstrained(index);
+    }
 
-        // Info: If you want to do a min histogram, return the probability as is.
-        return MAX_PROBABILITY - probability;
+    private double getDataCost(int index, short d) {
+        return prepared.getDataCost(index, d);
     }
 
-    double BVZDataPenalty(Coordinate point, short d) {
+    double BVZDataPenalty(int index, short d) {
         // Warn: Make sure 'transform' doesn't apply to my case.
         // If it does apply, needs to implement _displace() function.
-        if (point.greaterThanOrEqualTo(ZERO_COORDINATE) && point.smallerThan(coordinateLimit)) {
-            return getDataCost(point, d);
-        } else {
+        if (!constraints.allows(index, d)) {
             return INFINITE_CAPACITY;
         }
+        return getDataCost(index, d);
     }
 
     @Override
-    double BVZInteractionPenalty(
-            Coordinate cPoint, Coordinate nPoint, short cLabel, short nLabel) {
-        double M = super.BVZInteractionPenalty(cPoint, nPoint, cLabel, nLabel);
+    double toInteractionPenalty(double distanceSum) {
+        double M = super.toInteractionPenalty(distanceSum);
 
         if (M == 0) {
             return M;
         }
 
-        return POTTS_INTERACTION_ENERGY_CONSTANT + (REGULAR_INTERACTION_ENERGY_CONSTANT * M);
+        return pottsInteractionEnergyConstant + (regularInteractionEnergyConstant * M);
     }
 
     public void compute() {
-        double energy, energyOld;
-        int stepCounter = 0;
-
-        energy = BVZComputeEnergy();
-        log.debug("Starting energy: " + energy);
-        for (int i = 0; i < MAX_ITERATION; i++) {
-            for (short step = 0; step < images.length && stepCounter < images.length; step++) {
-                energyOld = energy;
-                energy = BVZExpand(step, energyOld);
-
-                if (energyOld == energy) {
-                    stepCounter++;
-                } else {
-                    stepCounter = 0;
+        long startMillis = System.currentTimeMillis();
+        new LabelInitializer(this, options).initialize();
+        double energy = BVZComputeEnergy();
+        log.info("Initialized labels with {} in {}ms. Starting energy: {}", options.getLabelInitialization(),
+                System.currentTimeMillis() - startMillis, energy);
+        if (progressListener != null) {
+            // Initial labels, so that a preview does not have to wait for the first expansion.
+            progressListener.onProgress(0, false, energy, labels);
+        }
+        compute(new LabelScheduler(numImages), 0, null, 0, 0, energy);
+    }
+
+    /**
+     * Resumes the minimization from the checkpoint file written by a previous compute() with
+     * the same images and options. Labels are overwritten with the ones from the checkpoint.
+     */
+    public void resume(File checkpointFile) throws IOException {
+        MinimizerCheckpoint checkpoint = MinimizerCheckpoint.read(checkpointFile);
+        if (checkpoint.getWidth() != width || checkpoint.getHeight() != height
+                || checkpoint.getLabels().length != width * height) {
+            String message = "Checkpoint " + checkpointFile + " is for " + checkpoint.getWidth() + "x"
+                    + checkpoint.getHeight() + " images. Given " + width + "x" + height + ".";
+            log.debug(message);
+            throw new IllegalStateException(message);
+        }
+
+        LabelScheduler scheduler = checkpoint.restoreScheduler();
+        if (scheduler.getNumLabels() != numImages) {
+            String message = "Checkpoint " + checkpointFile + " is for " + scheduler.getNumLabels()
+                    + " images. Given " + numImages + ".";
+            log.debug(message);
+            throw new IllegalStateException(message);
+        }
+
+        copyLabels(ShortBuffer.wrap(checkpoint.getLabels()), labels);
+        log.info("Resuming from {}: iteration {}, position {}, energy {}.", checkpointFile,
+                checkpoint.getIteration(), checkpoint.getSweepPosition(), checkpoint.getEnergy());
+        compute(scheduler, checkpoint.getIteration(), checkpoint.getSweepOrder(), checkpoint.getSweepPosition(),
+                checkpoint.getStepCounter(), checkpoint.getEnergy());
+    }
+
+    /**
+     * Main loop. sweepOrder and sweepPosition are for resuming in the middle of a sweep, null otherwise.
+     */
+    private void compute(LabelScheduler scheduler, int startIteration, short[] sweepOrder, int sweepPosition,
+                         int stepCounter, double energy) {
+        double energyOld;
+        CheckpointWriter checkpointWriter = options.getCheckpointFile() == null ? null
+                : new CheckpointWriter(options.getCheckpointFile(), options.getCheckpointIntervalMillis());
+        SpeculativeExpansion speculativeExpansion = options.getSpeculativeExpansions() > 1
+                ? new SpeculativeExpansion(this, options.getSpeculativeExpansions()) : null;
+
+        int i = startIteration;
+        boolean completed = false;
+        try {
+            for (; i < MAX_ITERATION && !scheduler.isConverged(); i++) {
+                // Labels are ordered by their last gain, and labels that keep failing are backed off.
+                if (sweepOrder == null) {
+                    sweepOrder = scheduler.nextSweep();
+                    sweepPosition = 0;
+                }
+
+                while (sweepPosition < sweepOrder.length) {
+                    energyOld = energy;
+                    int count;
+                    if (speculativeExpansion == null) {
+                        short step = sweepOrder[sweepPosition];
+                        energy = BVZExpand(step, energyOld);
+                        scheduler.record(step, energyOld - energy);
+                        count = 1;
+                    } else {
+                        // Several labels at once against the same labels. Gains are recorded by the merge.
+                        count = Math.min(speculativeExpansion.getParallelism(), sweepOrder.length - sweepPosition);
+                        energy = speculativeExpansion.expand(
+                                Arrays.copyOfRange(sweepOrder, sweepPosition, sweepPosition + count), energyOld,
+                                scheduler);
+                    }
+                    sweepPosition += count;
+
+                    if (energyOld == energy) {
+                        stepCounter += count;
+                    } else {
+                        stepCounter = 0;
+                    }
+
+                    log.debug("i: " + i + ", steps: " + count + " up to " + sweepPosition + ", stepCounter: "
+                            + stepCounter + ", energy: " + energy + ", energyOld: " + energyOld);
+
+                    if (checkpointWriter != null && checkpointWriter.isDue()) {
+                        checkpointWriter.submit(takeCheckpoint(i, sweepOrder, sweepPosition, stepCounter,
+                                energy, scheduler));
+                    }
+
+                    if (progressListener != null) {
+                        progressListener.onProgress(i, sweepPosition == sweepOrder.length || scheduler.isConverged(),
+                                energy, labels);
+                    }
+
+                    if (scheduler.isConverged()) {
+                        break;
+                    }
+
+                    // TODO: Put an event-driven stop functionality.
+                    // This could take awhile, and it seems this is what the original authors did.
                 }
+                sweepOrder = null;
+            }
+            completed = true;
+        } finally {
+            if (speculativeExpansion != null) {
+                speculativeExpansion.close();
+            }
+            if (checkpointWriter != null && !completed) {
+                // The last checkpoint written is left for resume().
+                checkpointWriter.abandon();
+            }
+        }
+
+        this.energy = energy;
+        if (checkpointWriter != null) {
+            checkpointWriter.close(takeCheckpoint(i, new short[0], 0, stepCounter, energy, scheduler));
+        }
 
-                log.debug("i: " + i + ", step: " + step + ", stepCounter: " + stepCounter
-                        + ", energy: " + energy + ", energyOld: " + energyOld);
+        log.info("Final energy: {}", energy);
+        scheduler.logReport();
+        logGraphSizeReport();
+        if (speculativeExpansion != null) {
+            speculativeExpansion.logReport();
+        }
 
-                // TODO: Put an event-driven stop functionality.
-                // This could take awhile, and it seems this is what the original authors did.
+        if (candidateLabels != null) {
+            // Pixels left at a label that is not a candidate never got a chance to move to a better label.
+            int pixelsOutsideCandidates = 0;
+            for (int index = 0; index < width * height; index++) {
+                if (!candidateLabels.isCandidate(index, labels.get(index))) {
+                    pixelsOutsideCandidates++;
+                }
             }
+            log.info("{} pixels ended up with a label outside of their candidates.", pixelsOutsideCandidates);
         }
     }
 
     public double getCurrentDataPenalty(Coordinate cPoint) {
         if ( cPoint.greaterThanOrEqualTo(ZERO_COORDINATE) &&
                 cPoint.smallerThan(coordinateLimit) ) {
-            return BVZDataPenalty(cPoint, labels[cPoint.getOneDimensionalIndex(width)]);
+            return BVZDataPenalty(cPoint, labels.get(cPoint.getOneDimensionalIndex(width)));
         } else {
             String message = "Received coordinate outside the range: " + cPoint.toString();
             log.debug(message);
@@ -129,36 +488,27 @@ public class MLOEnergyMinimizer extends EnergyMinimizer {
     public double getCurrentMaxInteractionPenalty(Coordinate cPoint) {
         if ( cPoint.greaterThanOrEqualTo(ZERO_COORDINATE) &&
                 cPoint.smallerThan(coordinateLimit) ) {
-            double maxPenalty = Double.MIN_VALUE;
             int col = cPoint.getCol();
             int row = cPoint.getRow();
-            Coordinate nPoint;
+            int index = cPoint.getOneDimensionalIndex(width);
+            short cLabel = labels.get(index);
+            double maxPenalty = Double.MIN_VALUE;
             if (col > 0) {
-                nPoint = new Coordinate(col - 1, row);
-                maxPenalty = Math.max(maxPenalty, BVZInteractionPenalty(cPoint, nPoint,
-                        labels[cPoint.getOneDimensionalIndex(width)],
-                        labels[nPoint.getOneDimensionalIndex(width)]));
+                maxPenalty = Math.max(maxPenalty, BVZInteractionPenalty(index, index - 1, cLabel, labels.get(index - 1)));
             }
 
             if (col < width - 1) {
-                nPoint = new Coordinate(col + 1, row);
-                maxPenalty = Math.max(maxPenalty, BVZInteractionPenalty(cPoint, nPoint,
-                        labels[cPoint.getOneDimensionalIndex(width)],
-                        labels[nPoint.getOneDimensionalIndex(width)]));
+                maxPenalty = Math.max(maxPenalty, BVZInteractionPenalty(index, index + 1, cLabel, labels.get(index + 1)));
             }
 
             if (row > 0) {
-                nPoint = new Coordinate(col, row - 1);
-                maxPenalty = Math.max(maxPenalty, BVZInteractionPenalty(cPoint, nPoint,
-                        labels[cPoint.getOneDimensionalIndex(width)],
-                        labels[nPoint.getOneDimensionalIndex(width)]));
+                maxPenalty = Math.max(maxPenalty,
+                        BVZInteractionPenalty(index, index - width, cLabel, labels.get(index - width)));
             }
 
             if (row < height - 1) {
-                nPoint = new Coordinate(col, row + 1);
-                maxPenalty = Math.max(maxPenalty, BVZInteractionPenalty(cPoint, nPoint,
-                        labels[cPoint.getOneDimensionalIndex(width)],
-                        labels[nPoint.getOneDimensionalIndex(width)]));
+                maxPenalty = Math.max(maxPenalty,
+                        BVZInteractionPenalty(index, index + width, cLabel, labels.get(index + width)));
             }
 
             return maxPenalty;
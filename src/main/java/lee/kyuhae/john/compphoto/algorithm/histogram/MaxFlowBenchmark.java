@@ -0,0 +1,148 @@
+package lee.kyuhae.john.compphoto.algorithm.histogram;
+
+import lee.kyuhae.john.compphoto.algorithm.maxflow.MaxFlowEngine;
+import lee.kyuhae.john.compphoto.algorithm.maxflow.Node;
+import lee.kyuhae.john.compphoto.algorithm.maxflow.RecordedGraph;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.opencv.core.Mat;
+
+import java.util.Arrays;
+
+/**
+ * MaxFlowBenchmark
+ *
+ * Solves the images once, and replays every expansion graph of the solve on every MaxFlowEngine. Every engine should
+ * find a cut with the capacity of its flow, and the same flow as the others, within FLOW_TOLERANCE. Graphs where
+ * they do not are counted as mismatches. Cuts are compared by their capacities, since rounding may move a few nodes
+ * across cuts of the same capacity.
+ *
+ * Max-flow times of the engines are reported as totals and percentiles over the graphs, since the point of
+ * the engines other than BOYKOV_KOLMOGOROV is the graphs that take the longest.
+ */
+@Slf4j
+public class MaxFlowBenchmark {
+    private static final double FLOW_TOLERANCE = 1e-9;
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99};
+
+    private final Mat[] images;
+    private final SolverOptions options;
+    private final MaxFlowEngine[] engines = MaxFlowEngine.values();
+
+    private int numGraphs = 0;
+    private int numMismatches = 0;
+    private long[][] nanos = new long[engines.length][64];
+
+    public MaxFlowBenchmark(Mat[] images, SolverOptions options) {
+        this.images = images;
+        this.options = options;
+    }
+
+    public Report run() {
+        short[] labels = new short[images[0].rows() * images[0].cols()];
+        MLOEnergyMinimizer minimizer = new MLOEnergyMinimizer(images, labels, options);
+        minimizer.graphListener = new EnergyMinimizer.GraphListener() {
+            @Override
+            public void onGraph(Node[] graphNodes) {
+                replay(RecordedGraph.capture(graphNodes));
+            }
+        };
+        minimizer.compute();
+
+        long[][] engineNanos = new long[engines.length][];
+        for (int e = 0; e < engines.length; e++) {
+            engineNanos[e] = Arrays.copyOf(nanos[e], numGraphs);
+        }
+        Report report = new Report(engines, engineNanos, numMismatches);
+        report.logSummary();
+        return report;
+    }
+
+    /**
+     * Speculative expansions build their graphs on their own threads, so graphs are replayed one at a time.
+     * Engines take turns going first, so that neither is always the one with the warmer caches.
+     */
+    private synchronized void replay(RecordedGraph graph) {
+        if (numGraphs == nanos[0].length) {
+            for (int e = 0; e < engines.length; e++) {
+                nanos[e] = Arrays.copyOf(nanos[e], numGraphs * 2);
+            }
+        }
+
+        RecordedGraph.Solution[] solutions = new RecordedGraph.Solution[engines.length];
+        for (int k = 0; k < engines.length; k++) {
+            int e = (numGraphs + k) % engines.length;
+            solutions[e] = graph.solve(engines[e]);
+            nanos[e][numGraphs] = solutions[e].getNanos();
+        }
+
+        for (int e = 1; e < engines.length; e++) {
+            if (!isSameCut(graph, solutions[0], solutions[e])) {
+                numMismatches++;
+                log.warn("Graph {} with {} nodes and {} edges does not match: {} found flow {}, {} found flow {}.",
+                        numGraphs, graph.getNumNodes(), graph.getNumEdges(),
+                        engines[0], solutions[0].getFlow(), engines[e], solutions[e].getFlow());
+            }
+        }
+        numGraphs++;
+    }
+
+    private static boolean isSameCut(RecordedGraph graph, RecordedGraph.Solution a, RecordedGraph.Solution b) {
+        double tolerance = FLOW_TOLERANCE * Math.max(1.0, Math.abs(a.getFlow()));
+        return Math.abs(a.getFlow() - b.getFlow()) <= tolerance
+                && Math.abs(graph.cutCapacity(a.getSource()) - a.getFlow()) <= tolerance
+                && Math.abs(graph.cutCapacity(b.getSource()) - b.getFlow()) <= tolerance;
+    }
+
+    /**
+     * Max-flow times of every engine, in the order of the graphs.
+     */
+    @Getter
+    public static class Report {
+        private final MaxFlowEngine[] engines;
+        private final long[][] nanos;
+        private final int numMismatches;
+
+        Report(MaxFlowEngine[] engines, long[][] nanos, int numMismatches) {
+            this.engines = engines;
+            this.nanos = nanos;
+            this.numMismatches = numMismatches;
+        }
+
+        public int getNumGraphs() {
+            return nanos[0].length;
+        }
+
+        private void logSummary() {
+            log.info("Replayed {} expansion graphs on {} engines with {} mismatches.",
+                    getNumGraphs(), engines.length, numMismatches);
+            for (int e = 0; e < engines.length; e++) {
+                long[] sorted = nanos[e].clone();
+                Arrays.sort(sorted);
+                long total = 0;
+                for (long n : sorted) {
+                    total += n;
+                }
+
+                StringBuilder percentiles = new StringBuilder();
+                for (double p : PERCENTILES) {
+                    percentiles.append(String.format(" p%d %.3fms,", Math.round(p * 100), percentile(sorted, p) / 1e6));
+                }
+                log.info("{}: total {}ms,{} max {}ms.", engines[e], String.format("%.1f", total / 1e6),
+                        percentiles, String.format("%.3f", sorted.length > 0 ? sorted[sorted.length - 1] / 1e6 : 0.0));
+            }
+        }
+
+        /**
+         * Nearest rank percentile of sorted values.
+         */
+        private static long percentile(long[] sorted, double p) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(p * sorted.length);
+            return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+        }
+    }
+}
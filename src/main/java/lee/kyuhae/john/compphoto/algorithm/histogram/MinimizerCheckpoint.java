@@ -0,0 +1,160 @@
+package lee.kyuhae.john.compphoto.algorithm.histogram;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ShortBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * MinimizerCheckpoint
+ *
+ * Snapshot of MLOEnergyMinimizer.compute state taken right after an expansion.
+ * - iteration, sweepPosition and sweepOrder tell which expansion comes next.
+ * - stepCounter, energy and the label scheduler state are restored as they were.
+ * - labels are copied into an array, so the snapshot stays the same while the minimizer keeps going.
+ *
+ * The file is a deflated stream of fixed size fields followed by the labels.
+ * It is written to a temporary file first and then moved over the old one, so that the latest
+ * checkpoint is never half written.
+ */
+@Slf4j
+@Getter
+class MinimizerCheckpoint {
+    private static final int MAGIC = 0x43534350;
+    private static final int VERSION = 1;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final int width;
+    private final int height;
+    private final int iteration;
+    private final int sweepPosition;
+    private final int stepCounter;
+    private final double energy;
+    private final short[] sweepOrder;
+    private final byte[] schedulerState;
+    private final short[] labels;
+
+    MinimizerCheckpoint(int width, int height, int iteration, int sweepPosition, int stepCounter, double energy,
+                        short[] sweepOrder, LabelScheduler scheduler, short[] labels) throws IOException {
+        this(width, height, iteration, sweepPosition, stepCounter, energy, sweepOrder, scheduler,
+                ShortBuffer.wrap(labels));
+    }
+
+    MinimizerCheckpoint(int width, int height, int iteration, int sweepPosition, int stepCounter, double energy,
+                        short[] sweepOrder, LabelScheduler scheduler, ShortBuffer labels) throws IOException {
+        this(width, height, iteration, sweepPosition, stepCounter, energy, sweepOrder.clone(),
+                serialize(scheduler), toArray(labels));
+    }
+
+    private MinimizerCheckpoint(int width, int height, int iteration, int sweepPosition, int stepCounter,
+                                double energy, short[] sweepOrder, byte[] schedulerState, short[] labels) {
+        this.width = width;
+        this.height = height;
+        this.iteration = iteration;
+        this.sweepPosition = sweepPosition;
+        this.stepCounter = stepCounter;
+        this.energy = energy;
+        this.sweepOrder = sweepOrder;
+        this.schedulerState = schedulerState;
+        this.labels = labels;
+    }
+
+    LabelScheduler restoreScheduler() throws IOException {
+        return LabelScheduler.readFrom(new DataInputStream(new ByteArrayInputStream(schedulerState)));
+    }
+
+    void write(File file) throws IOException {
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new DeflaterOutputStream(new FileOutputStream(temp), new Deflater(Deflater.BEST_SPEED))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(iteration);
+            out.writeInt(sweepPosition);
+            out.writeInt(stepCounter);
+            out.writeDouble(energy);
+            out.writeInt(sweepOrder.length);
+            for (short label : sweepOrder) {
+                out.writeShort(label);
+            }
+            out.writeInt(schedulerState.length);
+            out.write(schedulerState);
+            out.writeInt(labels.length);
+            for (short label : labels) {
+                out.writeShort(label);
+            }
+        }
+
+        Files.move(temp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.debug("Wrote checkpoint of iteration {}, position {}, energy {} to {}.",
+                iteration, sweepPosition, energy, file);
+    }
+
+    static MinimizerCheckpoint read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new InflaterInputStream(new FileInputStream(file))))) {
+            int magic = in.readInt();
+            int version = in.readInt();
+            if (magic != MAGIC || version != VERSION) {
+                throw new IOException(file + " is not a checkpoint of version " + VERSION + ".");
+            }
+
+            int width = in.readInt();
+            int height = in.readInt();
+            int iteration = in.readInt();
+            int sweepPosition = in.readInt();
+            int stepCounter = in.readInt();
+            double energy = in.readDouble();
+
+            short[] sweepOrder = new short[in.readInt()];
+            for (int i = 0; i < sweepOrder.length; i++) {
+                sweepOrder[i] = in.readShort();
+            }
+
+            byte[] schedulerState = new byte[in.readInt()];
+            in.readFully(schedulerState);
+
+            short[] labels = new short[in.readInt()];
+            for (int i = 0; i < labels.length; i++) {
+                labels[i] = in.readShort();
+            }
+
+            return new MinimizerCheckpoint(width, height, iteration, sweepPosition, stepCounter, energy,
+                    sweepOrder, schedulerState, labels);
+        }
+    }
+
+    private static byte[] serialize(LabelScheduler scheduler) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            scheduler.writeTo(out);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static short[] toArray(ShortBuffer labels) {
+        ShortBuffer source = labels.duplicate();
+        source.clear();
+        short[] array = new short[source.remaining()];
+        source.get(array);
+        return array;
+    }
+}
@@ -0,0 +1,139 @@
+package lee.kyuhae.john.compphoto.algorithm.histogram;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * PreparedStack
+ *
+ * Everything a minimizer derives from the images alone -- the image stack, the histogram and the data costs.
+ * Interaction parameters do not affect any of it, so a PreparedStack can be built once and shared read-only
+ * by several minimizers that solve with different parameters, each with its own labels.
+ *
+ * Storage options (storageBackend, storageDir, stackCompression, stackCacheBytes) of the SolverOptions given here
+ * apply. The same options of the minimizers that share it are ignored.
+ */
+@Slf4j
+public class PreparedStack {
+    private static final float MAX_PROBABILITY = 1.0f;
+    private static final int NUM_CHANNEL = ImageStack.NUM_CHANNEL;
+
+    /**
+     * Null when built by StreamingStackBuilder. The images are only in the stack then.
+     */
+    private final Mat[] images;
+    final ImageStack stack;
+    private final Histogram histogram;
+
+    /**
+     * Data costs of every label. Computed in bulk once per histogram, so that expansions only look them up.
+     */
+    private final DataCostTable dataCosts;
+
+    @Getter private final int width;
+    @Getter private final int height;
+
+    public PreparedStack(Mat[] images, SolverOptions options) {
+        this(images, createHistogram(ImageStack.create(images, options), options), options);
+    }
+
+    /**
+     * histogram is complete, and its stack holds every image.
+     */
+    PreparedStack(Mat[] images, Histogram histogram, SolverOptions options) {
+        this.images = images;
+        this.histogram = histogram;
+        this.stack = histogram.getStack();
+        this.width = stack.getWidth();
+        this.height = stack.getHeight();
+
+        this.dataCosts = new DataCostTable(stack.size(), stack.size(), width * height, options.getStorageBackend(),
+                options.getStorageDir());
+        computeDataCosts();
+    }
+
+    private static Histogram createHistogram(ImageStack stack, SolverOptions options) {
+        Histogram histogram = new Histogram(stack, Histogram.keepsPixels(options));
+        log.debug("Starting to compute histogram for the given images.");
+        histogram.compute();
+        log.debug("Completed histogram computation.");
+        return histogram;
+    }
+
+    public int size() {
+        return stack.size();
+    }
+
+    /**
+     * False when built by StreamingStackBuilder, where the images are only kept in the stack.
+     */
+    public boolean hasImages() {
+        return images != null;
+    }
+
+    /**
+     * The image as given, or a new CV_8UC3 Mat decoded from the stack when the images are not kept.
+     * A decoded Mat belongs to the caller.
+     */
+    public Mat getImage(int image) {
+        if (images != null) {
+            return images[image];
+        }
+
+        Mat decoded = new Mat(height, width, CvType.CV_8UC3);
+        byte[] row = new byte[width * NUM_CHANNEL];
+        for (int r = 0; r < height; r++) {
+            readRow(image, r, row);
+            decoded.put(r, 0, row);
+        }
+        return decoded;
+    }
+
+    /**
+     * Copies the row of the image into out, 3 channels per pixel as in the Mat.
+     */
+    public void readRow(int image, int row, byte[] out) {
+        stack.readRow(image, row * width, width, out, 0);
+    }
+
+    double getDataCost(int index, short d) {
+        return dataCosts.get(d, index);
+    }
+
+    /**
+     * Replaces the image at slot. The histogram is updated incrementally, and the data costs are computed again.
+     */
+    void replaceImage(int slot, Mat image) {
+        histogram.replaceImage(slot, image);
+        if (images != null) {
+            images[slot] = image;
+        }
+        computeDataCosts();
+    }
+
+    private void computeDataCosts() {
+        log.debug("Starting data cost computation.");
+        double[][] rowCosts = new double[stack.size()][width];
+        for (int row = 0; row < height; row++) {
+            histogram.getProbabilities(row * width, width, rowCosts, 0);
+            for (short d = 0; d < stack.size(); d++) {
+                double[] costs = rowCosts[d];
+                for (int col = 0; col < width; col++) {
+                    double probability = costs[col];
+                    if (probability < 0 || probability > MAX_PROBABILITY) {
+                        log.debug("Probability is " + probability + ", Your codes seem to be broken. " +
+                                "Have fun debugging :)");
+                        throw new IllegalStateException("Probability is not within the limit.");
+                    }
+
+                    // Info: If you want to do a min histogram, use the probability as is.
+                    costs[col] = MAX_PROBABILITY - probability;
+                }
+                dataCosts.putRow(d, row * width, costs, width);
+            }
+        }
+        log.debug("Completed data cost computation.");
+    }
+}
@@ -0,0 +1,17 @@
+package lee.kyuhae.john.compphoto.algorithm.histogram;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Progress of MLOEnergyMinimizer.compute(), called on the solver thread once the labels are initialized,
+ * then after every expansion, or batch of speculative expansions.
+ *
+ * labels are the current labels of the minimizer, indexed from 0. They are only valid during the call, so a listener
+ * that uses them later should copy them, and should return quickly otherwise the solver waits for it.
+ */
+public interface ProgressListener {
+    /**
+     * sweepDone is true for the last expansion of a sweep over the labels.
+     */
+    void onProgress(int sweep, boolean sweepDone, double energy, ShortBuffer labels);
+}
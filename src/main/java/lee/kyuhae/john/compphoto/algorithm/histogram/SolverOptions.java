@@ -0,0 +1,93 @@
+package lee.kyuhae.john.compphoto.algorithm.histogram;
+
+import lee.kyuhae.john.compphoto.algorithm.maxflow.MaxFlowEngine;
+import lombok.Data;
+import lombok.experimental.Accessors;
+
+import java.io.File;
+
+/**
+ * Options for a single energy minimization run.
+ * Default values are equivalent to the original algorithm.
+ */
+@Data
+@Accessors(chain = true)
+public class SolverOptions {
+    private boolean expansionFlag = EnergyMinimizer.ALPHA_EXPANSION_FLAG_DEFAULT;
+
+    /**
+     * Interaction penalty of two different labels is pottsInteractionEnergyConstant
+     * + regularInteractionEnergyConstant * M, where M is the sum of their color distances at both pixels
+     * divided by interactionPenaltyCoefficient. Higher values favor fewer, longer seams.
+     */
+    private float pottsInteractionEnergyConstant = MLOEnergyMinimizer.POTTS_INTERACTION_ENERGY_CONSTANT_DEFAULT;
+    private float regularInteractionEnergyConstant = MLOEnergyMinimizer.REGULAR_INTERACTION_ENERGY_CONSTANT_DEFAULT;
+    private float interactionPenaltyCoefficient = EnergyMinimizer.INTERACTION_PENALTY_COEFFICIENT_DEFAULT;
+
+    /**
+     * Number of threads that build the expansion graph. 1 builds it on the solver thread.
+     */
+    private int graphBuildParallelism = EnergyMinimizer.GRAPH_BUILD_PARALLELISM_DEFAULT;
+
+    /**
+     * Max-flow algorithm of the expansions. See MaxFlowEngine. Cuts of the engines are equal up to rounding, but
+     * a few pixels that are cut differently change the later expansions, so labels and energies differ slightly.
+     */
+    private MaxFlowEngine maxFlowEngine = MaxFlowEngine.BOYKOV_KOLMOGOROV;
+
+    /**
+     * Candidate label pruning. See CandidatePruning.
+     */
+    private CandidatePruning candidatePruning = CandidatePruning.NONE;
+    private double pruningDataCostThreshold = 0.99d;
+    private int pruningTopK = 3;
+
+    /**
+     * Number of labels that are expanded at once, each on its own thread against the same labels.
+     * Proposals are merged so that the energy never goes up. See SpeculativeExpansion.
+     * 1 expands one label at a time. Each expansion still uses graphBuildParallelism threads to build its graph.
+     */
+    private int speculativeExpansions = 1;
+
+    /**
+     * Starting labels of compute(). See LabelInitialization.
+     * priorLabelsFile is a checkpoint file, e.g. SolverOptions.checkpointFile of a previous run, for PRIOR_RUN.
+     */
+    private LabelInitialization labelInitialization = LabelInitialization.NONE;
+    private File priorLabelsFile = null;
+
+    /**
+     * Checkpoint of the minimizer state is written to checkpointFile every checkpointIntervalMillis.
+     * No checkpoint is written when checkpointFile is null.
+     */
+    private File checkpointFile = null;
+    private long checkpointIntervalMillis = 60000;
+
+    /**
+     * Margin in pixels around a brush stroke that is solved again after the stroke.
+     */
+    private int strokeSolveMargin = 32;
+
+    /**
+     * Results of compute() are cached in resultCacheDir, keyed by the image pixels, the parameters and the constraints.
+     * Least recently used results are evicted to keep the directory under resultCacheBudgetBytes.
+     * No cache is used when resultCacheDir is null.
+     */
+    private File resultCacheDir = null;
+    private long resultCacheBudgetBytes = 256L * 1024 * 1024;
+
+    /**
+     * Where the image stack, histograms and data costs are stored. See StorageBackend.
+     * storageDir is for the files of StorageBackend.MAPPED. System temporary directory is used when null.
+     */
+    private StorageBackend storageBackend = StorageBackend.HEAP;
+    private File storageDir = null;
+
+    /**
+     * Compression of the image stack. See StackCompression.
+     * stackCacheBytes bounds the decompressed bands that each reading thread keeps, it is raised to hold two bands
+     * of every image. The compressed stack is on the heap regardless of the storageBackend.
+     */
+    private StackCompression stackCompression = StackCompression.NONE;
+    private long stackCacheBytes = 4L * 1024 * 1024;
+}
@@ -0,0 +1,272 @@
+package lee.kyuhae.john.compphoto.algorithm.histogram;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.opencv.core.Rect;
+
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * SpeculativeExpansion
+ *
+ * Expands several labels at once. Each label is expanded on its own copy of the current labels, on its own thread,
+ * and the resulting proposals are merged into the labels of the minimizer in the order of their gain.
+ * Copies are in the StorageBackend of the minimizer.
+ * - A proposal that does not touch (share or neighbor a pixel with) what has been merged before it is merged as it is,
+ *   when its energy difference against the merged labels confirms the gain.
+ * - Otherwise its label is expanded again on the merged labels, restricted to the bounding box of the proposal.
+ *   The proposal is one of the labelings that this expansion considers, so it is at least as good as fusing the
+ *   proposal with the merged labels.
+ * The energy never goes up, since each merge either lowers it or is skipped.
+ */
+@Slf4j
+class SpeculativeExpansion {
+    /**
+     * Gains up to this fraction of the energy are rounding errors, e.g. a pixel that moves between two labels
+     * of the same cost. Counting them as gains would keep the scheduler from converging.
+     */
+    private static final double GAIN_TOLERANCE = 1e-12;
+
+    private final EnergyMinimizer minimizer;
+    @Getter private final int parallelism;
+    private final ShortBuffer[] workspaces;
+    private final ForkJoinPool pool;
+
+    private int batches = 0;
+    private int merged = 0;
+    private int fused = 0;
+
+    SpeculativeExpansion(EnergyMinimizer minimizer, int parallelism) {
+        if (parallelism < 2) {
+            throw new IllegalArgumentException("Received parallelism " + parallelism + ". It should be at least 2.");
+        }
+
+        this.minimizer = minimizer;
+        this.parallelism = parallelism;
+        this.workspaces = new ShortBuffer[parallelism];
+        for (int i = 0; i < parallelism; i++) {
+            workspaces[i] = minimizer.allocateLabels();
+        }
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Expands the labels of the batch (at most parallelism of them) against the current labels, and merges the
+     * proposals into them. The gain of each label is recorded to the scheduler. Returns the energy after the merge.
+     */
+    double expand(short[] batch, final double energy, LabelScheduler scheduler) {
+        if (batch.length > parallelism) {
+            throw new IllegalArgumentException("Received " + batch.length + " labels. At most " + parallelism
+                    + " labels can be expanded at once.");
+        }
+
+        List<Proposal> proposals = propose(batch, energy);
+        batches++;
+
+        // Proposals that did not lower the energy are recorded first, so that a gain in this batch clears them.
+        // They were tried on labels that the merge is about to change.
+        List<Proposal> improving = new ArrayList<>();
+        for (Proposal proposal : proposals) {
+            if (proposal.gain > 0) {
+                improving.add(proposal);
+            } else {
+                scheduler.record(proposal.label, 0.0d);
+            }
+        }
+        Collections.sort(improving, new Comparator<Proposal>() {
+            @Override
+            public int compare(Proposal p1, Proposal p2) {
+                return Double.compare(p2.gain, p1.gain);
+            }
+        });
+
+        ShortBuffer labels = minimizer.labels;
+        BitSet touched = new BitSet(minimizer.width * minimizer.height);
+        double mergedEnergy = energy;
+        for (Proposal proposal : improving) {
+            double gain = 0.0d;
+            boolean isMerged = false;
+            if (!touches(proposal, touched)) {
+                double difference = minimizer.BVZComputeEnergyDifference(proposal.labels, proposal.changes,
+                        proposal.changes.length);
+                if (difference < 0) {
+                    for (int index : proposal.changes) {
+                        labels.put(index, proposal.labels.get(index));
+                    }
+                    markChanges(proposal, touched);
+                    gain = -difference;
+                    isMerged = true;
+                    merged++;
+                }
+            }
+
+            if (!isMerged) {
+                Rect box = getBoundingBox(proposal);
+                double boxEnergy = minimizer.BVZComputeEnergy(box);
+                gain = boxEnergy - minimizer.BVZExpand(proposal.label, boxEnergy, box);
+                markBox(box, touched);
+                fused++;
+            }
+
+            mergedEnergy -= gain;
+            scheduler.record(proposal.label, isGain(gain, energy) ? gain : 0.0d);
+        }
+
+        log.debug("Speculative batch {}: {} labels, {} improving proposals, energy {} -> {}.",
+                batches, batch.length, improving.size(), energy, mergedEnergy);
+        return mergedEnergy;
+    }
+
+    private static boolean isGain(double gain, double energy) {
+        return gain > Math.abs(energy) * GAIN_TOLERANCE;
+    }
+
+    void logReport() {
+        log.info("Speculative expansion ran {} batches of up to {} labels. {} proposals merged, {} fused.",
+                batches, parallelism, merged, fused);
+    }
+
+    void close() {
+        pool.shutdown();
+    }
+
+    private List<Proposal> propose(short[] batch, final double energy) {
+        final ShortBuffer labels = minimizer.labels;
+        final Rect image = new Rect(0, 0, minimizer.width, minimizer.height);
+        List<Callable<Proposal>> tasks = new ArrayList<>(batch.length);
+        for (int i = 0; i < batch.length; i++) {
+            final short a = batch[i];
+            final ShortBuffer workspace = workspaces[i];
+            tasks.add(new Callable<Proposal>() {
+                @Override
+                public Proposal call() {
+                    EnergyMinimizer.copyLabels(labels, workspace);
+                    double proposalEnergy = minimizer.BVZExpand(a, energy, image, workspace);
+                    int[] changes = findChanges(labels, workspace, image.width * image.height);
+
+                    if (!isGain(energy - proposalEnergy, energy) || changes.length == 0) {
+                        return new Proposal(a, workspace, 0.0d, new int[0]);
+                    }
+                    return new Proposal(a, workspace, energy - proposalEnergy, changes);
+                }
+            });
+        }
+
+        List<Proposal> proposals = new ArrayList<>(batch.length);
+        try {
+            for (Future<Proposal> future : pool.invokeAll(tasks)) {
+                proposals.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while expanding labels.", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to expand labels.", e.getCause());
+        }
+        return proposals;
+    }
+
+    private static int[] findChanges(ShortBuffer labels, ShortBuffer proposal, int numPixels) {
+        int count = 0;
+        for (int index = 0; index < numPixels; index++) {
+            if (labels.get(index) != proposal.get(index)) {
+                count++;
+            }
+        }
+
+        int[] changes = new int[count];
+        count = 0;
+        for (int index = 0; index < numPixels; index++) {
+            if (labels.get(index) != proposal.get(index)) {
+                changes[count++] = index;
+            }
+        }
+        return changes;
+    }
+
+    private boolean touches(Proposal proposal, BitSet touched) {
+        for (int index : proposal.changes) {
+            if (touched.get(index)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Marks the changed pixels and their neighbors.
+     */
+    private void markChanges(Proposal proposal, BitSet touched) {
+        int width = minimizer.width;
+        int height = minimizer.height;
+        for (int index : proposal.changes) {
+            int col = index % width;
+            int row = index / width;
+            touched.set(index);
+            if (col > 0) {
+                touched.set(index - 1);
+            }
+            if (col < width - 1) {
+                touched.set(index + 1);
+            }
+            if (row > 0) {
+                touched.set(index - width);
+            }
+            if (row < height - 1) {
+                touched.set(index + width);
+            }
+        }
+    }
+
+    /**
+     * Marks the box and its neighbors. Any pixel in the box may have changed.
+     */
+    private void markBox(Rect box, BitSet touched) {
+        int width = minimizer.width;
+        int colStart = Math.max(box.x - 1, 0);
+        int colEnd = Math.min(box.x + box.width + 1, width);
+        for (int row = Math.max(box.y - 1, 0); row < Math.min(box.y + box.height + 1, minimizer.height); row++) {
+            touched.set(row * width + colStart, row * width + colEnd);
+        }
+    }
+
+    private Rect getBoundingBox(Proposal proposal) {
+        int width = minimizer.width;
+        int minCol = width, minRow = minimizer.height, maxCol = -1, maxRow = -1;
+        for (int index : proposal.changes) {
+            int col = index % width;
+            int row = index / width;
+            minCol = Math.min(minCol, col);
+            minRow = Math.min(minRow, row);
+            maxCol = Math.max(maxCol, col);
+            maxRow = Math.max(maxRow, row);
+        }
+        return new Rect(minCol, minRow, maxCol - minCol + 1, maxRow - minRow + 1);
+    }
+
+    /**
+     * Labels proposed by expanding label on the current labels. changes are the pixels that moved to label.
+     */
+    private static class Proposal {
+        final short label;
+        final ShortBuffer labels;
+        final double gain;
+        final int[] changes;
+
+        Proposal(short label, ShortBuffer labels, double gain, int[] changes) {
+            this.label = label;
+            this.labels = labels;
+            this.gain = gain;
+            this.changes = changes;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package lee.kyuhae.john.compphoto.algorithm.histogram;
+
+/**
+ * How the image stack of the minimizer is kept in memory.
+ * - NONE: raw pixel values, in the StorageBackend.
+ * - DEFLATE: bands of rows of each image compressed with Deflater on the heap, after predicting each value from
+ *   the pixel on its left. Bands are decompressed on demand into a small cache of each reading thread, of
+ *   SolverOptions.stackCacheBytes.
+ * - DELTA: same as DEFLATE, but images other than the first are stored as the difference from the first image,
+ *   which compresses much better when most of the scene does not move.
+ *
+ * Compression does not change the result. It trades time for memory. With compression, the histogram does not keep
+ * the bins of every pixel either, it counts them again from the stack when the data costs are computed.
+ */
+public enum StackCompression {
+    NONE,
+    DEFLATE,
+    DELTA
+}
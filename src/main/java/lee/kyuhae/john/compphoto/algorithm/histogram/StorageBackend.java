@@ -0,0 +1,88 @@
+package lee.kyuhae.john.compphoto.algorithm.histogram;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Where the per-pixel data of a job -- image stack, histogram, data costs, labels and the per-pixel buffers of
+ * the expansions -- is stored.
+ * - HEAP: Java arrays on the heap. Fastest, but the heap grows with the input resolution.
+ * - DIRECT: Direct ByteBuffers outside of the heap. Histograms are built again per row when needed,
+ *   so that what a job keeps between solves is off the heap.
+ * - MAPPED: Same as DIRECT, but the buffers are mapped from temporary files in SolverOptions.storageDir,
+ *   so that the OS can page them out. Bounded by the disk instead of the memory.
+ *
+ * The max-flow graph of an expansion -- a Node per pixel it covers and Arcs for its edges -- is on the heap for
+ * every backend. Restricting the solve to a region bounds it.
+ */
+public enum StorageBackend {
+    HEAP,
+    DIRECT,
+    MAPPED;
+
+    /**
+     * Allocates a zero-filled buffer of the given size in native byte order.
+     * dir is used by MAPPED only. The system temporary directory is used when dir is null.
+     */
+    ByteBuffer allocate(long bytes, File dir) {
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("A single buffer can be at most " + Integer.MAX_VALUE
+                    + " bytes. Requested " + bytes + " bytes.");
+        }
+
+        switch (this) {
+            case HEAP:
+                return ByteBuffer.allocate((int) bytes).order(ByteOrder.nativeOrder());
+            case DIRECT:
+                return ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder());
+            case MAPPED:
+                return map(bytes, dir);
+            default:
+                throw new IllegalStateException("Unknown storage backend " + this);
+        }
+    }
+
+    /**
+     * Zero-filled shorts, e.g. labels. Backed by a short[] for HEAP, so that access is a plain array access.
+     */
+    public ShortBuffer allocateShorts(int count, File dir) {
+        return this == HEAP ? ShortBuffer.wrap(new short[count])
+                : allocate((long) count * Short.BYTES, dir).asShortBuffer();
+    }
+
+    IntBuffer allocateInts(int count, File dir) {
+        return this == HEAP ? IntBuffer.wrap(new int[count])
+                : allocate((long) count * Integer.BYTES, dir).asIntBuffer();
+    }
+
+    DoubleBuffer allocateDoubles(int count, File dir) {
+        return this == HEAP ? DoubleBuffer.wrap(new double[count])
+                : allocate((long) count * Double.BYTES, dir).asDoubleBuffer();
+    }
+
+    private static ByteBuffer map(long bytes, File dir) {
+        try {
+            File file = File.createTempFile("cleanslate", ".bin", dir);
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+                randomAccessFile.setLength(bytes);
+                ByteBuffer buffer = randomAccessFile.getChannel()
+                        .map(FileChannel.MapMode.READ_WRITE, 0, bytes).order(ByteOrder.nativeOrder());
+
+                // Mapping stays valid after the file is deleted. Otherwise it goes when the JVM exits.
+                if (!file.delete()) {
+                    file.deleteOnExit();
+                }
+                return buffer;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to map " + bytes + " bytes in " + dir + ".", e);
+        }
+    }
+}
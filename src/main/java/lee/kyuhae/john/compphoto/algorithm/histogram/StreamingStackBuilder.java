@@ -0,0 +1,67 @@
+package lee.kyuhae.john.compphoto.algorithm.histogram;
+
+import lombok.extern.slf4j.Slf4j;
+import org.opencv.core.Mat;
+
+/**
+ * StreamingStackBuilder
+ *
+ * Builds a PreparedStack from images that are added one at a time, e.g. while they are being decoded.
+ * Each image is written into the stack and added to the pixel histograms in a single row-major pass,
+ * and nothing else of it is kept, so that the caller can release it before decoding the next one.
+ * The data costs are computed from the stack once every image is in.
+ *
+ * The stack is built with the storage options, so peak heap does not grow with the number of images
+ * with a stackCompression or a StorageBackend other than HEAP. With neither, the stack itself is as large as
+ * the images and the histogram keeps the bins of every pixel, but the images are not held twice.
+ */
+@Slf4j
+public class StreamingStackBuilder {
+    private final int numImages;
+    private final SolverOptions options;
+
+    /**
+     * Created with the first image, once the size is known.
+     */
+    private ImageStack stack = null;
+    private Histogram histogram = null;
+    private int numAdded = 0;
+
+    public StreamingStackBuilder(int numImages, SolverOptions options) {
+        if (numImages < 1) {
+            throw new IllegalArgumentException("Number of images should be at least 1. Given " + numImages + ".");
+        }
+        this.numImages = numImages;
+        this.options = options;
+    }
+
+    /**
+     * Adds the next image. Images take the labels in the order they are added.
+     */
+    public void add(Mat image) {
+        if (numAdded == numImages) {
+            throw new IllegalStateException("All " + numImages + " images are already added.");
+        }
+
+        if (stack == null) {
+            this.stack = ImageStack.create(image.width(), image.height(), numImages, options);
+            this.histogram = new Histogram(stack, Histogram.keepsPixels(options));
+        }
+
+        byte[] values = stack.read(image);
+        stack.write(numAdded, values);
+        histogram.addImage(values);
+        numAdded++;
+        log.debug("Added image {} of {} to the stack.", numAdded, numImages);
+    }
+
+    public PreparedStack build() {
+        if (numAdded < numImages) {
+            throw new IllegalStateException("Only " + numAdded + " of " + numImages + " images are added.");
+        }
+
+        histogram.finish();
+        ImageStack.logCompression(stack, options);
+        return new PreparedStack(null, histogram, options);
+    }
+}
@@ -0,0 +1,395 @@
+package lee.kyuhae.john.compphoto.algorithm.maxflow;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * IBFSMaxFlowFinder
+ *
+ * Acknowledgement:
+ * - Maximum Flows by Incremental Breadth-First Search
+ *      by Andrew V. Goldberg, Sagi Hed, Haim Kaplan, Robert E. Tarjan, and Renato F. Werneck
+ *
+ * Same search trees as MaxFlowFinder -- a source tree and a sink tree grown towards each other, with paths
+ * augmented where they meet -- but the trees are breadth-first search trees. Every node of a tree has a label
+ * (distance), one more than the label of its parent, and a tree is grown one whole level of labels at a time.
+ * Parent arcs, sink flags and terminal capacities follow MaxFlowFinder, so Graph.whatSegment works the same.
+ *
+ * Orphans are processed in the order of their labels. An orphan keeps its label when a node one level closer to
+ * the terminal can be its parent, and otherwise takes the closest one and its children become orphans. A node that
+ * gets a label of a level that is already scanned is scanned right away, and arcs between the trees that are found
+ * that way are augmented once the orphans are done. On the grids of the expansions a node has at most 4 arcs, so
+ * the arcs are scanned from the first one each time instead of keeping a current arc.
+ */
+@Slf4j
+public class IBFSMaxFlowFinder extends MaxFlowSolver {
+    private static final Arc TERMINAL = new Arc();
+    private static final Arc ORPHAN = new Arc();
+
+    private final SearchTree sourceTree = new SearchTree(false);
+    private final SearchTree sinkTree = new SearchTree(true);
+
+    /**
+     * Arcs from the source tree to the sink tree that are yet to be augmented.
+     */
+    private final List<Arc> meetingArcs = new ArrayList<>();
+
+    /**
+     * Node.timestamp marks the next list a node is in.
+     */
+    private int stamp = 0;
+
+    public IBFSMaxFlowFinder(Node[] nodes) {
+        super(nodes);
+    }
+
+    private void init() {
+        sourceTree.startLevel();
+        sinkTree.startLevel();
+        for (Node node : nodes) {
+            node.setNext(null);
+            node.setTimestamp(0);
+            if (node.getResidualCapacity() > 0) {
+                // this node is connected to the source.
+                sourceTree.addRoot(node);
+            } else if (node.getResidualCapacity() < 0) {
+                // this node is connected to the sink
+                sinkTree.addRoot(node);
+            } else {
+                node.setParent(null);
+            }
+        }
+    }
+
+    @Override
+    public double findMaxFlow() {
+        init();
+
+        // Grows the tree that has fewer nodes to scan at its next level, until neither can grow.
+        long passes = 0;
+        while (!sourceTree.next.isEmpty() || !sinkTree.next.isEmpty()) {
+            if (!sourceTree.next.isEmpty()
+                    && (sinkTree.next.isEmpty() || sourceTree.next.size() <= sinkTree.next.size())) {
+                sourceTree.grow();
+            } else {
+                sinkTree.grow();
+            }
+            passes++;
+        }
+
+        log.debug("Max-flow computation completed in {} passes. Returning flow {}.", passes, flow);
+        return flow;
+    }
+
+    /**
+     * Augments along source ... -> middleArc -> ... sink, and along the meeting arcs found meanwhile.
+     */
+    private void augment(Arc middleArc) {
+        meetingArcs.add(middleArc);
+        while (!meetingArcs.isEmpty()) {
+            Arc a = meetingArcs.get(meetingArcs.size() - 1);
+            if (a.getResidualCapacity() > 0
+                    && sourceTree.contains(a.getSister().getHead()) && sinkTree.contains(a.getHead())) {
+                // Again, until the arc is saturated or the trees no longer meet there.
+                augmentPath(a);
+            } else {
+                meetingArcs.remove(meetingArcs.size() - 1);
+            }
+        }
+    }
+
+    private void augmentPath(Arc middleArc) {
+        Node i;
+        Arc a;
+
+        /* 1. Finding bottleneck capacity */
+        double bottleneck = middleArc.getResidualCapacity();
+        for (i = middleArc.getSister().getHead(); (a = i.getParent()) != TERMINAL; i = a.getHead()) {
+            bottleneck = Math.min(bottleneck, a.getSister().getResidualCapacity());
+        }
+        bottleneck = Math.min(bottleneck, i.getResidualCapacity());
+
+        for (i = middleArc.getHead(); (a = i.getParent()) != TERMINAL; i = a.getHead()) {
+            bottleneck = Math.min(bottleneck, a.getResidualCapacity());
+        }
+        bottleneck = Math.min(bottleneck, -i.getResidualCapacity());
+
+        /* 2. Augmenting */
+        middleArc.getSister().setResidualCapacity(middleArc.getSister().getResidualCapacity() + bottleneck);
+        middleArc.setResidualCapacity(middleArc.getResidualCapacity() - bottleneck);
+
+        for (i = middleArc.getSister().getHead(); (a = i.getParent()) != TERMINAL; i = a.getHead()) {
+            a.setResidualCapacity(a.getResidualCapacity() + bottleneck);
+            a.getSister().setResidualCapacity(a.getSister().getResidualCapacity() - bottleneck);
+            if (a.getSister().getResidualCapacity() <= 0) {
+                sourceTree.makeOrphan(i);
+            }
+        }
+        i.setResidualCapacity(i.getResidualCapacity() - bottleneck);
+        if (i.getResidualCapacity() <= 0) {
+            sourceTree.makeOrphan(i);
+        }
+
+        for (i = middleArc.getHead(); (a = i.getParent()) != TERMINAL; i = a.getHead()) {
+            a.getSister().setResidualCapacity(a.getSister().getResidualCapacity() + bottleneck);
+            a.setResidualCapacity(a.getResidualCapacity() - bottleneck);
+            if (a.getResidualCapacity() <= 0) {
+                sinkTree.makeOrphan(i);
+            }
+        }
+        // Residual capacity of a node connected to the sink is negative.
+        i.setResidualCapacity(i.getResidualCapacity() + bottleneck);
+        if (i.getResidualCapacity() >= 0) {
+            sinkTree.makeOrphan(i);
+        }
+
+        flow += bottleneck;
+
+        sourceTree.adoptOrphans();
+        sinkTree.adoptOrphans();
+        sourceTree.scanLateNodes();
+        sinkTree.scanLateNodes();
+    }
+
+    /**
+     * One of the search trees. Comments are written for the source tree. The sink tree is the same on the reverse
+     * graph, so it reads the residual capacities of the sister arcs.
+     */
+    private class SearchTree {
+        private final boolean sink;
+
+        /**
+         * Labels up to the level are scanned. Nodes labeled level + 1 are in the next list to be scanned.
+         */
+        private int level = 0;
+        private List<Node> next = new ArrayList<>();
+        private int nextStamp;
+
+        /**
+         * Orphans by their labels, so that they are processed from the one closest to the terminal.
+         */
+        private final List<List<Node>> orphans = new ArrayList<>();
+        private int minOrphanLabel = Integer.MAX_VALUE;
+
+        /**
+         * Nodes that got a label of a scanned level, and are yet to be scanned.
+         */
+        private final List<Node> lateNodes = new ArrayList<>();
+
+        SearchTree(boolean sink) {
+            this.sink = sink;
+        }
+
+        /**
+         * In this tree, and not an orphan.
+         */
+        boolean contains(Node i) {
+            return i.isSink() == sink && i.getParent() != null && i.getParent() != ORPHAN;
+        }
+
+        /**
+         * Residual capacity of a, from its tail towards the leaves of this tree.
+         */
+        private double outCapacity(Arc a) {
+            return sink ? a.getSister().getResidualCapacity() : a.getResidualCapacity();
+        }
+
+        /**
+         * Residual capacity of a, from its head towards the root of this tree.
+         */
+        private double inCapacity(Arc a) {
+            return sink ? a.getResidualCapacity() : a.getSister().getResidualCapacity();
+        }
+
+        /**
+         * a goes from a node of this tree to a node of the other tree. Returns it from the source tree side.
+         */
+        private Arc meetingArc(Arc a) {
+            return sink ? a.getSister() : a;
+        }
+
+        private SearchTree other() {
+            return sink ? sourceTree : sinkTree;
+        }
+
+        void startLevel() {
+            next = new ArrayList<>();
+            nextStamp = ++stamp;
+        }
+
+        void addRoot(Node i) {
+            i.setSink(sink);
+            i.setParent(TERMINAL);
+            i.setDistance(1);
+            addNext(i);
+        }
+
+        private void addNext(Node i) {
+            if (i.getTimestamp() != nextStamp) {
+                i.setTimestamp(nextStamp);
+                next.add(i);
+            }
+        }
+
+        /**
+         * Sets the parent and the label of a node that is free, or an orphan of this tree.
+         */
+        private void attach(Node i, Arc parent, int label) {
+            i.setSink(sink);
+            i.setParent(parent);
+            i.setDistance(label);
+            if (label == level + 1) {
+                addNext(i);
+            } else {
+                lateNodes.add(i);
+            }
+        }
+
+        void grow() {
+            List<Node> active = next;
+            level++;
+            startLevel();
+
+            for (Node i : active) {
+                if (!contains(i) || i.getDistance() != level) {
+                    // Relabeled or freed since it was queued.
+                    continue;
+                }
+
+                Arc a = i.getFirst();
+                while (a != null) {
+                    if (outCapacity(a) > 0) {
+                        Node j = a.getHead();
+                        if (j.getParent() == null) {
+                            attach(j, a.getSister(), level + 1);
+                        } else if (j.isSink() != sink) {
+                            augment(meetingArc(a));
+                            if (!contains(i) || i.getDistance() != level) {
+                                break;
+                            }
+                            // The same arc again, until it is saturated or j leaves the other tree.
+                            continue;
+                        }
+                    }
+                    a = a.getNext();
+                }
+            }
+        }
+
+        /**
+         * Scans the nodes that got a label of a scanned level. Free nodes join the tree, and the arcs to
+         * the other tree are left for augment().
+         */
+        void scanLateNodes() {
+            while (!lateNodes.isEmpty()) {
+                Node i = lateNodes.remove(lateNodes.size() - 1);
+                if (!contains(i) || i.getDistance() > level) {
+                    continue;
+                }
+
+                for (Arc a = i.getFirst(); a != null; a = a.getNext()) {
+                    if (outCapacity(a) > 0) {
+                        Node j = a.getHead();
+                        if (j.getParent() == null) {
+                            attach(j, a.getSister(), i.getDistance() + 1);
+                        } else if (j.isSink() != sink) {
+                            meetingArcs.add(meetingArc(a));
+                        }
+                    }
+                }
+            }
+        }
+
+        void makeOrphan(Node i) {
+            i.setParent(ORPHAN);
+            int label = i.getDistance();
+            while (orphans.size() <= label) {
+                orphans.add(new ArrayList<Node>());
+            }
+            orphans.get(label).add(i);
+            minOrphanLabel = Math.min(minOrphanLabel, label);
+        }
+
+        void adoptOrphans() {
+            // Orphans may get labels below the one that is processed, so the lowest one is looked up every time.
+            while (minOrphanLabel != Integer.MAX_VALUE) {
+                int label = minOrphanLabel;
+                List<Node> bucket = orphans.get(label);
+                // Orphans made while processing the bucket with the same label are appended to it.
+                for (int k = 0; k < bucket.size(); k++) {
+                    Node i = bucket.get(k);
+                    if (i.getParent() == ORPHAN && i.isSink() == sink && i.getDistance() == label) {
+                        adopt(i, label);
+                    }
+                }
+                bucket.clear();
+
+                int lowest = minOrphanLabel;
+                minOrphanLabel = Integer.MAX_VALUE;
+                for (int l = lowest; l < orphans.size(); l++) {
+                    if (!orphans.get(l).isEmpty()) {
+                        minOrphanLabel = l;
+                        break;
+                    }
+                }
+            }
+        }
+
+        private void adopt(Node i, int label) {
+            // A parent one level closer to the terminal keeps the label, and the children.
+            Arc parent = findParent(i);
+            if (parent != null && parent.getHead().getDistance() == label - 1) {
+                attach(i, parent, label);
+                return;
+            }
+
+            // Otherwise the label changes, so the children lose their parent. The closest parent sets the label.
+            boolean parentOrphaned = false;
+            for (Arc a = i.getFirst(); a != null; a = a.getNext()) {
+                Node j = a.getHead();
+                if (contains(j) && j.getParent() != TERMINAL && j.getParent().getHead() == i) {
+                    makeOrphan(j);
+                    parentOrphaned |= a == parent;
+                }
+            }
+            if (parentOrphaned) {
+                parent = findParent(i);
+            }
+
+            if (parent != null) {
+                attach(i, parent, parent.getHead().getDistance() + 1);
+            } else {
+                i.setParent(null);
+                other().offer(i);
+            }
+        }
+
+        /**
+         * Arc to the node of this tree with the lowest label up to the level, that reaches i.
+         */
+        private Arc findParent(Node i) {
+            Arc parent = null;
+            int parentLabel = level + 1;
+            for (Arc a = i.getFirst(); a != null; a = a.getNext()) {
+                Node j = a.getHead();
+                if (inCapacity(a) > 0 && contains(j) && j.getDistance() < parentLabel) {
+                    parent = a;
+                    parentLabel = j.getDistance();
+                }
+            }
+            return parent;
+        }
+
+        /**
+         * A node freed by the other tree joins this one when it is reached from it.
+         */
+        private void offer(Node i) {
+            Arc parent = findParent(i);
+            if (parent != null) {
+                attach(i, parent, parent.getHead().getDistance() + 1);
+            }
+        }
+    }
+}
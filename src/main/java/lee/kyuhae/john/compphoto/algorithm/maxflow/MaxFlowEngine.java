@@ -0,0 +1,31 @@
+package lee.kyuhae.john.compphoto.algorithm.maxflow;
+
+/**
+ * MaxFlowEngine
+ *
+ * Max-flow algorithm of the expansions. Both find a minimum cut, the same one up to rounding. See MaxFlowSolver.
+ * - BOYKOV_KOLMOGOROV: MaxFlowFinder, without a polynomial bound on paper, but the faster one on expansion graphs.
+ * - IBFS: IBFSMaxFlowFinder, with exact distance labels in the search trees, which bounds the running time.
+ *
+ * Use BOYKOV_KOLMOGOROV. Nearly every node of an expansion graph is connected to a terminal, so search trees are
+ * one or two levels deep and the bound of IBFS buys nothing. On the graphs of the bundled stacks, IBFS was slower
+ * at every percentile, with a p99 about 2 to 3.5 times that of BOYKOV_KOLMOGOROV. IBFS is the right choice only
+ * for graphs with long augmenting paths, e.g. large regions of pixels without terminal capacity, and is there to
+ * be measured against BOYKOV_KOLMOGOROV on such inputs with MaxFlowBenchmark.
+ */
+public enum MaxFlowEngine {
+    BOYKOV_KOLMOGOROV {
+        @Override
+        public MaxFlowSolver create(Node[] nodes) {
+            return new MaxFlowFinder(nodes);
+        }
+    },
+    IBFS {
+        @Override
+        public MaxFlowSolver create(Node[] nodes) {
+            return new IBFSMaxFlowFinder(nodes);
+        }
+    };
+
+    public abstract MaxFlowSolver create(Node[] nodes);
+}
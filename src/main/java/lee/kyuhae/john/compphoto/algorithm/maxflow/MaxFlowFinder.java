@@ -17,49 +17,31 @@ import lombok.extern.slf4j.Slf4j;
  * The corresponding class is maxflow.cpp
  **/
 @Slf4j
-public class MaxFlowFinder {
+public class MaxFlowFinder extends MaxFlowSolver {
     private static final Arc TERMINAL = new Arc();
     private static final Arc ORPHAN = new Arc();
     private static final int INFINITE_DISTANCE = 1000000000;
 
-    private final Node[] nodes;
-
     private Node[] queueFirst = new Node[2];
     private Node[] queueLast = new Node[2];
     private NodePointer orphanFirst = null;
     private NodePointer orphanLast = null;
     private int timestamp = 0;
-    private double flow = 0.0;
 
     public MaxFlowFinder(Node[] nodes) {
-        this.nodes = nodes;
-    }
-
-    public void setTweights(Node i, double sourceCapacity, double sinkCapacity) {
-        flow += sourceCapacity < sinkCapacity ? sourceCapacity : sinkCapacity;
-        i.setResidualCapacity(sourceCapacity - sinkCapacity);
-    }
-
-    public void addTweights(Node i, double sourceCapacity, double sinkCapacity) {
-        double delta = i.getResidualCapacity();
-        if (delta > 0) {
-            sourceCapacity += delta;
-        } else {
-            sinkCapacity -= delta;
-        }
-
-        setTweights(i, sourceCapacity, sinkCapacity);
+        super(nodes);
     }
 
     private void setActive(Node i) {
         if (i.getNext() == null) {
+            // It's not in the list yet.
             if (queueLast[1] != null) {
                 queueLast[1].setNext(i);
             } else {
                 queueFirst[1] = i;
-                queueLast[1] = i;
-                i.setNext(i);
             }
+            queueLast[1] = i;
+            i.setNext(i);
         }
     }
 
@@ -83,8 +65,8 @@ public class MaxFlowFinder {
                 queueFirst[0] = queueLast[0] = null;
             } else {
                 queueFirst[0] = i.getNext();
-                i.setNext(null);
             }
+            i.setNext(null);
 
             // A node in the list is active iff it has a parent.
             if (i.getParent() != null) {
@@ -97,7 +79,7 @@ public class MaxFlowFinder {
         queueFirst[0] = null;
         queueFirst[1] = null;
         queueLast[0] = null;
-        queueLast[0] = null;
+        queueLast[1] = null;
         orphanFirst = null;
 
         for (Node node : nodes) {
@@ -229,7 +211,8 @@ public class MaxFlowFinder {
         updatedRC = i.getResidualCapacity() + bottleneck;
         i.setResidualCapacity(updatedRC);
 
-        if (i.getResidualCapacity() <= 0) {
+        // Residual capacity of a node connected to the sink is negative.
+        if (i.getResidualCapacity() >= 0) {
             /* add i to the adoption list */
             i.setParent(ORPHAN);
             np = new NodePointer();
@@ -412,6 +395,7 @@ public class MaxFlowFinder {
         }
     }
 
+    @Override
     public double findMaxFlow() {
         Node i, j, cur = null;
         Arc a;
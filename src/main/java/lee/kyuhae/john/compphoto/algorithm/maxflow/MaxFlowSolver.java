@@ -0,0 +1,41 @@
+package lee.kyuhae.john.compphoto.algorithm.maxflow;
+
+/**
+ * MaxFlowSolver
+ *
+ * Max-flow over a graph of Nodes built with Graph.addEdge. Terminal capacities are kept in the nodes as in
+ * graph.h -- positive residual capacity to the source, negative to the sink -- and the part of them that
+ * cancels out goes straight into the flow.
+ *
+ * After findMaxFlow(), Graph.whatSegment tells the side of the minimum cut of every node: SOURCE for the nodes
+ * that are reachable from the source in the residual graph, SINK for all the others. The set is the same for
+ * every maximum flow, but capacities are doubles, so engines that push the flow in a different order may leave
+ * a few arcs with residual capacities that are only rounding errors, and cut a few nodes differently at the same
+ * capacity.
+ */
+public abstract class MaxFlowSolver {
+    final Node[] nodes;
+    double flow = 0.0;
+
+    MaxFlowSolver(Node[] nodes) {
+        this.nodes = nodes;
+    }
+
+    public void setTweights(Node i, double sourceCapacity, double sinkCapacity) {
+        flow += sourceCapacity < sinkCapacity ? sourceCapacity : sinkCapacity;
+        i.setResidualCapacity(sourceCapacity - sinkCapacity);
+    }
+
+    public void addTweights(Node i, double sourceCapacity, double sinkCapacity) {
+        double delta = i.getResidualCapacity();
+        if (delta > 0) {
+            sourceCapacity += delta;
+        } else {
+            sinkCapacity -= delta;
+        }
+
+        setTweights(i, sourceCapacity, sinkCapacity);
+    }
+
+    public abstract double findMaxFlow();
+}
@@ -0,0 +1,147 @@
+package lee.kyuhae.john.compphoto.algorithm.maxflow;
+
+import lombok.Getter;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * RecordedGraph
+ *
+ * Copy of a graph of Nodes with its residual and terminal capacities, kept in plain arrays so that the same graph
+ * can be solved again from scratch, e.g. by every MaxFlowEngine to compare them.
+ */
+public class RecordedGraph {
+    private final double[] terminalCapacities;
+    private final int[] tails;
+    private final int[] heads;
+    private final double[] capacities;
+    private final double[] reverseCapacities;
+
+    private RecordedGraph(double[] terminalCapacities, int[] tails, int[] heads,
+                          double[] capacities, double[] reverseCapacities) {
+        this.terminalCapacities = terminalCapacities;
+        this.tails = tails;
+        this.heads = heads;
+        this.capacities = capacities;
+        this.reverseCapacities = reverseCapacities;
+    }
+
+    /**
+     * Records the graph as it is now. Arcs to nodes that are not in nodes are not recorded.
+     */
+    public static RecordedGraph capture(Node[] nodes) {
+        // Node and Arc equality is by value, so they are looked up by identity.
+        Map<Node, Integer> nodeIndices = new IdentityHashMap<>();
+        double[] terminalCapacities = new double[nodes.length];
+        int numArcs = 0;
+        for (int i = 0; i < nodes.length; i++) {
+            nodeIndices.put(nodes[i], i);
+            terminalCapacities[i] = nodes[i].getResidualCapacity();
+            for (Arc a = nodes[i].getFirst(); a != null; a = a.getNext()) {
+                numArcs++;
+            }
+        }
+
+        // Every edge is a pair of sister arcs, and is recorded from the one that is seen first.
+        Map<Arc, Boolean> recorded = new IdentityHashMap<>();
+        int[] tails = new int[numArcs / 2];
+        int[] heads = new int[numArcs / 2];
+        double[] capacities = new double[numArcs / 2];
+        double[] reverseCapacities = new double[numArcs / 2];
+        int numEdges = 0;
+        for (int i = 0; i < nodes.length; i++) {
+            for (Arc a = nodes[i].getFirst(); a != null; a = a.getNext()) {
+                Integer head = nodeIndices.get(a.getHead());
+                if (head == null || recorded.containsKey(a.getSister()) || numEdges == tails.length) {
+                    continue;
+                }
+                recorded.put(a, Boolean.TRUE);
+                tails[numEdges] = i;
+                heads[numEdges] = head;
+                capacities[numEdges] = a.getResidualCapacity();
+                reverseCapacities[numEdges] = a.getSister().getResidualCapacity();
+                numEdges++;
+            }
+        }
+
+        if (numEdges < tails.length) {
+            tails = Arrays.copyOf(tails, numEdges);
+            heads = Arrays.copyOf(heads, numEdges);
+            capacities = Arrays.copyOf(capacities, numEdges);
+            reverseCapacities = Arrays.copyOf(reverseCapacities, numEdges);
+        }
+        return new RecordedGraph(terminalCapacities, tails, heads, capacities, reverseCapacities);
+    }
+
+    public int getNumNodes() {
+        return terminalCapacities.length;
+    }
+
+    public int getNumEdges() {
+        return tails.length;
+    }
+
+    /**
+     * Capacity of the cut between the source side and the rest, in the graph as it was recorded.
+     */
+    public double cutCapacity(boolean[] source) {
+        double capacity = 0.0;
+        for (int i = 0; i < terminalCapacities.length; i++) {
+            if (source[i] && terminalCapacities[i] < 0) {
+                capacity -= terminalCapacities[i];
+            } else if (!source[i] && terminalCapacities[i] > 0) {
+                capacity += terminalCapacities[i];
+            }
+        }
+        for (int e = 0; e < tails.length; e++) {
+            if (source[tails[e]] && !source[heads[e]]) {
+                capacity += capacities[e];
+            } else if (!source[tails[e]] && source[heads[e]]) {
+                capacity += reverseCapacities[e];
+            }
+        }
+        return capacity;
+    }
+
+    /**
+     * Solves a fresh copy of the graph with the engine. Only findMaxFlow() is timed.
+     */
+    public Solution solve(MaxFlowEngine engine) {
+        Node[] nodes = new Node[terminalCapacities.length];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = new Node(i).setResidualCapacity(terminalCapacities[i]);
+        }
+        for (int e = 0; e < tails.length; e++) {
+            Graph.addEdge(nodes[tails[e]], nodes[heads[e]], capacities[e], reverseCapacities[e]);
+        }
+
+        MaxFlowSolver solver = engine.create(nodes);
+        long startNanos = System.nanoTime();
+        double flow = solver.findMaxFlow();
+        long nanos = System.nanoTime() - startNanos;
+
+        boolean[] source = new boolean[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            source[i] = Graph.whatSegment(nodes[i]) == Graph.SOURCE;
+        }
+        return new Solution(flow, source, nanos);
+    }
+
+    /**
+     * Flow pushed by the engine, and the side of the minimum cut of every node.
+     */
+    @Getter
+    public static class Solution {
+        private final double flow;
+        private final boolean[] source;
+        private final long nanos;
+
+        Solution(double flow, boolean[] source, long nanos) {
+            this.flow = flow;
+            this.source = source;
+            this.nanos = nanos;
+        }
+    }
+}
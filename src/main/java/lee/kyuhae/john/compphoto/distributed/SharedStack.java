@@ -0,0 +1,107 @@
+package lee.kyuhae.john.compphoto.distributed;
+
+import lombok.Getter;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * SharedStack
+ *
+ * Image stack in a single file, so that every worker can map it instead of decoding the images again.
+ * Header is magic, width, height and number of images, followed by the BGR bytes of each image in row-major order.
+ */
+class SharedStack {
+    private static final int MAGIC = 0x43535354;
+    private static final int HEADER_BYTES = 4 * 4;
+    private static final int NUM_CHANNEL = 3;
+
+    @Getter private final int width;
+    @Getter private final int height;
+    private final ByteBuffer[] buffers;
+
+    private SharedStack(int width, int height, ByteBuffer[] buffers) {
+        this.width = width;
+        this.height = height;
+        this.buffers = buffers;
+    }
+
+    int size() {
+        return buffers.length;
+    }
+
+    static void write(File file, Mat[] images) throws IOException {
+        int width = images[0].width();
+        int height = images[0].height();
+        byte[] row = new byte[width * NUM_CHANNEL];
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(images.length);
+            for (Mat image : images) {
+                if (image.width() != width || image.height() != height || image.type() != CvType.CV_8UC3) {
+                    throw new IllegalArgumentException("Images should be " + width + "x" + height
+                            + " CV_8UC3. Given " + image + ".");
+                }
+                for (int r = 0; r < height; r++) {
+                    image.get(r, 0, row);
+                    out.write(row);
+                }
+            }
+        }
+    }
+
+    /**
+     * Maps the stack read-only. Mapping stays valid after the file is closed.
+     */
+    static SharedStack open(File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            if (randomAccessFile.readInt() != MAGIC) {
+                throw new IOException(file + " is not a stack file.");
+            }
+            int width = randomAccessFile.readInt();
+            int height = randomAccessFile.readInt();
+            int numImages = randomAccessFile.readInt();
+
+            long imageBytes = (long) width * height * NUM_CHANNEL;
+            if (imageBytes > Integer.MAX_VALUE) {
+                throw new IOException("Image of " + width + "x" + height + " is larger than a single mapping.");
+            }
+
+            FileChannel channel = randomAccessFile.getChannel();
+            ByteBuffer[] buffers = new ByteBuffer[numImages];
+            for (int i = 0; i < numImages; i++) {
+                buffers[i] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + i * imageBytes, imageBytes);
+            }
+            return new SharedStack(width, height, buffers);
+        }
+    }
+
+    /**
+     * Copies the window of every image into new Mats.
+     */
+    Mat[] read(Rect window) {
+        byte[] row = new byte[window.width * NUM_CHANNEL];
+        Mat[] images = new Mat[buffers.length];
+        for (int i = 0; i < buffers.length; i++) {
+            ByteBuffer buffer = buffers[i].duplicate();
+            images[i] = new Mat(window.height, window.width, CvType.CV_8UC3);
+            for (int r = 0; r < window.height; r++) {
+                buffer.position(((window.y + r) * width + window.x) * NUM_CHANNEL);
+                buffer.get(row);
+                images[i].put(r, 0, row);
+            }
+        }
+        return images;
+    }
+}
@@ -0,0 +1,322 @@
+package lee.kyuhae.john.compphoto.distributed;
+
+import lee.kyuhae.john.compphoto.algorithm.histogram.CandidatePruning;
+import lee.kyuhae.john.compphoto.algorithm.histogram.SolverOptions;
+import lee.kyuhae.john.compphoto.algorithm.maxflow.MaxFlowEngine;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * TileCoordinator
+ *
+ * Solves the labels of images that are too large for a single process, tile by tile on worker processes.
+ * 1. Writes the images into a SharedStack in the work directory, which every worker maps.
+ * 2. Splits the image into tiles of tileSize with tileOverlap of context, and queues a task per tile.
+ * 3. Starts localWorkers TileWorkers on this machine. Workers on other machines join through the same directory.
+ * 4. Collects the labels of the core of each tile. Tasks of dead workers are requeued.
+ * 5. Labels of neighboring tiles do not agree along their boundaries, so the bands of seamBandWidth around the
+ *    boundaries are queued to be solved again, with the labels around them held fixed. Vertical bands first,
+ *    then horizontal bands on top of them. Bands of one direction do not touch, so each is solved on its own.
+ * 6. Queues the strips of rows of the image, whose energies add up to the energy of the labels.
+ *
+ * Only the labels of the whole image are kept here. Workers read the images from the SharedStack.
+ */
+@Slf4j
+public class TileCoordinator {
+    private final TiledSolveOptions options;
+    private final SolverOptions solverOptions;
+    private final WorkDirectory workDirectory;
+
+    /**
+     * Tasks given to another worker because their worker showed no sign of life, over the last solve().
+     */
+    @Getter private int requeuedTasks = 0;
+
+    /**
+     * Energy of the labels of the last solve().
+     */
+    @Getter private double energy = Double.NaN;
+
+    private int nextTaskIndex = 0;
+
+    public TileCoordinator(TiledSolveOptions options, SolverOptions solverOptions) {
+        if (options.getWorkDir() == null) {
+            throw new IllegalArgumentException("TiledSolveOptions.workDir is required.");
+        }
+        if (options.getTileSize() <= 0 || options.getTileOverlap() < 0 || options.getSeamBandWidth() < 0
+                || options.getSeamBandWidth() * 2 >= options.getTileSize()) {
+            throw new IllegalArgumentException("Received tileSize " + options.getTileSize() + ", tileOverlap "
+                    + options.getTileOverlap() + ", seamBandWidth " + options.getSeamBandWidth()
+                    + ". seamBandWidth should be less than half of tileSize.");
+        }
+
+        this.options = options;
+        this.solverOptions = solverOptions;
+        this.workDirectory = new WorkDirectory(options.getWorkDir());
+    }
+
+    /**
+     * Returns the labels of the whole image, put together from the cores of the tiles and the seams between them.
+     */
+    public short[] solve(Mat[] images) throws IOException, InterruptedException {
+        int width = images[0].width();
+        int height = images[0].height();
+        long startMillis = System.currentTimeMillis();
+
+        requeuedTasks = 0;
+        nextTaskIndex = 0;
+        workDirectory.prepare();
+        SharedStack.write(workDirectory.getStackFile(), images);
+        Properties job = writeSolverOptions(solverOptions);
+        job.setProperty("taskTimeoutMillis", String.valueOf(options.getTaskTimeoutMillis()));
+        workDirectory.writeJob(job);
+
+        List<Process> workers = startLocalWorkers();
+        List<Rect> cores = getCores(width, height);
+        short[] labels = new short[width * height];
+        try {
+            run(WorkDirectory.TaskType.TILE, cores, width, height, labels, workers, startMillis);
+            log.info("Solved {} tiles of {}x{} images in {}ms.", cores.size(), width, height,
+                    System.currentTimeMillis() - startMillis);
+
+            run(WorkDirectory.TaskType.SEAM, getSeamBands(width, height, true), width, height, labels, workers,
+                    startMillis);
+            run(WorkDirectory.TaskType.SEAM, getSeamBands(width, height, false), width, height, labels, workers,
+                    startMillis);
+
+            this.energy = run(WorkDirectory.TaskType.ENERGY, getRows(width, height), width, height, labels, workers,
+                    startMillis);
+        } finally {
+            workDirectory.markDone();
+            for (Process worker : workers) {
+                worker.waitFor();
+            }
+        }
+
+        log.info("Solved {} tiles and their seams in {}ms with energy {}.", cores.size(),
+                System.currentTimeMillis() - startMillis, energy);
+        return labels;
+    }
+
+    /**
+     * Bands of seamBandWidth on each side of the vertical or the horizontal boundaries between the tile cores.
+     */
+    List<Rect> getSeamBands(int width, int height, boolean vertical) {
+        int band = options.getSeamBandWidth();
+        List<Rect> bands = new ArrayList<>();
+        if (band == 0) {
+            return bands;
+        }
+
+        if (vertical) {
+            for (int x = options.getTileSize(); x < width; x += options.getTileSize()) {
+                int start = Math.max(x - band, 0);
+                bands.add(new Rect(start, 0, Math.min(x + band, width) - start, height));
+            }
+        } else {
+            for (int y = options.getTileSize(); y < height; y += options.getTileSize()) {
+                int start = Math.max(y - band, 0);
+                bands.add(new Rect(0, start, width, Math.min(y + band, height) - start));
+            }
+        }
+        return bands;
+    }
+
+    /**
+     * Queues a task of the type for each region, and waits for all of them. Labels of the regions are copied
+     * from the results, except for ENERGY. Returns the sum of the energies of the results.
+     */
+    private double run(WorkDirectory.TaskType type, List<Rect> regions, int width, int height, short[] labels,
+                       List<Process> workers, long startMillis) throws IOException, InterruptedException {
+        int firstIndex = nextTaskIndex;
+        for (Rect region : regions) {
+            Rect window = getWindow(type, region, width, height);
+            workDirectory.addTask(nextTaskIndex++, type, window, region,
+                    type == WorkDirectory.TaskType.TILE ? null : copyWindow(labels, width, window));
+        }
+        log.debug("Queued {} {} tasks.", regions.size(), type);
+
+        double[] energies = new double[regions.size()];
+        boolean[] collected = new boolean[regions.size()];
+        int remaining = regions.size();
+        while (remaining > 0) {
+            for (int i = 0; i < regions.size(); i++) {
+                if (collected[i]) {
+                    continue;
+                }
+
+                WorkDirectory.TileResult result = workDirectory.readResult(firstIndex + i);
+                if (result != null) {
+                    if (type != WorkDirectory.TaskType.ENERGY) {
+                        copyRegion(result, regions.get(i), width, labels);
+                    }
+                    energies[i] = result.getEnergy();
+                    collected[i] = true;
+                    remaining--;
+                    log.debug("Collected {} task {} with energy {}. {} tasks remaining.", type, firstIndex + i,
+                            result.getEnergy(), remaining);
+                }
+            }
+            if (remaining == 0) {
+                break;
+            }
+
+            requeuedTasks += workDirectory.requeueStaleClaims(options.getTaskTimeoutMillis());
+
+            if (!workers.isEmpty() && !isAnyAlive(workers)) {
+                throw new IllegalStateException("Every local worker has exited with " + remaining
+                        + " tasks remaining. See the logs in " + workDirectory.getLogDir() + ".");
+            }
+            if (options.getJobTimeoutMillis() > 0
+                    && System.currentTimeMillis() - startMillis > options.getJobTimeoutMillis()) {
+                throw new IllegalStateException("Timed out with " + remaining + " tasks remaining.");
+            }
+
+            Thread.sleep(options.getPollIntervalMillis());
+        }
+
+        // In the order of the regions, so that the sum does not depend on the order of the results.
+        double energy = 0.0d;
+        for (double regionEnergy : energies) {
+            energy += regionEnergy;
+        }
+        return energy;
+    }
+
+    private static void copyRegion(WorkDirectory.TileResult result, Rect region, int width, short[] labels) {
+        Rect window = result.getWindow();
+        for (int row = region.y; row < region.y + region.height; row++) {
+            System.arraycopy(result.getLabels(), (row - window.y) * window.width + (region.x - window.x),
+                    labels, row * width + region.x, region.width);
+        }
+    }
+
+    private static short[] copyWindow(short[] labels, int width, Rect window) {
+        short[] windowLabels = new short[window.width * window.height];
+        for (int row = 0; row < window.height; row++) {
+            System.arraycopy(labels, (window.y + row) * width + window.x, windowLabels, row * window.width,
+                    window.width);
+        }
+        return windowLabels;
+    }
+
+    private List<Rect> getCores(int width, int height) {
+        int tileSize = options.getTileSize();
+        List<Rect> cores = new ArrayList<>();
+        for (int y = 0; y < height; y += tileSize) {
+            for (int x = 0; x < width; x += tileSize) {
+                cores.add(new Rect(x, y, Math.min(tileSize, width - x), Math.min(tileSize, height - y)));
+            }
+        }
+        return cores;
+    }
+
+    /**
+     * Strips of tileSize rows, for the energy.
+     */
+    private List<Rect> getRows(int width, int height) {
+        List<Rect> rows = new ArrayList<>();
+        for (int y = 0; y < height; y += options.getTileSize()) {
+            rows.add(new Rect(0, y, width, Math.min(options.getTileSize(), height - y)));
+        }
+        return rows;
+    }
+
+    /**
+     * Part of the images that the task of the region reads.
+     * - TILE: the core with tileOverlap of context.
+     * - SEAM: the band with the pixels around it, which are held fixed.
+     * - ENERGY: the strip with the row above it. Edges go to the right and upper neighbors (see EnergyMinimizer),
+     *   so that the edges between two strips are counted once, by the lower strip.
+     */
+    private Rect getWindow(WorkDirectory.TaskType type, Rect region, int width, int height) {
+        switch (type) {
+            case TILE:
+                return expand(region, options.getTileOverlap(), width, height);
+            case SEAM:
+                return expand(region, 1, width, height);
+            case ENERGY:
+                int y = Math.max(region.y - 1, 0);
+                return new Rect(region.x, y, region.width, region.y + region.height - y);
+            default:
+                throw new IllegalArgumentException("Unknown task type " + type + ".");
+        }
+    }
+
+    private static Rect expand(Rect region, int margin, int width, int height) {
+        int x = Math.max(region.x - margin, 0);
+        int y = Math.max(region.y - margin, 0);
+        return new Rect(x, y, Math.min(region.x + region.width + margin, width) - x,
+                Math.min(region.y + region.height + margin, height) - y);
+    }
+
+    private List<Process> startLocalWorkers() throws IOException {
+        List<Process> workers = new ArrayList<>();
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        for (int i = 0; i < options.getLocalWorkers(); i++) {
+            ProcessBuilder builder = new ProcessBuilder(java,
+                    "-Djava.library.path=" + System.getProperty("java.library.path"),
+                    "-cp", System.getProperty("java.class.path"),
+                    options.getWorkerMainClass(), "worker", options.getWorkDir().getPath(),
+                    String.valueOf(options.getWorkerGraphBuildParallelism()));
+            builder.redirectErrorStream(true);
+            builder.redirectOutput(new File(workDirectory.getLogDir(), "worker-" + i + ".log"));
+            workers.add(builder.start());
+        }
+        log.info("Started {} local workers.", workers.size());
+        return workers;
+    }
+
+    private static boolean isAnyAlive(List<Process> workers) {
+        for (Process worker : workers) {
+            if (worker.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Options that affect the labels of a tile, and the max-flow engine of the job.
+     * Storage and parallelism are up to each worker.
+     */
+    private static Properties writeSolverOptions(SolverOptions solverOptions) {
+        Properties job = new Properties();
+        job.setProperty("expansionFlag", String.valueOf(solverOptions.isExpansionFlag()));
+        job.setProperty("pottsInteractionEnergyConstant",
+                String.valueOf(solverOptions.getPottsInteractionEnergyConstant()));
+        job.setProperty("regularInteractionEnergyConstant",
+                String.valueOf(solverOptions.getRegularInteractionEnergyConstant()));
+        job.setProperty("interactionPenaltyCoefficient",
+                String.valueOf(solverOptions.getInteractionPenaltyCoefficient()));
+        job.setProperty("candidatePruning", solverOptions.getCandidatePruning().name());
+        job.setProperty("pruningDataCostThreshold", String.valueOf(solverOptions.getPruningDataCostThreshold()));
+        job.setProperty("pruningTopK", String.valueOf(solverOptions.getPruningTopK()));
+        job.setProperty("speculativeExpansions", String.valueOf(solverOptions.getSpeculativeExpansions()));
+        job.setProperty("maxFlowEngine", solverOptions.getMaxFlowEngine().name());
+        return job;
+    }
+
+    static SolverOptions readSolverOptions(Properties job) {
+        return new SolverOptions()
+                .setExpansionFlag(Boolean.parseBoolean(job.getProperty("expansionFlag")))
+                .setPottsInteractionEnergyConstant(
+                        Float.parseFloat(job.getProperty("pottsInteractionEnergyConstant")))
+                .setRegularInteractionEnergyConstant(
+                        Float.parseFloat(job.getProperty("regularInteractionEnergyConstant")))
+                .setInteractionPenaltyCoefficient(Float.parseFloat(job.getProperty("interactionPenaltyCoefficient")))
+                .setCandidatePruning(CandidatePruning.valueOf(job.getProperty("candidatePruning")))
+                .setPruningDataCostThreshold(Double.parseDouble(job.getProperty("pruningDataCostThreshold")))
+                .setPruningTopK(Integer.parseInt(job.getProperty("pruningTopK")))
+                .setSpeculativeExpansions(Integer.parseInt(job.getProperty("speculativeExpansions")))
+                .setMaxFlowEngine(MaxFlowEngine.valueOf(job.getProperty("maxFlowEngine")));
+    }
+}
@@ -0,0 +1,144 @@
+package lee.kyuhae.john.compphoto.distributed;
+
+import lee.kyuhae.john.compphoto.algorithm.histogram.MLOEnergyMinimizer;
+import lee.kyuhae.john.compphoto.algorithm.histogram.SolverOptions;
+import lombok.extern.slf4j.Slf4j;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TileWorker
+ *
+ * Solves the tasks of the job in a work directory until the coordinator marks the job done.
+ * 1. Waits for the job, and maps its stack.
+ * 2. Claims a task, reads its window of every image from the stack, and solves its labels or computes its
+ *    energy. See WorkDirectory.TaskType.
+ * 3. Writes the result back, and claims the next task.
+ *
+ * The claim file is touched while a task is being solved, so that the coordinator can tell a slow worker
+ * from a dead one. A worker serves a single job, it is started again for the next one.
+ */
+@Slf4j
+public class TileWorker {
+    private static final long POLL_INTERVAL_MILLIS = 500;
+    private static final long HEARTBEAT_INTERVAL_MILLIS = 5000;
+
+    private final WorkDirectory workDirectory;
+    private final int graphBuildParallelism;
+    private final String workerId;
+    private volatile WorkDirectory.Claim currentClaim = null;
+
+    public TileWorker(File workDir, int graphBuildParallelism) {
+        this.workDirectory = new WorkDirectory(workDir);
+        this.graphBuildParallelism = graphBuildParallelism;
+
+        // pid@host, which is unique among the workers sharing the directory.
+        this.workerId = ManagementFactory.getRuntimeMXBean().getName().replaceAll("[^A-Za-z0-9@.-]", "_");
+    }
+
+    /**
+     * Returns the number of tasks that this worker finished.
+     */
+    public int run() throws IOException, InterruptedException {
+        Properties job;
+        while ((job = workDirectory.readJob()) == null) {
+            Thread.sleep(POLL_INTERVAL_MILLIS);
+        }
+
+        SolverOptions options = TileCoordinator.readSolverOptions(job).setGraphBuildParallelism(graphBuildParallelism);
+        SharedStack stack = SharedStack.open(workDirectory.getStackFile());
+        // A few heartbeats within the task timeout of the coordinator, so that a late one is not taken for death.
+        long heartbeatIntervalMillis = Math.max(Math.min(HEARTBEAT_INTERVAL_MILLIS,
+                Long.parseLong(job.getProperty("taskTimeoutMillis")) / 4), 1);
+        log.info("Worker {} joined the job of {} images of {}x{}.", workerId, stack.size(), stack.getWidth(),
+                stack.getHeight());
+
+        // Touches the claim of the task being solved. Fails once the task has been requeued, the result is still
+        // written then.
+        ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "tile-worker-heartbeat");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        heartbeat.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                WorkDirectory.Claim claim = currentClaim;
+                if (claim != null) {
+                    claim.getClaimFile().setLastModified(System.currentTimeMillis());
+                }
+            }
+        }, 0, heartbeatIntervalMillis, TimeUnit.MILLISECONDS);
+
+        int solved = 0;
+        try {
+            while (!workDirectory.isDone()) {
+                WorkDirectory.Claim claim = workDirectory.claim(workerId);
+                if (claim == null) {
+                    Thread.sleep(POLL_INTERVAL_MILLIS);
+                    continue;
+                }
+
+                currentClaim = claim;
+                try {
+                    solve(stack, claim, options);
+                    solved++;
+                } finally {
+                    currentClaim = null;
+                }
+            }
+        } finally {
+            heartbeat.shutdownNow();
+        }
+
+        log.info("Worker {} finished {} tasks.", workerId, solved);
+        return solved;
+    }
+
+    private void solve(SharedStack stack, WorkDirectory.Claim claim, SolverOptions options) throws IOException {
+        long startMillis = System.currentTimeMillis();
+        Rect window = claim.getWindow();
+        Rect region = new Rect(claim.getRegion().x - window.x, claim.getRegion().y - window.y,
+                claim.getRegion().width, claim.getRegion().height);
+        Mat[] images = stack.read(window);
+        short[] labels = claim.getLabels() != null ? claim.getLabels() : new short[window.width * window.height];
+
+        MLOEnergyMinimizer minimizer = new MLOEnergyMinimizer(images, labels, options);
+        double energy;
+        switch (claim.getType()) {
+            case TILE:
+                minimizer.compute();
+                energy = minimizer.getEnergy();
+                break;
+            case SEAM:
+                minimizer.computeRegion(region);
+                energy = minimizer.getRegionEnergy(region);
+                break;
+            case ENERGY:
+                energy = minimizer.getRegionEnergy(region);
+                labels = new short[0];
+                break;
+            default:
+                throw new IllegalStateException("Unknown task type " + claim.getType() + ".");
+        }
+        workDirectory.writeResult(claim, energy, labels);
+
+        for (Mat image : images) {
+            image.release();
+        }
+        log.info("Worker {} finished {} {} {} with energy {} in {}ms.", workerId, claim.getType(), claim.getIndex(),
+                claim.getRegion(), energy, System.currentTimeMillis() - startMillis);
+    }
+}
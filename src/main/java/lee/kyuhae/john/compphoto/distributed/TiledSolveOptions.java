@@ -0,0 +1,51 @@
+package lee.kyuhae.john.compphoto.distributed;
+
+import lombok.Data;
+import lombok.experimental.Accessors;
+
+import java.io.File;
+
+/**
+ * Options for TileCoordinator.
+ *
+ * Tiles are tileSize x tileSize cores that are solved with tileOverlap pixels of context on each side.
+ * Only the core of each tile is kept, and seamBandWidth pixels on each side of the core boundaries are solved
+ * again by the workers. seamBandWidth should be less than half of tileSize.
+ *
+ * workDir is shared by the coordinator and the workers, e.g. a local directory when all the workers are on the
+ * same machine, or a network file system mounted on every node otherwise.
+ */
+@Data
+@Accessors(chain = true)
+public class TiledSolveOptions {
+    private File workDir = null;
+
+    private int tileSize = 512;
+    private int tileOverlap = 32;
+    private int seamBandWidth = 16;
+
+    /**
+     * Number of worker processes that the coordinator starts on this machine, each with
+     * workerGraphBuildParallelism threads. Workers on other machines are started with Runner in worker mode.
+     */
+    private int localWorkers = Runtime.getRuntime().availableProcessors();
+    private int workerGraphBuildParallelism = 1;
+
+    /**
+     * Main class of the local worker processes. It is started with the arguments "worker WORK_DIR PARALLELISM".
+     */
+    private String workerMainClass = "lee.kyuhae.john.compphoto.Runner";
+
+    private long pollIntervalMillis = 500;
+
+    /**
+     * A tile whose worker has not shown a sign of life for taskTimeoutMillis is given to another worker.
+     * Workers show one every quarter of it, at most every 5 seconds.
+     */
+    private long taskTimeoutMillis = 60000;
+
+    /**
+     * The whole solve fails after jobTimeoutMillis. 0 waits for the workers indefinitely.
+     */
+    private long jobTimeoutMillis = 0;
+}
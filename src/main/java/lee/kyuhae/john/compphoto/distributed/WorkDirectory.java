@@ -0,0 +1,337 @@
+package lee.kyuhae.john.compphoto.distributed;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.opencv.core.Rect;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * WorkDirectory
+ *
+ * Layout of the directory that the coordinator and the workers share.
+ * - stack.bin: SharedStack of the job.
+ * - job.properties: solver options of the job. Workers wait for it.
+ * - tasks/tile-N.task: tasks that are not claimed yet. See TaskType.
+ * - claimed/tile-N.task.WORKER: tasks that are being solved. Workers touch it while solving.
+ * - results/tile-N.labels: labels and energy of finished tasks.
+ * - DONE: written by the coordinator when every task is finished. Workers exit when they see it.
+ *
+ * A worker claims a tile by renaming its task file into claimed/, which only one worker can succeed in.
+ * Every file is written under a temporary name and renamed, so that nobody reads a partial file.
+ */
+@Slf4j
+class WorkDirectory {
+    private static final String TASK_PREFIX = "tile-";
+    private static final String TASK_SUFFIX = ".task";
+    private static final String RESULT_SUFFIX = ".labels";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final int RESULT_MAGIC = 0x43535452;
+
+    private final File root;
+    private final File tasksDir;
+    private final File claimedDir;
+    private final File resultsDir;
+
+    WorkDirectory(File root) {
+        this.root = root;
+        this.tasksDir = new File(root, "tasks");
+        this.claimedDir = new File(root, "claimed");
+        this.resultsDir = new File(root, "results");
+    }
+
+    File getStackFile() {
+        return new File(root, "stack.bin");
+    }
+
+    File getLogDir() {
+        return new File(root, "logs");
+    }
+
+    /**
+     * Removes everything of a previous job.
+     */
+    void prepare() throws IOException {
+        for (File dir : new File[]{tasksDir, claimedDir, resultsDir, getLogDir()}) {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Failed to create " + dir + ".");
+            }
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    delete(file);
+                }
+            }
+        }
+        delete(getDoneFile());
+        delete(getJobFile());
+        delete(getStackFile());
+    }
+
+    void writeJob(Properties job) throws IOException {
+        File temporary = new File(root, getJobFile().getName() + TEMPORARY_SUFFIX);
+        try (OutputStream out = new FileOutputStream(temporary)) {
+            job.store(out, "CleanSlate tiled solve");
+        }
+        rename(temporary, getJobFile());
+    }
+
+    /**
+     * Returns null when the coordinator has not written the job yet.
+     */
+    Properties readJob() throws IOException {
+        File jobFile = getJobFile();
+        if (!jobFile.isFile()) {
+            return null;
+        }
+
+        Properties job = new Properties();
+        try (InputStream in = new FileInputStream(jobFile)) {
+            job.load(in);
+        }
+        return job;
+    }
+
+    /**
+     * Queues a task on the window of the images. region is within the window, both in image coordinates.
+     * labels are the current labels of the window, or null for a TILE.
+     */
+    void addTask(int index, TaskType type, Rect window, Rect region, short[] labels) throws IOException {
+        File temporary = new File(tasksDir, TASK_PREFIX + index + TASK_SUFFIX + TEMPORARY_SUFFIX);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+            out.writeInt(index);
+            out.writeInt(type.ordinal());
+            writeRect(out, window);
+            writeRect(out, region);
+            writeLabels(out, labels == null ? new short[0] : labels);
+        }
+        rename(temporary, new File(tasksDir, TASK_PREFIX + index + TASK_SUFFIX));
+    }
+
+    /**
+     * Claims one of the tasks for the worker. Returns null when there is no task left to claim.
+     */
+    Claim claim(String workerId) throws IOException {
+        String[] names = tasksDir.list();
+        if (names == null) {
+            return null;
+        }
+
+        Arrays.sort(names);
+        for (String name : names) {
+            if (!name.endsWith(TASK_SUFFIX)) {
+                continue;
+            }
+
+            File claimFile = new File(claimedDir, name + "." + workerId);
+            if (!new File(tasksDir, name).renameTo(claimFile)) {
+                // Another worker was faster.
+                continue;
+            }
+            // Renaming keeps the time of addTask(), which would make a tile that waited for timeoutMillis look
+            // stale as soon as it is claimed. Fails when the claim has been requeued in between.
+            if (!claimFile.setLastModified(System.currentTimeMillis())) {
+                continue;
+            }
+
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(claimFile)))) {
+                int index = in.readInt();
+                TaskType type = TaskType.values()[in.readInt()];
+                Rect window = readRect(in);
+                Rect region = readRect(in);
+                short[] labels = readLabels(in);
+                return new Claim(index, type, window, region, labels.length == 0 ? null : labels, claimFile);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gives the tiles of the claims that have not been touched for timeoutMillis back to the tasks.
+     */
+    int requeueStaleClaims(long timeoutMillis) {
+        File[] claimFiles = claimedDir.listFiles();
+        if (claimFiles == null) {
+            return 0;
+        }
+
+        int requeued = 0;
+        long now = System.currentTimeMillis();
+        for (File claimFile : claimFiles) {
+            String name = claimFile.getName();
+            int taskNameEnd = name.indexOf(TASK_SUFFIX) + TASK_SUFFIX.length();
+            long lastModified = claimFile.lastModified();
+            if (lastModified == 0 || now - lastModified < timeoutMillis) {
+                continue;
+            }
+
+            if (claimFile.renameTo(new File(tasksDir, name.substring(0, taskNameEnd)))) {
+                log.warn("Worker of {} has not shown a sign of life for {}ms. Requeued the tile.",
+                        name, now - lastModified);
+                requeued++;
+            }
+        }
+        return requeued;
+    }
+
+    void writeResult(Claim claim, double energy, short[] labels) throws IOException {
+        File temporary = new File(resultsDir, claim.getClaimFile().getName() + TEMPORARY_SUFFIX);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+            out.writeInt(RESULT_MAGIC);
+            out.writeInt(claim.getIndex());
+            writeRect(out, claim.getWindow());
+            out.writeDouble(energy);
+            writeLabels(out, labels);
+        }
+
+        // A requeued tile may be solved twice. Both results are the same, either one will do.
+        File resultFile = getResultFile(claim.getIndex());
+        if (!temporary.renameTo(resultFile) && !resultFile.isFile()) {
+            throw new IOException("Failed to rename " + temporary + " to " + resultFile + ".");
+        }
+        delete(temporary);
+        delete(claim.getClaimFile());
+    }
+
+    /**
+     * Returns null when the tile has not been solved yet.
+     */
+    TileResult readResult(int index) throws IOException {
+        File resultFile = getResultFile(index);
+        if (!resultFile.isFile()) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(resultFile)))) {
+            if (in.readInt() != RESULT_MAGIC || in.readInt() != index) {
+                throw new IOException(resultFile + " is not a result of tile " + index + ".");
+            }
+            Rect window = readRect(in);
+            double energy = in.readDouble();
+            return new TileResult(index, window, energy, readLabels(in));
+        }
+    }
+
+    void markDone() throws IOException {
+        if (!getDoneFile().createNewFile() && !getDoneFile().isFile()) {
+            throw new IOException("Failed to create " + getDoneFile() + ".");
+        }
+    }
+
+    boolean isDone() {
+        return getDoneFile().isFile();
+    }
+
+    private File getJobFile() {
+        return new File(root, "job.properties");
+    }
+
+    private File getDoneFile() {
+        return new File(root, "DONE");
+    }
+
+    private File getResultFile(int index) {
+        return new File(resultsDir, TASK_PREFIX + index + RESULT_SUFFIX);
+    }
+
+    private static void writeRect(DataOutputStream out, Rect rect) throws IOException {
+        out.writeInt(rect.x);
+        out.writeInt(rect.y);
+        out.writeInt(rect.width);
+        out.writeInt(rect.height);
+    }
+
+    private static Rect readRect(DataInputStream in) throws IOException {
+        return new Rect(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+    }
+
+    private static void writeLabels(DataOutputStream out, short[] labels) throws IOException {
+        out.writeInt(labels.length);
+        for (short label : labels) {
+            out.writeShort(label);
+        }
+    }
+
+    private static short[] readLabels(DataInputStream in) throws IOException {
+        short[] labels = new short[in.readInt()];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = in.readShort();
+        }
+        return labels;
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            throw new IOException("Failed to rename " + from + " to " + to + ".");
+        }
+    }
+
+    private static void delete(File file) throws IOException {
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Failed to delete " + file + ".");
+        }
+    }
+
+    /**
+     * What a worker does with the window of a task.
+     * - TILE: solves the labels of the whole window from scratch.
+     * - SEAM: solves the labels of the region again, starting from the given labels of the window.
+     *   Labels outside of the region are held fixed.
+     * - ENERGY: only computes the energy terms that involve the region, for the given labels.
+     */
+    enum TaskType {
+        TILE, SEAM, ENERGY
+    }
+
+    /**
+     * Task claimed by a worker. window is the part of the images that the task reads, e.g. a tile including
+     * its overlap, and region is within the window, both in image coordinates. labels are null for a TILE.
+     */
+    @Getter
+    static class Claim {
+        private final int index;
+        private final TaskType type;
+        private final Rect window;
+        private final Rect region;
+        private final short[] labels;
+        private final File claimFile;
+
+        Claim(int index, TaskType type, Rect window, Rect region, short[] labels, File claimFile) {
+            this.index = index;
+            this.type = type;
+            this.window = window;
+            this.region = region;
+            this.labels = labels;
+            this.claimFile = claimFile;
+        }
+    }
+
+    /**
+     * Labels of the window of a task, in row-major order. Empty for an ENERGY task.
+     */
+    @Getter
+    static class TileResult {
+        private final int index;
+        private final Rect window;
+        private final double energy;
+        private final short[] labels;
+
+        TileResult(int index, Rect window, double energy, short[] labels) {
+            this.index = index;
+            this.window = window;
+            this.energy = energy;
+            this.labels = labels;
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package lee.kyuhae.john.compphoto.pipeline;
+
+import lee.kyuhae.john.compphoto.algorithm.FrameDeduplicator;
+import lee.kyuhae.john.compphoto.algorithm.ImageProcessor;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.opencv.core.Mat;
+import org.opencv.highgui.Highgui;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * PipelineExecutor
+ *
+ * Processes a queue of image stacks in four stages, so that the stages of different stacks overlap.
+ * 1. Load: decodes the .jpg files of the input directory, and drops near-duplicate frames as they are decoded
+ *    if enabled. Result.getFrameIndices maps the labels back to the frames then.
+ * 2. Histogram: builds the histogram and the data costs. (ImageProcessor.prepare)
+ * 3. Solve: minimizes the energy and creates the composite. (ImageProcessor.compute)
+ * 4. Encode: writes composite.jpg and label.jpg into the output directory.
+ *
+ * Stages are connected with bounded queues. A stage blocks when the queue of the next stage is full,
+ * and submit() blocks when the queue of the load stage is full, so that memory stays within the bounds.
+ * A job that fails in a stage skips the remaining stages, and its future completes exceptionally.
+ */
+@Slf4j
+public class PipelineExecutor implements Closeable {
+    private static final String IMAGE_EXTENSION = ".jpg";
+    private static final String COMPOSITE_FILE_NAME = "composite.jpg";
+    private static final String LABEL_FILE_NAME = "label.jpg";
+
+    /**
+     * Marks the end of the jobs.
+     */
+    private static final Task END = new Task(null, null, null);
+
+    @Getter
+    public static class Result {
+        private final File inputDir;
+        private final File compositeFile;
+        private final File labelFile;
+        private final double energy;
+
+        /**
+         * Frames of each label, null when frames are not deduplicated.
+         */
+        @Getter(AccessLevel.NONE) private final List<List<Integer>> frameIndices;
+
+        Result(File inputDir, File compositeFile, File labelFile, double energy, List<List<Integer>> frameIndices) {
+            this.inputDir = inputDir;
+            this.compositeFile = compositeFile;
+            this.labelFile = labelFile;
+            this.energy = energy;
+            this.frameIndices = frameIndices;
+        }
+
+        /**
+         * Frames that the label of label.jpg stands for, as indices of the .jpg files of inputDir in the order of
+         * their names. The label itself unless frames are deduplicated.
+         */
+        public List<Integer> getFrameIndices(short label) {
+            return frameIndices == null ? Collections.singletonList((int) label) : frameIndices.get(label);
+        }
+    }
+
+    private static class Task {
+        final File inputDir;
+        final File outputDir;
+        final CompletableFuture<Result> future;
+        Mat[] images;
+        List<List<Integer>> frameIndices;
+        ImageProcessor imageProcessor;
+
+        Task(File inputDir, File outputDir, CompletableFuture<Result> future) {
+            this.inputDir = inputDir;
+            this.outputDir = outputDir;
+            this.future = future;
+        }
+
+        /**
+         * Releases the images and the products, once the job is written or has failed.
+         */
+        void release() {
+            if (imageProcessor != null) {
+                imageProcessor.release();
+                imageProcessor = null;
+            }
+            if (images != null) {
+                for (Mat image : images) {
+                    image.release();
+                }
+                images = null;
+            }
+        }
+    }
+
+    private interface Stage {
+        void process(Task task) throws Exception;
+    }
+
+    private final PipelineOptions options;
+    private final BlockingQueue<Task> loadQueue;
+    private final List<ExecutorService> stageExecutors = new ArrayList<>();
+    private boolean closed = false;
+
+    public PipelineExecutor(PipelineOptions options) {
+        if (options.getQueueCapacity() < 1) {
+            throw new IllegalArgumentException("Queue capacity should be positive. Given "
+                    + options.getQueueCapacity() + ".");
+        }
+
+        this.options = options;
+        this.loadQueue = new ArrayBlockingQueue<>(options.getQueueCapacity());
+        BlockingQueue<Task> histogramQueue = new ArrayBlockingQueue<>(options.getQueueCapacity());
+        BlockingQueue<Task> solveQueue = new ArrayBlockingQueue<>(options.getQueueCapacity());
+        BlockingQueue<Task> encodeQueue = new ArrayBlockingQueue<>(options.getQueueCapacity());
+
+        startStage("load", options.getLoadParallelism(), loadQueue, histogramQueue, new Stage() {
+            @Override
+            public void process(Task task) {
+                if (options.isFrameDeduplication()) {
+                    loadDistinctImages(task);
+                } else {
+                    task.images = loadImages(task.inputDir);
+                }
+            }
+        });
+        startStage("histogram", options.getHistogramParallelism(), histogramQueue, solveQueue, new Stage() {
+            @Override
+            public void process(Task task) {
+                task.imageProcessor = new ImageProcessor(task.images, options.getSolverOptions());
+                task.imageProcessor.prepare();
+            }
+        });
+        startStage("solve", options.getSolveParallelism(), solveQueue, encodeQueue, new Stage() {
+            @Override
+            public void process(Task task) {
+                task.imageProcessor.compute();
+            }
+        });
+        startStage("encode", options.getEncodeParallelism(), encodeQueue, null, new Stage() {
+            @Override
+            public void process(Task task) {
+                encode(task);
+            }
+        });
+    }
+
+    /**
+     * Submits the stack of .jpg files in inputDir. Results are written into outputDir.
+     * Blocks while the load stage is full.
+     */
+    public CompletableFuture<Result> submit(File inputDir, File outputDir) throws InterruptedException {
+        CompletableFuture<Result> future = new CompletableFuture<>();
+        synchronized (this) {
+            // Under the lock, so that no job is queued after the END.
+            if (closed) {
+                throw new IllegalStateException("Pipeline is already closed.");
+            }
+            loadQueue.put(new Task(inputDir, outputDir, future));
+        }
+        return future;
+    }
+
+    /**
+     * Waits for all submitted jobs to finish, and stops the stages.
+     */
+    @Override
+    public void close() {
+        try {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                loadQueue.put(END);
+            }
+
+            for (ExecutorService executor : stageExecutors) {
+                executor.shutdown();
+                while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    log.debug("Waiting for the pipeline to drain.");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (ExecutorService executor : stageExecutors) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private void startStage(final String name, int parallelism, final BlockingQueue<Task> input,
+                            final BlockingQueue<Task> output, final Stage stage) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism of the " + name + " stage should be positive. Given "
+                    + parallelism + ".");
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        stageExecutors.add(executor);
+
+        // The last worker to see the END passes it on to the next stage.
+        final AtomicInteger runningWorkers = new AtomicInteger(parallelism);
+        for (int i = 0; i < parallelism; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            Task task = input.take();
+                            if (task == END) {
+                                input.put(END);
+                                if (runningWorkers.decrementAndGet() == 0 && output != null) {
+                                    output.put(END);
+                                }
+                                return;
+                            }
+
+                            long startMillis = System.currentTimeMillis();
+                            try {
+                                stage.process(task);
+                            } catch (Exception e) {
+                                log.error("Job " + task.inputDir + " failed in the " + name + " stage.", e);
+                                task.release();
+                                task.future.completeExceptionally(e);
+                                continue;
+                            }
+                            log.info("Job {} finished the {} stage in {}ms.", task.inputDir, name,
+                                    System.currentTimeMillis() - startMillis);
+
+                            if (output != null) {
+                                output.put(task);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+    }
+
+    public static Mat[] loadImages(File inputDir) {
+        List<Mat> imageList = new ArrayList<>();
+        try {
+            for (File imageFile : listImageFiles(inputDir)) {
+                imageList.add(loadImage(imageFile));
+            }
+        } catch (RuntimeException e) {
+            for (Mat loaded : imageList) {
+                loaded.release();
+            }
+            throw e;
+        }
+
+        log.debug("Loaded {} images from {}.", imageList.size(), inputDir);
+        return imageList.toArray(new Mat[imageList.size()]);
+    }
+
+    /**
+     * Deduplicates the frames as they are decoded, so that only the distinct frames are held at once.
+     */
+    private void loadDistinctImages(Task task) {
+        FrameDeduplicator deduplicator = new FrameDeduplicator(options.getDeduplicationThreshold(),
+                options.getDeduplicationMode());
+        try {
+            for (File imageFile : listImageFiles(task.inputDir)) {
+                deduplicator.add(loadImage(imageFile));
+            }
+        } catch (RuntimeException e) {
+            deduplicator.release();
+            throw e;
+        }
+
+        task.images = deduplicator.reduce();
+        task.frameIndices = new ArrayList<>();
+        for (short label = 0; label < deduplicator.getNumClusters(); label++) {
+            task.frameIndices.add(new ArrayList<>(deduplicator.getFrameIndices(label)));
+        }
+    }
+
+    /**
+     * The .jpg files of the directory, sorted so that labels point to the same images on every run.
+     */
+    private static List<File> listImageFiles(File inputDir) {
+        File[] files = inputDir.listFiles();
+        if (files == null) {
+            throw new IllegalArgumentException(inputDir + " is not a directory.");
+        }
+
+        Arrays.sort(files);
+        List<File> imageFiles = new ArrayList<>();
+        for (File file : files) {
+            if (file.isFile() && file.getName().endsWith(IMAGE_EXTENSION)) {
+                imageFiles.add(file);
+            }
+        }
+        return imageFiles;
+    }
+
+    private static Mat loadImage(File imageFile) {
+        Mat image = Highgui.imread(imageFile.getPath());
+        if (image.empty()) {
+            throw new IllegalArgumentException("Failed to decode " + imageFile + ".");
+        }
+        return image;
+    }
+
+    private static void encode(Task task) {
+        if (!task.outputDir.isDirectory() && !task.outputDir.mkdirs()) {
+            throw new IllegalStateException("Failed to create " + task.outputDir + ".");
+        }
+
+        File compositeFile = new File(task.outputDir, COMPOSITE_FILE_NAME);
+        File labelFile = new File(task.outputDir, LABEL_FILE_NAME);
+        if (!Highgui.imwrite(compositeFile.getPath(), task.imageProcessor.getCompositeImage())
+                || !Highgui.imwrite(labelFile.getPath(), task.imageProcessor.getLabelImage())) {
+            throw new IllegalStateException("Failed to write the results into " + task.outputDir + ".");
+        }
+
+        double energy = task.imageProcessor.getEnergy();
+        task.release();
+        task.future.complete(new Result(task.inputDir, compositeFile, labelFile, energy, task.frameIndices));
+    }
+}
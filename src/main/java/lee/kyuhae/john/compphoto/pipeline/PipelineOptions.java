@@ -0,0 +1,34 @@
+package lee.kyuhae.john.compphoto.pipeline;
+
+import lee.kyuhae.john.compphoto.algorithm.FrameDeduplicator;
+import lee.kyuhae.john.compphoto.algorithm.histogram.SolverOptions;
+import lombok.Data;
+import lombok.experimental.Accessors;
+
+/**
+ * Options for PipelineExecutor.
+ *
+ * Parallelism is the number of threads of a stage, queueCapacity is the number of jobs that can wait
+ * between two stages. At most (sum of parallelism + 3 * queueCapacity) jobs are in memory at once.
+ */
+@Data
+@Accessors(chain = true)
+public class PipelineOptions {
+    private int loadParallelism = 1;
+    private int histogramParallelism = 1;
+    private int solveParallelism = 1;
+    private int encodeParallelism = 1;
+    private int queueCapacity = 1;
+
+    /**
+     * Near-duplicate frames of a stack are reduced with FrameDeduplicator in the load stage when set.
+     */
+    private boolean frameDeduplication = false;
+    private double deduplicationThreshold = FrameDeduplicator.THRESHOLD_DEFAULT;
+    private FrameDeduplicator.Mode deduplicationMode = FrameDeduplicator.Mode.REPRESENTATIVE;
+
+    /**
+     * Used for every job.
+     */
+    private SolverOptions solverOptions = new SolverOptions();
+}
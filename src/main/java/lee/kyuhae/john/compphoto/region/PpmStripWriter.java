@@ -0,0 +1,62 @@
+package lee.kyuhae.john.compphoto.region;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * PpmStripWriter
+ *
+ * Writes a binary PPM (P6) image a strip of rows at a time, so that the whole image is never in memory.
+ * PPM is used since it can be written row by row without an encoder. Convert it with any image tool.
+ */
+class PpmStripWriter implements Closeable {
+    private static final int NUM_CHANNEL = 3;
+
+    private final OutputStream out;
+    private final int width;
+    private final int height;
+    private final byte[] rowBuffer;
+    private int rowsWritten = 0;
+
+    PpmStripWriter(File file, int width, int height) throws IOException {
+        this.out = new BufferedOutputStream(new FileOutputStream(file));
+        this.width = width;
+        this.height = height;
+        this.rowBuffer = new byte[width * NUM_CHANNEL];
+        out.write(("P6\n" + width + " " + height + "\n255\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Writes numRows rows of BGR values, in the layout of a CV_8UC3 Mat.
+     */
+    void writeRows(byte[] bgr, int numRows) throws IOException {
+        if (rowsWritten + numRows > height) {
+            throw new IllegalStateException("Image has " + height + " rows. Already wrote " + rowsWritten
+                    + ", given " + numRows + " more.");
+        }
+
+        for (int row = 0; row < numRows; row++) {
+            // PPM is RGB.
+            for (int i = 0, j = row * rowBuffer.length; i < rowBuffer.length; i += NUM_CHANNEL, j += NUM_CHANNEL) {
+                rowBuffer[i] = bgr[j + 2];
+                rowBuffer[i + 1] = bgr[j + 1];
+                rowBuffer[i + 2] = bgr[j];
+            }
+            out.write(rowBuffer);
+        }
+        rowsWritten += numRows;
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+        if (rowsWritten != height) {
+            throw new IOException("Image has " + height + " rows, but " + rowsWritten + " were written.");
+        }
+    }
+}
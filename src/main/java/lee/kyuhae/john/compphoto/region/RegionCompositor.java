@@ -0,0 +1,135 @@
+package lee.kyuhae.john.compphoto.region;
+
+import lee.kyuhae.john.compphoto.algorithm.ImageProcessor;
+import lee.kyuhae.john.compphoto.algorithm.histogram.SolverOptions;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * RegionCompositor
+ *
+ * Cleans only a region of interest of very large images.
+ * 1. Decodes the region plus a margin from every image. The margin gives the minimizer context around the region.
+ * 2. Solves the labels of the decoded window.
+ * 3. Pastes the composite of the region onto the first image, and writes the result strip by strip.
+ *
+ * Only the window of every image and a strip of the first image are in memory at once.
+ * The first image is decoded once for all strips if it is a baseline JPEG, see RegionReader.readStrips().
+ */
+@Slf4j
+public class RegionCompositor {
+    public static final int MARGIN_DEFAULT = 64;
+    public static final int STRIP_HEIGHT_DEFAULT = 512;
+    private static final int NUM_CHANNEL = 3;
+
+    private final File[] imageFiles;
+    private final SolverOptions options;
+    private final int width;
+    private final int height;
+
+    @Getter private double energy = Double.NaN;
+
+    /**
+     * imageFiles should be of the same size. The first one is the base image of the result.
+     */
+    public RegionCompositor(File[] imageFiles, SolverOptions options) throws IOException {
+        if (imageFiles.length < 2) {
+            throw new IllegalArgumentException("At least 2 images are required. Given " + imageFiles.length + ".");
+        }
+
+        this.imageFiles = imageFiles;
+        this.options = options;
+
+        int[] size = readSize(imageFiles[0]);
+        this.width = size[0];
+        this.height = size[1];
+        for (File imageFile : imageFiles) {
+            size = readSize(imageFile);
+            if (size[0] != width || size[1] != height) {
+                throw new IllegalArgumentException(imageFile + " is " + size[0] + "x" + size[1] + ". Expected "
+                        + width + "x" + height + ".");
+            }
+        }
+    }
+
+    public void composite(Rect region, File output) throws IOException {
+        composite(region, MARGIN_DEFAULT, STRIP_HEIGHT_DEFAULT, output);
+    }
+
+    /**
+     * Cleans the region, and writes the first image with the cleaned region into output as a PPM.
+     */
+    public void composite(Rect region, int margin, int stripHeight, File output) throws IOException {
+        if (region.x < 0 || region.y < 0 || region.width <= 0 || region.height <= 0
+                || region.x + region.width > width || region.y + region.height > height) {
+            throw new IllegalArgumentException("Region " + region + " is outside of the " + width + "x" + height
+                    + " images.");
+        }
+
+        int x = Math.max(region.x - margin, 0);
+        int y = Math.max(region.y - margin, 0);
+        Rect window = new Rect(x, y, Math.min(region.x + region.width + margin, width) - x,
+                Math.min(region.y + region.height + margin, height) - y);
+
+        log.info("Decoding window {} of {} images for region {}.", window, imageFiles.length, region);
+        Mat[] windowImages = new Mat[imageFiles.length];
+        for (int i = 0; i < imageFiles.length; i++) {
+            try (RegionReader reader = new RegionReader(imageFiles[i])) {
+                windowImages[i] = new Mat(window.height, window.width, CvType.CV_8UC3);
+                windowImages[i].put(0, 0, reader.read(window));
+            }
+        }
+
+        ImageProcessor imageProcessor = new ImageProcessor(windowImages, options);
+        imageProcessor.compute();
+        this.energy = imageProcessor.getEnergy();
+
+        // Composite of the region only. The margin is context, it is not pasted.
+        final byte[] regionValues = new byte[region.width * region.height * NUM_CHANNEL];
+        Mat regionComposite = imageProcessor.getCompositeImage()
+                .submat(new Rect(region.x - window.x, region.y - window.y, region.width, region.height));
+        byte[] regionRow = new byte[region.width * NUM_CHANNEL];
+        for (int row = 0; row < region.height; row++) {
+            regionComposite.get(row, 0, regionRow);
+            System.arraycopy(regionRow, 0, regionValues, row * regionRow.length, regionRow.length);
+        }
+        regionComposite.release();
+        imageProcessor.release();
+        for (Mat windowImage : windowImages) {
+            windowImage.release();
+        }
+
+        log.info("Writing {} with the cleaned region, {} rows at a time.", output, stripHeight);
+        try (RegionReader baseReader = new RegionReader(imageFiles[0]);
+             final PpmStripWriter writer = new PpmStripWriter(output, width, height)) {
+            baseReader.readStrips(stripHeight, new RegionReader.StripConsumer() {
+                @Override
+                public void accept(Rect strip, byte[] stripValues) throws IOException {
+                    pasteRegion(region, regionValues, strip, stripValues);
+                    writer.writeRows(stripValues, strip.height);
+                }
+            });
+        }
+    }
+
+    private void pasteRegion(Rect region, byte[] regionValues, Rect strip, byte[] stripValues) {
+        int rowStart = Math.max(region.y, strip.y);
+        int rowEnd = Math.min(region.y + region.height, strip.y + strip.height);
+        for (int row = rowStart; row < rowEnd; row++) {
+            System.arraycopy(regionValues, (row - region.y) * region.width * NUM_CHANNEL,
+                    stripValues, ((row - strip.y) * width + region.x) * NUM_CHANNEL, region.width * NUM_CHANNEL);
+        }
+    }
+
+    private static int[] readSize(File imageFile) throws IOException {
+        try (RegionReader reader = new RegionReader(imageFile)) {
+            return new int[]{reader.getWidth(), reader.getHeight()};
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package lee.kyuhae.john.compphoto.region;
+
+import org.opencv.core.Rect;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+
+/**
+ * RegionReader
+ *
+ * Decodes only a region of an image file with ImageIO, so that only the region is kept in memory.
+ * Values are returned in the layout of a CV_8UC3 Mat -- BGR, row major.
+ */
+class RegionReader implements Closeable {
+    private static final int NUM_CHANNEL = 3;
+    private static final String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+    // Start of frame process of progressive JPEGs. Each of their scans covers the whole image.
+    private static final String JPEG_PROGRESSIVE_PROCESS = "2";
+
+    /**
+     * Receives the rows of an image, a strip at a time.
+     */
+    interface StripConsumer {
+        /**
+         * values holds the rows of the strip in the layout of read(). It is only valid during the call, and may be
+         * longer than the strip.
+         */
+        void accept(Rect strip, byte[] values) throws IOException;
+    }
+
+    private final File file;
+    private final ImageInputStream inputStream;
+    private final ImageReader reader;
+    private final int width;
+    private final int height;
+
+    RegionReader(File file) throws IOException {
+        this.file = file;
+        this.inputStream = ImageIO.createImageInputStream(file);
+        if (inputStream == null) {
+            throw new IOException("Failed to open " + file + ".");
+        }
+
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(inputStream);
+        if (!readers.hasNext()) {
+            inputStream.close();
+            throw new IOException("No image reader for " + file + ".");
+        }
+
+        this.reader = readers.next();
+        // Metadata tells whether the image is decoded from top to bottom, see readStrips().
+        reader.setInput(inputStream, true, false);
+        this.width = reader.getWidth(0);
+        this.height = reader.getHeight(0);
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * Decodes the region. Rows above the region are decoded and dropped by the reader, not kept.
+     */
+    byte[] read(Rect region) throws IOException {
+        if (region.x < 0 || region.y < 0 || region.x + region.width > width || region.y + region.height > height) {
+            throw new IllegalArgumentException("Region " + region + " is outside of " + file + " ("
+                    + width + "x" + height + ").");
+        }
+
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(new Rectangle(region.x, region.y, region.width, region.height));
+        BufferedImage image = reader.read(0, param);
+
+        if (image.getType() != BufferedImage.TYPE_3BYTE_BGR) {
+            // E.g. gray scale images.
+            BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(),
+                    BufferedImage.TYPE_3BYTE_BGR);
+            Graphics2D graphics = converted.createGraphics();
+            graphics.drawImage(image, 0, 0, null);
+            graphics.dispose();
+            image = converted;
+        }
+
+        byte[] values = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        if (values.length != region.width * region.height * NUM_CHANNEL) {
+            throw new IOException("Unexpected raster layout of " + file + ".");
+        }
+        return values;
+    }
+
+    /**
+     * Decodes the whole image from top to bottom, and gives it to the consumer stripHeight rows at a time.
+     *
+     * Baseline JPEGs in color are decoded once, into a buffer of a single strip. Other images are read() strip by
+     * strip, which decodes the rows above each strip again. E.g. the scans of a progressive JPEG each cover the
+     * whole image, so that no strip is complete before the last scan.
+     */
+    void readStrips(int stripHeight, StripConsumer consumer) throws IOException {
+        if (stripHeight <= 0) {
+            throw new IllegalArgumentException("Strip height should be positive. Given " + stripHeight + ".");
+        }
+
+        if (!isDecodedTopToBottom()) {
+            for (int stripY = 0; stripY < height; stripY += stripHeight) {
+                Rect strip = new Rect(0, stripY, width, Math.min(stripHeight, height - stripY));
+                consumer.accept(strip, read(strip));
+            }
+            return;
+        }
+
+        StripBuffer buffer = new StripBuffer(stripHeight, consumer);
+        PixelInterleavedSampleModel sampleModel = new PixelInterleavedSampleModel(DataBuffer.TYPE_BYTE, width, height,
+                NUM_CHANNEL, width * NUM_CHANNEL, new int[]{2, 1, 0});
+        WritableRaster raster = Raster.createWritableRaster(sampleModel, buffer, null);
+        ImageTypeSpecifier bgr = ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_3BYTE_BGR);
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setDestination(new BufferedImage(bgr.getColorModel(), raster, false, null));
+        try {
+            reader.read(0, param);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        buffer.flushRemainingRows();
+    }
+
+    /**
+     * Whether the reader writes the rows of the image in order, each row once, in BGR.
+     */
+    private boolean isDecodedTopToBottom() throws IOException {
+        IIOMetadata metadata = reader.getImageMetadata(0);
+        if (metadata == null || !JPEG_METADATA_FORMAT.equals(metadata.getNativeMetadataFormatName())) {
+            return false;
+        }
+        Element sof = findElement(metadata.getAsTree(JPEG_METADATA_FORMAT), "sof");
+        if (sof == null || JPEG_PROGRESSIVE_PROCESS.equals(sof.getAttribute("process"))) {
+            return false;
+        }
+
+        // Gray scale JPEGs are not decoded into BGR, read() converts them.
+        Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        while (types.hasNext()) {
+            if (types.next().getBufferedImageType() == BufferedImage.TYPE_3BYTE_BGR) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Element findElement(Node node, String name) {
+        if (node instanceof Element && name.equals(node.getNodeName())) {
+            return (Element) node;
+        }
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            Element element = findElement(child, name);
+            if (element != null) {
+                return element;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Raster data of the whole image that keeps a single strip. The strip is given to the consumer once the reader
+     * writes a row below it.
+     */
+    private class StripBuffer extends DataBuffer {
+        private final int stripHeight;
+        private final StripConsumer consumer;
+        private final int rowLength = width * NUM_CHANNEL;
+        private final byte[] values;
+        private int stripY = 0;
+
+        StripBuffer(int stripHeight, StripConsumer consumer) {
+            super(DataBuffer.TYPE_BYTE, width * height * NUM_CHANNEL);
+            this.stripHeight = Math.min(stripHeight, height);
+            this.consumer = consumer;
+            this.values = new byte[this.stripHeight * rowLength];
+        }
+
+        @Override
+        public int getElem(int bank, int i) {
+            return values[toStripIndex(i)] & 0xFF;
+        }
+
+        @Override
+        public void setElem(int bank, int i, int val) {
+            while (i / rowLength >= stripY + stripHeight) {
+                flush(stripHeight);
+            }
+            values[toStripIndex(i)] = (byte) val;
+        }
+
+        void flushRemainingRows() throws IOException {
+            try {
+                while (stripY < height) {
+                    flush(Math.min(stripHeight, height - stripY));
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        private int toStripIndex(int i) {
+            int row = i / rowLength;
+            if (row < stripY) {
+                throw new IllegalStateException("Row " + row + " of " + file + " is written after row " + stripY
+                        + ". The image is not decoded from top to bottom.");
+            }
+            return i - stripY * rowLength;
+        }
+
+        private void flush(int rows) {
+            try {
+                consumer.accept(new Rect(0, stripY, width, rows), values);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            stripY += rows;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.dispose();
+        inputStream.close();
+    }
+}
@@ -0,0 +1,289 @@
+package lee.kyuhae.john.compphoto.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import lee.kyuhae.john.compphoto.algorithm.ImageProcessor;
+import lee.kyuhae.john.compphoto.algorithm.histogram.SolverOptions;
+import lee.kyuhae.john.compphoto.pipeline.PipelineExecutor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.IOUtils;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.highgui.Highgui;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * CompositingServer
+ *
+ * Long-lived HTTP service, so that a job does not pay for the JVM startup and loading OpenCV.
+ * Listens on the loopback address only, since it reads local paths.
+ *
+ * Endpoints:
+ * - POST /composite?path=DIR: composites the .jpg files in the local directory DIR.
+ * - POST /composite with a zip body: composites the .jpg entries of the zip, in the order of their names.
+ *   Either way, the composite is sent back as a JPEG. Energy is in the X-Energy header.
+ * - GET /health: 200 while the server is up.
+ * - GET /queue: queued, running and completed solves, and the queue capacity.
+ *
+ * Requests are handled on virtual threads when the JVM has them, and on a cached thread pool otherwise.
+ * Solves run on a fixed pool of solveParallelism threads with a bounded queue.
+ * When the queue is full, requests are rejected with 503 right away.
+ */
+@Slf4j
+public class CompositingServer {
+    private static final String IMAGE_EXTENSION = ".jpg";
+    private static final String PATH_PARAMETER = "path";
+    private static final int STOP_DELAY_SECONDS = 1;
+    private static final String TEXT_CONTENT_TYPE = "text/plain; charset=utf-8";
+    private static final String JSON_CONTENT_TYPE = "application/json";
+
+    private final HttpServer httpServer;
+    private final ExecutorService requestExecutor;
+    private final ThreadPoolExecutor solveExecutor;
+    private final int queueCapacity;
+    private final SolverOptions options;
+
+    public CompositingServer(int port, int solveParallelism, int queueCapacity, SolverOptions options)
+            throws IOException {
+        this.queueCapacity = queueCapacity;
+        this.options = options;
+        this.solveExecutor = new ThreadPoolExecutor(solveParallelism, solveParallelism, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity));
+        this.requestExecutor = createRequestExecutor();
+
+        this.httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        httpServer.setExecutor(requestExecutor);
+        httpServer.createContext("/composite", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleComposite(exchange);
+            }
+        });
+        httpServer.createContext("/health", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                sendText(exchange, 200, "OK");
+            }
+        });
+        httpServer.createContext("/queue", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                send(exchange, 200, JSON_CONTENT_TYPE, "{\"queued\": " + solveExecutor.getQueue().size()
+                        + ", \"running\": " + solveExecutor.getActiveCount()
+                        + ", \"completed\": " + solveExecutor.getCompletedTaskCount()
+                        + ", \"capacity\": " + CompositingServer.this.queueCapacity + "}");
+            }
+        });
+    }
+
+    public void start() {
+        httpServer.start();
+        log.info("Compositing server listening on {}.", httpServer.getAddress());
+    }
+
+    public void stop() {
+        httpServer.stop(STOP_DELAY_SECONDS);
+        solveExecutor.shutdown();
+        requestExecutor.shutdown();
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() through reflection, since it does not exist before Java 21.
+     */
+    private static ExecutorService createRequestExecutor() {
+        try {
+            ExecutorService executor = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            log.info("Handling requests on virtual threads.");
+            return executor;
+        } catch (ReflectiveOperationException e) {
+            log.info("Virtual threads are not available. Handling requests on a cached thread pool.");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private void handleComposite(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendText(exchange, 405, "Use POST.");
+                return;
+            }
+            // Checked again by the submit, but a full queue should not cost the decoding of the images.
+            if (solveExecutor.getQueue().remainingCapacity() == 0) {
+                sendText(exchange, 503, "Solve queue is full.");
+                return;
+            }
+
+            final Mat[] images = readImages(exchange);
+            if (images.length < 2) {
+                release(images);
+                sendText(exchange, 400, "At least 2 images are required. Given " + images.length + ".");
+                return;
+            }
+
+            // The solve owns the images from here on, so that they are released even when this request is gone.
+            Future<Composite> future;
+            try {
+                future = solveExecutor.submit(new Callable<Composite>() {
+                    @Override
+                    public Composite call() {
+                        return composite(images);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                release(images);
+                sendText(exchange, 503, "Solve queue is full.");
+                return;
+            }
+
+            Composite composite = future.get();
+            exchange.getResponseHeaders().set("Content-Type", "image/jpeg");
+            exchange.getResponseHeaders().set("X-Energy", Double.toString(composite.energy));
+            exchange.sendResponseHeaders(200, composite.jpeg.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(composite.jpeg);
+            }
+        } catch (IllegalArgumentException e) {
+            sendText(exchange, 400, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sendText(exchange, 503, "Interrupted.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IllegalArgumentException) {
+                sendText(exchange, 400, e.getCause().getMessage());
+            } else {
+                log.error("Failed to composite.", e.getCause());
+                sendText(exchange, 500, "Failed to composite: " + e.getCause().getMessage());
+            }
+        } catch (RuntimeException e) {
+            log.error("Failed to composite.", e);
+            sendText(exchange, 500, "Failed to composite: " + e.getMessage());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Solves and encodes the composite. Every Mat is released before returning, including the images.
+     */
+    private Composite composite(Mat[] images) {
+        ImageProcessor imageProcessor = null;
+        MatOfByte encoded = new MatOfByte();
+        try {
+            imageProcessor = new ImageProcessor(images, options);
+            imageProcessor.compute();
+            if (!Highgui.imencode(IMAGE_EXTENSION, imageProcessor.getCompositeImage(), encoded)) {
+                throw new IllegalStateException("Failed to encode the composite.");
+            }
+            return new Composite(encoded.toArray(), imageProcessor.getEnergy());
+        } finally {
+            encoded.release();
+            if (imageProcessor != null) {
+                imageProcessor.release();
+            }
+            release(images);
+        }
+    }
+
+    private static Mat[] readImages(HttpExchange exchange) throws IOException {
+        String path = getQueryParameter(exchange, PATH_PARAMETER);
+        if (path != null) {
+            return PipelineExecutor.loadImages(new File(path));
+        }
+
+        // Sorted by the entry names.
+        Map<String, Mat> imageMap = new TreeMap<>();
+        try (ZipInputStream zip = new ZipInputStream(exchange.getRequestBody())) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                if (entry.isDirectory() || !entry.getName().endsWith(IMAGE_EXTENSION)) {
+                    continue;
+                }
+
+                MatOfByte bytes = new MatOfByte(IOUtils.toByteArray(zip));
+                Mat image = Highgui.imdecode(bytes, Highgui.CV_LOAD_IMAGE_COLOR);
+                bytes.release();
+                if (image.empty()) {
+                    throw new IllegalArgumentException("Failed to decode " + entry.getName() + ".");
+                }
+                imageMap.put(entry.getName(), image);
+            }
+        } catch (IOException | RuntimeException e) {
+            release(imageMap.values().toArray(new Mat[imageMap.size()]));
+            throw e;
+        }
+
+        List<Mat> images = new ArrayList<>(imageMap.values());
+        return images.toArray(new Mat[images.size()]);
+    }
+
+    private static void release(Mat[] images) {
+        for (Mat image : images) {
+            image.release();
+        }
+    }
+
+    private static String getQueryParameter(HttpExchange exchange, String name) throws IOException {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return null;
+        }
+
+        for (String pair : query.split("&")) {
+            int separator = pair.indexOf('=');
+            if (separator > 0 && pair.substring(0, separator).equals(name)) {
+                return URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8.name());
+            }
+        }
+        return null;
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+        send(exchange, status, TEXT_CONTENT_TYPE, text);
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, String text) throws IOException {
+        byte[] body = (text + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Encoded composite, which holds no native memory.
+     */
+    private static class Composite {
+        private final byte[] jpeg;
+        private final double energy;
+
+        Composite(byte[] jpeg, double energy) {
+            this.jpeg = jpeg;
+            this.energy = energy;
+        }
+    }
+}
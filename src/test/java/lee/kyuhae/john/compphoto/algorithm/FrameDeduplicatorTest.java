@@ -0,0 +1,82 @@
+package lee.kyuhae.john.compphoto.algorithm;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FrameDeduplicatorTest {
+    private static final int WIDTH = 32;
+    private static final int HEIGHT = 24;
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        nu.pattern.OpenCV.loadLibrary();
+    }
+
+    @Test
+    public void duplicatesAreReleasedAsTheyAreAdded() {
+        FrameDeduplicator deduplicator = new FrameDeduplicator();
+        Mat first = createFrame(100);
+        Mat duplicate = createFrame(102);
+        Mat other = createFrame(200);
+        Mat lastDuplicate = createFrame(101);
+
+        assertEquals(0, deduplicator.add(first));
+        assertEquals(0, deduplicator.add(duplicate));
+        // The second frame is kept until there is a second cluster, in case every frame is the same.
+        assertFalse(duplicate.empty());
+        assertEquals(1, deduplicator.add(other));
+        assertTrue(duplicate.empty());
+        assertEquals(0, deduplicator.add(lastDuplicate));
+        assertTrue(lastDuplicate.empty());
+
+        Mat[] reduced = deduplicator.reduce();
+        assertEquals(2, reduced.length);
+        assertSame(first, reduced[0]);
+        assertSame(other, reduced[1]);
+        assertEquals(Arrays.asList(0, 1, 3), deduplicator.getFrameIndices((short) 0));
+        assertEquals(Arrays.asList(2), deduplicator.getFrameIndices((short) 1));
+    }
+
+    @Test
+    public void sameFramesAreReducedToTwo() {
+        Mat[] frames = {createFrame(100), createFrame(100), createFrame(100)};
+        FrameDeduplicator deduplicator = new FrameDeduplicator();
+        Mat[] reduced = deduplicator.reduce(frames);
+
+        assertEquals(2, reduced.length);
+        assertSame(frames[0], reduced[0]);
+        assertSame(frames[1], reduced[1]);
+        assertTrue(frames[2].empty());
+        assertEquals(Arrays.asList(0, 2), deduplicator.getFrameIndices((short) 0));
+        assertEquals(Arrays.asList(1), deduplicator.getFrameIndices((short) 1));
+    }
+
+    @Test
+    public void medianReleasesTheFramesOfItsCluster() {
+        Mat[] frames = {createFrame(100), createFrame(104), createFrame(102), createFrame(200)};
+        FrameDeduplicator deduplicator = new FrameDeduplicator(FrameDeduplicator.THRESHOLD_DEFAULT,
+                FrameDeduplicator.Mode.MEDIAN);
+        Mat[] reduced = deduplicator.reduce(frames);
+
+        assertEquals(2, reduced.length);
+        assertEquals(102.0d, reduced[0].get(0, 0)[0], 0.0d);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(frames[i].empty());
+        }
+        assertSame(frames[3], reduced[1]);
+    }
+
+    private static Mat createFrame(int value) {
+        return new Mat(HEIGHT, WIDTH, CvType.CV_8UC3, new Scalar(value, value, value));
+    }
+}
@@ -0,0 +1,150 @@
+package lee.kyuhae.john.compphoto.algorithm;
+
+import lee.kyuhae.john.compphoto.algorithm.histogram.SolverOptions;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+public class ImageProcessorTest {
+    private static final int WIDTH = 48;
+    private static final int HEIGHT = 32;
+    private static final int NUM_IMAGES = 3;
+    private static final int MARGIN = 6;
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        nu.pattern.OpenCV.loadLibrary();
+    }
+
+    @Test
+    public void useStrokeSolvesOnlyAroundTheStroke() {
+        ImageProcessor imageProcessor = createComputed();
+        short[] before = getLabels(imageProcessor);
+        short label = (short) (imageProcessor.getLabel(10, 10) == 0 ? 1 : 0);
+
+        Rect region = imageProcessor.applyStroke(new BrushStroke(label, BrushStroke.Type.USE, 2)
+                .addPoint(10, 10).addPoint(12, 10));
+
+        assertEquals(new Rect(10 - 2 - MARGIN, 10 - 2 - MARGIN, 2 + 2 * (2 + MARGIN) + 1, 2 * (2 + MARGIN) + 1),
+                region);
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int col = 0; col < WIDTH; col++) {
+                if (isCovered(col, row, 10, 10, 2) || isCovered(col, row, 12, 10, 2)) {
+                    assertEquals(label, imageProcessor.getLabel(col, row));
+                } else if (!region.contains(new Point(col, row))) {
+                    assertEquals(before[row * WIDTH + col], imageProcessor.getLabel(col, row));
+                }
+            }
+        }
+        assertCompositeShowsTheLabels(imageProcessor);
+    }
+
+    @Test
+    public void neverStrokeMovesPixelsToAnotherLabel() {
+        ImageProcessor imageProcessor = createComputed();
+        short label = imageProcessor.getLabel(30, 20);
+
+        imageProcessor.applyStroke(new BrushStroke(label, BrushStroke.Type.NEVER, 3).addPoint(30, 20));
+
+        for (int row = 17; row <= 23; row++) {
+            for (int col = 27; col <= 33; col++) {
+                if (isCovered(col, row, 30, 20, 3)) {
+                    assertNotEquals(label, imageProcessor.getLabel(col, row));
+                }
+            }
+        }
+        assertCompositeShowsTheLabels(imageProcessor);
+    }
+
+    /**
+     * A stroke that would leave a pixel without any label is rejected before any of it applies.
+     */
+    @Test
+    public void strokeThatLeavesNoLabelIsRejected() {
+        ImageProcessor imageProcessor = createComputed();
+        imageProcessor.applyStroke(new BrushStroke((short) 0, BrushStroke.Type.NEVER, 0).addPoint(20, 16));
+        imageProcessor.applyStroke(new BrushStroke((short) 1, BrushStroke.Type.NEVER, 0).addPoint(20, 16));
+        short[] before = getLabels(imageProcessor);
+
+        try {
+            imageProcessor.applyStroke(new BrushStroke((short) 2, BrushStroke.Type.NEVER, 1).addPoint(20, 15));
+            fail("Expected the stroke to be rejected.");
+        } catch (IllegalArgumentException expected) {
+            // Expected.
+        }
+
+        assertArrayEquals(before, getLabels(imageProcessor));
+        assertEquals(2, imageProcessor.getLabel(20, 16));
+
+        // (20, 14) was covered by the rejected stroke, but did not get its constraint.
+        imageProcessor.applyStroke(new BrushStroke((short) 0, BrushStroke.Type.NEVER, 0).addPoint(20, 14));
+        imageProcessor.applyStroke(new BrushStroke((short) 1, BrushStroke.Type.NEVER, 0).addPoint(20, 14));
+        assertEquals(2, imageProcessor.getLabel(20, 14));
+    }
+
+    private static ImageProcessor createComputed() {
+        ImageProcessor imageProcessor = new ImageProcessor(createImages(),
+                new SolverOptions().setStrokeSolveMargin(MARGIN));
+        imageProcessor.compute();
+        return imageProcessor;
+    }
+
+    private static boolean isCovered(int col, int row, int centerCol, int centerRow, int radius) {
+        int dCol = col - centerCol;
+        int dRow = row - centerRow;
+        return dCol * dCol + dRow * dRow <= radius * radius;
+    }
+
+    private static short[] getLabels(ImageProcessor imageProcessor) {
+        short[] labels = new short[WIDTH * HEIGHT];
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int col = 0; col < WIDTH; col++) {
+                labels[row * WIDTH + col] = imageProcessor.getLabel(col, row);
+            }
+        }
+        return labels;
+    }
+
+    private static void assertCompositeShowsTheLabels(ImageProcessor imageProcessor) {
+        Mat[] images = createImages();
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int col = 0; col < WIDTH; col++) {
+                assertArrayEquals(images[imageProcessor.getLabel(col, row)].get(row, col),
+                        imageProcessor.getCompositeImage().get(row, col), 0.0d);
+            }
+        }
+    }
+
+    /**
+     * Noise over a background that every image shares, with a block that moves from image to image.
+     */
+    private static Mat[] createImages() {
+        Random random = new Random(11);
+        Mat[] images = new Mat[NUM_IMAGES];
+        for (int image = 0; image < NUM_IMAGES; image++) {
+            byte[] values = new byte[WIDTH * HEIGHT * 3];
+            for (int row = 0; row < HEIGHT; row++) {
+                for (int col = 0; col < WIDTH; col++) {
+                    boolean block = col >= image * 12 && col < image * 12 + 16 && row >= 8 && row < 24;
+                    for (int channel = 0; channel < 3; channel++) {
+                        int value = block ? 30 : 180 + channel * 20;
+                        values[(row * WIDTH + col) * 3 + channel] = (byte) (value + random.nextInt(10));
+                    }
+                }
+            }
+            images[image] = new Mat(HEIGHT, WIDTH, CvType.CV_8UC3);
+            images[image].put(0, 0, values);
+        }
+        return images;
+    }
+}
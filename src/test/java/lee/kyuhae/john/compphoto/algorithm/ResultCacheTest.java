@@ -0,0 +1,147 @@
+package lee.kyuhae.john.compphoto.algorithm;
+
+import lee.kyuhae.john.compphoto.algorithm.histogram.MLOEnergyMinimizer;
+import lee.kyuhae.john.compphoto.algorithm.histogram.SolverOptions;
+import lee.kyuhae.john.compphoto.algorithm.maxflow.MaxFlowEngine;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ResultCacheTest {
+    private static final int WIDTH = 24;
+    private static final int HEIGHT = 16;
+    private static final short OUTLIER = 2;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Mat[] images;
+    private SolverOptions options;
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        nu.pattern.OpenCV.loadLibrary();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        // Two images agree on the background, so that a solve without strokes never takes the outlier.
+        images = new Mat[] {
+                new Mat(HEIGHT, WIDTH, CvType.CV_8UC3, new Scalar(100, 120, 140)),
+                new Mat(HEIGHT, WIDTH, CvType.CV_8UC3, new Scalar(100, 120, 140)),
+                new Mat(HEIGHT, WIDTH, CvType.CV_8UC3, new Scalar(10, 200, 30)),
+        };
+        options = new SolverOptions().setResultCacheDir(temporaryFolder.newFolder("cache"));
+    }
+
+    @Test
+    public void sameImagesAndSignatureGiveTheSameKey() {
+        String key = ResultCache.computeKey(images, "signature");
+        assertEquals(key, ResultCache.computeKey(images, "signature"));
+        assertNotEquals(key, ResultCache.computeKey(images, "other signature"));
+        assertNotEquals(key, ResultCache.computeKey(new Mat[] {images[0], images[2], images[1]}, "signature"));
+    }
+
+    @Test
+    public void signatureNamesTheSolverVersionAndEngine() {
+        String signature = MLOEnergyMinimizer.getParameterSignature(new SolverOptions());
+        assertTrue(signature, signature.contains(";version="));
+        assertTrue(signature, signature.contains(";maxFlow=" + MaxFlowEngine.BOYKOV_KOLMOGOROV));
+        assertNotEquals(signature,
+                MLOEnergyMinimizer.getParameterSignature(new SolverOptions().setMaxFlowEngine(MaxFlowEngine.IBFS)));
+    }
+
+    @Test
+    public void putThenGetReturnsTheEntry() {
+        ResultCache resultCache = new ResultCache(options.getResultCacheDir(), options.getResultCacheBudgetBytes());
+        short[] labels = {0, 1, 2, 1, 0};
+        resultCache.put("key", 12.5, labels);
+
+        ResultCache.Entry entry = resultCache.get("key", labels.length);
+        assertEquals(12.5, entry.getEnergy(), 0.0);
+        assertEquals(labels.length, entry.getLabels().length);
+        for (int i = 0; i < labels.length; i++) {
+            assertEquals(labels[i], entry.getLabels()[i]);
+        }
+        assertEquals(null, resultCache.get("key", labels.length + 1));
+        assertEquals(null, resultCache.get("missing", labels.length));
+    }
+
+    @Test
+    public void strokesAreNotServedTheResultWithoutThem() {
+        ImageProcessor plain = new ImageProcessor(images, options);
+        plain.compute();
+        assertEquals(0, countLabel(plain, OUTLIER));
+
+        ImageProcessor stroked = new ImageProcessor(images, options);
+        stroked.applyStroke(stroke());
+        stroked.compute();
+        assertStrokeHolds(stroked);
+        assertEquals(2, countEntries());
+    }
+
+    @Test
+    public void resultsWithStrokesDoNotPoisonPlainRuns() {
+        ImageProcessor stroked = new ImageProcessor(images, options);
+        stroked.applyStroke(stroke());
+        stroked.compute();
+        assertStrokeHolds(stroked);
+
+        ImageProcessor plain = new ImageProcessor(images, options);
+        plain.compute();
+        assertEquals(0, countLabel(plain, OUTLIER));
+
+        // Same strokes again are a hit.
+        ImageProcessor again = new ImageProcessor(images, options);
+        again.applyStroke(stroke());
+        again.compute();
+        assertStrokeHolds(again);
+        assertEquals(stroked.getEnergy(), again.getEnergy(), 0.0);
+        assertEquals(2, countEntries());
+    }
+
+    private static BrushStroke stroke() {
+        return new BrushStroke(OUTLIER, BrushStroke.Type.USE, 3).addPoint(WIDTH / 2, HEIGHT / 2);
+    }
+
+    private static void assertStrokeHolds(ImageProcessor processor) {
+        for (int row = HEIGHT / 2 - 3; row <= HEIGHT / 2 + 3; row++) {
+            for (int col = WIDTH / 2 - 3; col <= WIDTH / 2 + 3; col++) {
+                int dCol = col - WIDTH / 2;
+                int dRow = row - HEIGHT / 2;
+                if (dCol * dCol + dRow * dRow <= 9) {
+                    assertEquals("Label at " + col + "," + row, OUTLIER, processor.getLabel(col, row));
+                }
+            }
+        }
+    }
+
+    private static int countLabel(ImageProcessor processor, short label) {
+        int count = 0;
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int col = 0; col < WIDTH; col++) {
+                if (processor.getLabel(col, row) == label) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private int countEntries() {
+        File[] entries = options.getResultCacheDir().listFiles();
+        return entries == null ? 0 : entries.length;
+    }
+}
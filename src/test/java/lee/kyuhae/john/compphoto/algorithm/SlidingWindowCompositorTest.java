@@ -0,0 +1,96 @@
+package lee.kyuhae.john.compphoto.algorithm;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SlidingWindowCompositorTest {
+    private static final int WIDTH = 24;
+    private static final int HEIGHT = 16;
+    private static final int WINDOW_SIZE = 3;
+    private static final int NUM_CHANNEL = 3;
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        nu.pattern.OpenCV.loadLibrary();
+    }
+
+    @Test
+    public void compositeShowsTheFrameThatReplacedASlot() {
+        SlidingWindowCompositor compositor = new SlidingWindowCompositor(WINDOW_SIZE);
+        for (int i = 0; i < WINDOW_SIZE - 1; i++) {
+            assertNull(compositor.push(frame(100, 120, 140)));
+        }
+        assertCompositeMatches(compositor, compositor.push(frame(100, 120, 140)), frame(100, 120, 140));
+
+        // Each new frame replaces the oldest slot. The values stay in the same histogram bins as the others,
+        // so that the labels stay where they are and only the pixels of the slot change.
+        Scalar[] colors = {new Scalar(102, 121, 139), new Scalar(104, 122, 138), new Scalar(106, 123, 137)};
+        Mat[] window = {frame(100, 120, 140), frame(100, 120, 140), frame(100, 120, 140)};
+        for (int i = 0; i < colors.length; i++) {
+            Mat frame = new Mat(HEIGHT, WIDTH, CvType.CV_8UC3, colors[i]);
+            window[i % WINDOW_SIZE] = frame;
+            int fromFirstSlot = assertCompositeMatches(compositor, compositor.push(frame), window);
+            if (i == 0) {
+                assertTrue("Some pixels should show the frame that replaced slot 0.", fromFirstSlot > 0);
+            }
+        }
+    }
+
+    private static Mat frame(double b, double g, double r) {
+        return new Mat(HEIGHT, WIDTH, CvType.CV_8UC3, new Scalar(b, g, r));
+    }
+
+    private static void assertCompositeMatches(SlidingWindowCompositor compositor, Mat composite, Mat expected) {
+        assertCompositeMatches(compositor, composite, new Mat[] {expected, expected, expected});
+    }
+
+    /**
+     * Checks every pixel of the composite against the frame in the slot of its label.
+     * Returns the number of pixels taken from slot 0.
+     */
+    private static int assertCompositeMatches(SlidingWindowCompositor compositor, Mat composite, Mat[] window) {
+        assertEquals(CvType.CV_8UC3, composite.type());
+        Mat labelImage = compositor.getLabelImage();
+        byte[] row = new byte[WIDTH * NUM_CHANNEL];
+        byte[] labelRow = new byte[WIDTH * NUM_CHANNEL];
+        byte[] expected = new byte[NUM_CHANNEL];
+        int fromFirstSlot = 0;
+        for (int r = 0; r < HEIGHT; r++) {
+            composite.get(r, 0, row);
+            labelImage.get(r, 0, labelRow);
+            for (int c = 0; c < WIDTH; c++) {
+                int slot = labelOf(labelRow, c);
+                window[slot].get(r, c, expected);
+                byte[] actual = {row[c * NUM_CHANNEL], row[c * NUM_CHANNEL + 1], row[c * NUM_CHANNEL + 2]};
+                assertArrayEquals("Pixel " + c + "," + r + " of slot " + slot, expected, actual);
+                if (slot == 0) {
+                    fromFirstSlot++;
+                }
+            }
+        }
+        return fromFirstSlot;
+    }
+
+    /**
+     * Label of the pixel, from its color in the label image.
+     */
+    private static int labelOf(byte[] labelRow, int col) {
+        for (short label = 0; label < WINDOW_SIZE; label++) {
+            RGBVector color = LabelColor.get(label);
+            if ((labelRow[col * NUM_CHANNEL] & 0xFF) == color.getR()
+                    && (labelRow[col * NUM_CHANNEL + 1] & 0xFF) == color.getG()
+                    && (labelRow[col * NUM_CHANNEL + 2] & 0xFF) == color.getB()) {
+                return label;
+            }
+        }
+        throw new AssertionError("Pixel " + col + " has no label color.");
+    }
+}
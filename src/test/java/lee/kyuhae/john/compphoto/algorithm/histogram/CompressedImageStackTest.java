@@ -0,0 +1,144 @@
+package lee.kyuhae.john.compphoto.algorithm.histogram;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class CompressedImageStackTest {
+    // Height is not a multiple of BAND_ROWS, so that the last band is shorter.
+    private static final int WIDTH = 13;
+    private static final int HEIGHT = 3 * CompressedImageStack.BAND_ROWS + 5;
+    private static final int NUM_IMAGES = 4;
+    private static final int NUM_CHANNEL = ImageStack.NUM_CHANNEL;
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        nu.pattern.OpenCV.loadLibrary();
+    }
+
+    @Test
+    public void deflateReadsTheValuesItWasGiven() {
+        assertReadsValues(StackCompression.DEFLATE);
+    }
+
+    @Test
+    public void deltaReadsTheValuesItWasGiven() {
+        assertReadsValues(StackCompression.DELTA);
+    }
+
+    @Test
+    public void readsFromSeveralThreadsAtOnce() throws Exception {
+        Random random = new Random(3);
+        Mat[] images = createImages(random);
+        final ImageStack expected = ImageStack.create(images, StorageBackend.HEAP, null);
+        // The smallest cache, so that every thread keeps evicting bands.
+        final ImageStack stack = ImageStack.create(images,
+                new SolverOptions().setStackCompression(StackCompression.DELTA).setStackCacheBytes(0));
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                final long seed = t;
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        Random random = new Random(seed);
+                        int mismatches = 0;
+                        for (int n = 0; n < 20000; n++) {
+                            int image = random.nextInt(NUM_IMAGES);
+                            int index = random.nextInt(WIDTH * HEIGHT);
+                            int channel = random.nextInt(NUM_CHANNEL);
+                            if (stack.getValue(image, index, channel) != expected.getValue(image, index, channel)) {
+                                mismatches++;
+                            }
+                        }
+                        return mismatches;
+                    }
+                }));
+            }
+            for (Future<Integer> future : futures) {
+                assertEquals(0, (int) future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void assertReadsValues(StackCompression compression) {
+        Random random = new Random(1);
+        Mat[] images = createImages(random);
+        ImageStack expected = ImageStack.create(images, StorageBackend.HEAP, null);
+        ImageStack stack = ImageStack.create(images, new SolverOptions().setStackCompression(compression));
+        assertSameValues(expected, stack);
+
+        // Replacing the first image encodes the others again with delta. Reads before must not leave stale bands.
+        for (int slot : new int[] {0, 2}) {
+            Mat image = createImage(random);
+            expected.replace(slot, image);
+            stack.replace(slot, image);
+            assertSameValues(expected, stack);
+        }
+    }
+
+    private static void assertSameValues(ImageStack expected, ImageStack stack) {
+        byte[] expectedRow = new byte[WIDTH * NUM_CHANNEL];
+        byte[] row = new byte[WIDTH * NUM_CHANNEL];
+        for (int image = 0; image < NUM_IMAGES; image++) {
+            for (int r = 0; r < HEIGHT; r++) {
+                expected.readRow(image, r * WIDTH, WIDTH, expectedRow, 0);
+                stack.readRow(image, r * WIDTH, WIDTH, row, 0);
+                assertArrayEquals("Image " + image + ", row " + r, expectedRow, row);
+            }
+
+            // A read across bands.
+            int count = 2 * CompressedImageStack.BAND_ROWS * WIDTH;
+            byte[] expectedValues = new byte[count * NUM_CHANNEL];
+            byte[] values = new byte[count * NUM_CHANNEL];
+            expected.readRow(image, WIDTH + 3, count, expectedValues, 0);
+            stack.readRow(image, WIDTH + 3, count, values, 0);
+            assertArrayEquals(expectedValues, values);
+
+            for (int index = 0; index < WIDTH * HEIGHT; index++) {
+                for (int channel = 0; channel < NUM_CHANNEL; channel++) {
+                    assertEquals(expected.getValue(image, index, channel), stack.getValue(image, index, channel));
+                }
+                int other = (image + 1) % NUM_IMAGES;
+                assertEquals(expected.distance(image, other, index), stack.distance(image, other, index), 0.0d);
+            }
+        }
+    }
+
+    private static Mat[] createImages(Random random) {
+        Mat[] images = new Mat[NUM_IMAGES];
+        for (int i = 0; i < NUM_IMAGES; i++) {
+            images[i] = createImage(random);
+        }
+        return images;
+    }
+
+    /**
+     * A gradient with noise, so that values wrap around in the prediction and the delta.
+     */
+    private static Mat createImage(Random random) {
+        byte[] values = new byte[WIDTH * HEIGHT * NUM_CHANNEL];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (byte) (i / NUM_CHANNEL + random.nextInt(64));
+        }
+        Mat image = new Mat(HEIGHT, WIDTH, CvType.CV_8UC3);
+        image.put(0, 0, values);
+        return image;
+    }
+}
@@ -0,0 +1,78 @@
+package lee.kyuhae.john.compphoto.algorithm.histogram;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LabelSchedulerTest {
+    @Test
+    public void firstSweepExpandsEveryLabelInIndexOrder() {
+        LabelScheduler scheduler = new LabelScheduler(4);
+        assertArrayEquals(new short[] {0, 1, 2, 3}, scheduler.nextSweep());
+    }
+
+    @Test
+    public void labelsAreOrderedByTheirLastGain() {
+        LabelScheduler scheduler = new LabelScheduler(3);
+        scheduler.nextSweep();
+        scheduler.record((short) 0, 1.0d);
+        scheduler.record((short) 1, 5.0d);
+        scheduler.record((short) 2, 3.0d);
+
+        assertArrayEquals(new short[] {1, 2, 0}, scheduler.nextSweep());
+    }
+
+    @Test
+    public void convergesOnceEveryLabelIsIdleSinceTheLastGain() {
+        LabelScheduler scheduler = new LabelScheduler(3);
+        scheduler.nextSweep();
+        scheduler.record((short) 0, 0.0d);
+        scheduler.record((short) 1, 2.0d);
+        scheduler.record((short) 2, 0.0d);
+        assertFalse(scheduler.isConverged());
+
+        // The gain of label 1 cleared the idle label 0, but not label 2, which was expanded after it.
+        assertArrayEquals(new short[] {1, 0}, scheduler.nextSweep());
+        scheduler.record((short) 1, 0.0d);
+        scheduler.record((short) 0, 0.0d);
+
+        assertTrue(scheduler.isConverged());
+        assertArrayEquals(new short[0], scheduler.nextSweep());
+        assertEquals(5, scheduler.getTotalExpansions());
+        assertEquals(2.0d, scheduler.getTotalGain((short) 1), 0.0d);
+    }
+
+    @Test
+    public void backedOffLabelIsReprobedAfterTheInterval() {
+        LabelScheduler scheduler = new LabelScheduler(3, 2, 3);
+        assertArrayEquals(new short[] {0, 1, 2}, scheduler.nextSweep());
+        scheduler.record((short) 0, 0.0d);
+        scheduler.record((short) 1, 5.0d);
+        scheduler.record((short) 2, 0.0d);
+
+        // Second expansion of label 0 without gain, in sweep 2.
+        assertArrayEquals(new short[] {1, 0}, scheduler.nextSweep());
+        scheduler.record((short) 1, 3.0d);
+        scheduler.record((short) 0, 0.0d);
+
+        assertArrayEquals(new short[] {1, 2}, scheduler.nextSweep());
+        scheduler.record((short) 1, 1.0d);
+        scheduler.record((short) 2, 1.0d);
+
+        // Label 0 is no longer idle, but backed off until 3 sweeps after sweep 2.
+        assertArrayEquals(new short[] {1, 2}, scheduler.nextSweep());
+        scheduler.record((short) 1, 1.0d);
+        scheduler.record((short) 2, 1.0d);
+
+        assertArrayEquals(new short[] {1, 2, 0}, scheduler.nextSweep());
+        assertEquals(2, scheduler.getExpansionCount((short) 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNoLabels() {
+        new LabelScheduler(0);
+    }
+}
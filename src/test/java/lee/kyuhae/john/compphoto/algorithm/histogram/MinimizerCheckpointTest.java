@@ -0,0 +1,119 @@
+package lee.kyuhae.john.compphoto.algorithm.histogram;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class MinimizerCheckpointTest {
+    private static final int WIDTH = 24;
+    private static final int HEIGHT = 16;
+    private static final int NUM_IMAGES = 3;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        nu.pattern.OpenCV.loadLibrary();
+    }
+
+    @Test
+    public void readGivesBackWhatWasWritten() throws Exception {
+        LabelScheduler scheduler = new LabelScheduler(NUM_IMAGES);
+        short[] sweepOrder = scheduler.nextSweep();
+        scheduler.record((short) 0, 0.0d);
+        scheduler.record((short) 1, 2.5d);
+        short[] labels = {2, 0, 1, 1, 0, 2};
+
+        File file = folder.newFile("checkpoint");
+        new MinimizerCheckpoint(3, 2, 4, 2, 1, 12.5d, sweepOrder, scheduler, labels).write(file);
+        MinimizerCheckpoint checkpoint = MinimizerCheckpoint.read(file);
+
+        assertEquals(3, checkpoint.getWidth());
+        assertEquals(2, checkpoint.getHeight());
+        assertEquals(4, checkpoint.getIteration());
+        assertEquals(2, checkpoint.getSweepPosition());
+        assertEquals(1, checkpoint.getStepCounter());
+        assertEquals(12.5d, checkpoint.getEnergy(), 0.0d);
+        assertArrayEquals(sweepOrder, checkpoint.getSweepOrder());
+        assertArrayEquals(labels, checkpoint.getLabels());
+
+        LabelScheduler restored = checkpoint.restoreScheduler();
+        assertEquals(scheduler.getSweep(), restored.getSweep());
+        assertEquals(scheduler.getTotalExpansions(), restored.getTotalExpansions());
+        assertEquals(2.5d, restored.getTotalGain((short) 1), 0.0d);
+        assertArrayEquals(scheduler.nextSweep(), restored.nextSweep());
+    }
+
+    /**
+     * A checkpoint taken after the first expansion, as compute() takes it, is resumed into the same result as
+     * an uninterrupted compute().
+     */
+    @Test
+    public void resumeFromTheMiddleOfASweepGivesTheSameResult() throws Exception {
+        Mat[] images = createImages();
+
+        short[] expectedLabels = new short[WIDTH * HEIGHT];
+        MLOEnergyMinimizer uninterrupted = new MLOEnergyMinimizer(images, expectedLabels, new SolverOptions());
+        uninterrupted.compute();
+
+        short[] labels = new short[WIDTH * HEIGHT];
+        MLOEnergyMinimizer interrupted = new MLOEnergyMinimizer(images, labels, new SolverOptions());
+        LabelScheduler scheduler = new LabelScheduler(NUM_IMAGES);
+        short[] sweepOrder = scheduler.nextSweep();
+        double initialEnergy = interrupted.BVZComputeEnergy();
+        double energy = interrupted.BVZExpand(sweepOrder[0], initialEnergy);
+        scheduler.record(sweepOrder[0], initialEnergy - energy);
+        File file = folder.newFile("checkpoint");
+        new MinimizerCheckpoint(WIDTH, HEIGHT, 0, 1, energy == initialEnergy ? 1 : 0, energy, sweepOrder, scheduler,
+                labels).write(file);
+
+        short[] resumedLabels = new short[WIDTH * HEIGHT];
+        MLOEnergyMinimizer resumed = new MLOEnergyMinimizer(images, resumedLabels, new SolverOptions());
+        resumed.resume(file);
+
+        assertEquals(uninterrupted.getEnergy(), resumed.getEnergy(), 0.0d);
+        assertArrayEquals(expectedLabels, resumedLabels);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void resumeRejectsACheckpointOfAnotherSize() throws Exception {
+        File file = folder.newFile("checkpoint");
+        new MinimizerCheckpoint(WIDTH + 1, HEIGHT, 0, 0, 0, 0.0d, new short[0], new LabelScheduler(NUM_IMAGES),
+                new short[(WIDTH + 1) * HEIGHT]).write(file);
+
+        new MLOEnergyMinimizer(createImages(), new short[WIDTH * HEIGHT], new SolverOptions()).resume(file);
+    }
+
+    /**
+     * Noise over a background that every image shares, with a block that moves from image to image.
+     */
+    private static Mat[] createImages() {
+        Random random = new Random(5);
+        Mat[] images = new Mat[NUM_IMAGES];
+        for (int image = 0; image < NUM_IMAGES; image++) {
+            byte[] values = new byte[WIDTH * HEIGHT * 3];
+            for (int row = 0; row < HEIGHT; row++) {
+                for (int col = 0; col < WIDTH; col++) {
+                    boolean block = col >= image * 6 && col < image * 6 + 8 && row >= 4 && row < 12;
+                    for (int channel = 0; channel < 3; channel++) {
+                        int value = block ? 30 : 180 + channel * 20;
+                        values[(row * WIDTH + col) * 3 + channel] = (byte) (value + random.nextInt(10));
+                    }
+                }
+            }
+            images[image] = new Mat(HEIGHT, WIDTH, CvType.CV_8UC3);
+            images[image].put(0, 0, values);
+        }
+        return images;
+    }
+}
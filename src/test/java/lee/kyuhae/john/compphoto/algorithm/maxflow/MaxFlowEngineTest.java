@@ -0,0 +1,156 @@
+package lee.kyuhae.john.compphoto.algorithm.maxflow;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class MaxFlowEngineTest {
+    private static final double TOLERANCE = 1e-9;
+
+    /**
+     * Small graphs with integer capacities, checked against the minimum cut found by trying every cut.
+     */
+    @Test
+    public void everyEngineFindsTheMinimumCutOfSmallGraphs() {
+        Random random = new Random(1);
+        for (int trial = 0; trial < 2000; trial++) {
+            RandomGraph graph = RandomGraph.dense(random, 2 + random.nextInt(8));
+            double minimumCut = graph.bruteForceMinimumCut();
+            for (MaxFlowEngine engine : MaxFlowEngine.values()) {
+                Node[] nodes = graph.build();
+                double flow = graph.solve(engine, nodes);
+                assertEquals(engine + ", trial " + trial, minimumCut, flow, TOLERANCE);
+                assertEquals(engine + ", trial " + trial, flow, graph.cutCapacity(nodes), TOLERANCE);
+            }
+        }
+    }
+
+    /**
+     * Grids with double capacities, like the expansion graphs. Engines may cut a few nodes differently at the same
+     * capacity, so that the flows and the capacities of the cuts are compared instead of the sides.
+     */
+    @Test
+    public void enginesAgreeOnGrids() {
+        Random random = new Random(2);
+        for (int trial = 0; trial < 50; trial++) {
+            RandomGraph graph = RandomGraph.grid(random, 5 + random.nextInt(25), 5 + random.nextInt(25));
+            Node[] bkNodes = graph.build();
+            double bkFlow = graph.solve(MaxFlowEngine.BOYKOV_KOLMOGOROV, bkNodes);
+            Node[] ibfsNodes = graph.build();
+            double ibfsFlow = graph.solve(MaxFlowEngine.IBFS, ibfsNodes);
+
+            double tolerance = TOLERANCE * Math.max(1.0d, bkFlow);
+            assertEquals("trial " + trial, bkFlow, ibfsFlow, tolerance);
+            assertEquals("trial " + trial, bkFlow, graph.cutCapacity(bkNodes), tolerance);
+            assertEquals("trial " + trial, ibfsFlow, graph.cutCapacity(ibfsNodes), tolerance);
+        }
+    }
+
+    private static class RandomGraph {
+        private final double[] source;
+        private final double[] sink;
+        private final double[][] capacities;
+
+        private RandomGraph(int size) {
+            this.source = new double[size];
+            this.sink = new double[size];
+            this.capacities = new double[size][size];
+        }
+
+        static RandomGraph dense(Random random, int size) {
+            RandomGraph graph = new RandomGraph(size);
+            for (int i = 0; i < size; i++) {
+                graph.setTerminal(i, random.nextInt(21) - 10);
+                for (int j = i + 1; j < size; j++) {
+                    if (random.nextInt(3) == 0) {
+                        graph.capacities[i][j] = random.nextInt(8);
+                        graph.capacities[j][i] = random.nextInt(8);
+                    }
+                }
+            }
+            return graph;
+        }
+
+        static RandomGraph grid(Random random, int width, int height) {
+            RandomGraph graph = new RandomGraph(width * height);
+            for (int index = 0; index < width * height; index++) {
+                graph.setTerminal(index, random.nextDouble() * 2.0d - 1.0d);
+                if (index % width < width - 1) {
+                    graph.capacities[index][index + 1] = random.nextDouble();
+                    graph.capacities[index + 1][index] = random.nextDouble();
+                }
+                if (index + width < width * height) {
+                    graph.capacities[index][index + width] = random.nextDouble();
+                    graph.capacities[index + width][index] = random.nextDouble();
+                }
+            }
+            return graph;
+        }
+
+        private void setTerminal(int i, double capacity) {
+            source[i] = Math.max(capacity, 0.0d);
+            sink[i] = Math.max(-capacity, 0.0d);
+        }
+
+        Node[] build() {
+            Node[] nodes = new Node[source.length];
+            for (int i = 0; i < nodes.length; i++) {
+                nodes[i] = new Node(i);
+            }
+            for (int i = 0; i < nodes.length; i++) {
+                for (int j = i + 1; j < nodes.length; j++) {
+                    if (capacities[i][j] > 0 || capacities[j][i] > 0) {
+                        Graph.addEdge(nodes[i], nodes[j], capacities[i][j], capacities[j][i]);
+                    }
+                }
+            }
+            return nodes;
+        }
+
+        double solve(MaxFlowEngine engine, Node[] nodes) {
+            MaxFlowSolver solver = engine.create(nodes);
+            for (int i = 0; i < nodes.length; i++) {
+                solver.setTweights(nodes[i], source[i], sink[i]);
+            }
+            return solver.findMaxFlow();
+        }
+
+        /**
+         * Capacity of the cut that Graph.whatSegment gives after the flow.
+         */
+        double cutCapacity(Node[] nodes) {
+            boolean[] sinkSide = new boolean[nodes.length];
+            for (int i = 0; i < nodes.length; i++) {
+                sinkSide[i] = Graph.whatSegment(nodes[i]) == Graph.SINK;
+            }
+            return cutCapacity(sinkSide);
+        }
+
+        double bruteForceMinimumCut() {
+            boolean[] sinkSide = new boolean[source.length];
+            double minimum = Double.MAX_VALUE;
+            for (int mask = 0; mask < 1 << source.length; mask++) {
+                for (int i = 0; i < source.length; i++) {
+                    sinkSide[i] = (mask >> i & 1) == 1;
+                }
+                minimum = Math.min(minimum, cutCapacity(sinkSide));
+            }
+            return minimum;
+        }
+
+        private double cutCapacity(boolean[] sinkSide) {
+            double capacity = 0.0d;
+            for (int i = 0; i < source.length; i++) {
+                capacity += sinkSide[i] ? source[i] : sink[i];
+                for (int j = 0; j < source.length; j++) {
+                    if (!sinkSide[i] && sinkSide[j]) {
+                        capacity += capacities[i][j];
+                    }
+                }
+            }
+            return capacity;
+        }
+    }
+}
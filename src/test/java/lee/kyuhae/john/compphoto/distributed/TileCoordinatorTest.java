@@ -0,0 +1,172 @@
+package lee.kyuhae.john.compphoto.distributed;
+
+import lee.kyuhae.john.compphoto.algorithm.histogram.MLOEnergyMinimizer;
+import lee.kyuhae.john.compphoto.algorithm.histogram.SolverOptions;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TileCoordinatorTest {
+    private static final int WIDTH = 80;
+    private static final int HEIGHT = 56;
+    private static final int NUM_IMAGES = 3;
+    private static final int TILE_SIZE = 24;
+    private static final int TILE_OVERLAP = 4;
+    private static final int SEAM_BAND_WIDTH = 3;
+    private static final long TASK_TIMEOUT_MILLIS = 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        nu.pattern.OpenCV.loadLibrary();
+    }
+
+    /**
+     * The worker joins after the task timeout has passed since the tiles were queued, and there are more tiles
+     * than workers. Every tile is still solved once, without being taken for the tile of a dead worker.
+     */
+    @Test(timeout = 120000)
+    public void tilesClaimedAfterTheTaskTimeoutAreNotRequeued() throws Exception {
+        File workDir = folder.newFolder("work");
+        TileCoordinator coordinator = new TileCoordinator(createOptions(workDir), new SolverOptions());
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> worker = startWorker(executor, workDir, TASK_TIMEOUT_MILLIS * 2);
+            coordinator.solve(createImages());
+
+            // Tiles, vertical and horizontal seams, and strips of rows for the energy.
+            int cols = ceilDiv(WIDTH, TILE_SIZE);
+            int rows = ceilDiv(HEIGHT, TILE_SIZE);
+            assertEquals(cols * rows + (cols - 1) + (rows - 1) + rows, (int) worker.get());
+            assertEquals(0, coordinator.getRequeuedTasks());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Seams solved by the workers on windows of the stack give the same labels and energy as solving the seams
+     * on the whole image, with a minimizer of the whole image.
+     */
+    @Test(timeout = 120000)
+    public void seamsOnWorkersMatchSeamsOnTheWholeImage() throws Exception {
+        File workDir = folder.newFolder("work");
+        TileCoordinator coordinator = new TileCoordinator(createOptions(workDir), new SolverOptions());
+        Mat[] images = createImages();
+
+        short[] labels;
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> worker = startWorker(executor, workDir, 0);
+            labels = coordinator.solve(images);
+            worker.get();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        short[] expected = new short[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y += TILE_SIZE) {
+            for (int x = 0; x < WIDTH; x += TILE_SIZE) {
+                solveTile(images, new Rect(x, y, Math.min(TILE_SIZE, WIDTH - x), Math.min(TILE_SIZE, HEIGHT - y)),
+                        expected);
+            }
+        }
+        MLOEnergyMinimizer whole = new MLOEnergyMinimizer(images, expected, new SolverOptions());
+        List<Rect> bands = new ArrayList<>(coordinator.getSeamBands(WIDTH, HEIGHT, true));
+        bands.addAll(coordinator.getSeamBands(WIDTH, HEIGHT, false));
+        whole.computeRegions(bands);
+
+        assertArrayEquals(expected, labels);
+        assertEquals(whole.getEnergy(), coordinator.getEnergy(), 1e-9 * whole.getEnergy());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSeamBandsThatTouch() {
+        new TileCoordinator(new TiledSolveOptions().setWorkDir(folder.getRoot()).setTileSize(8).setSeamBandWidth(4),
+                new SolverOptions());
+    }
+
+    private static TiledSolveOptions createOptions(File workDir) {
+        return new TiledSolveOptions().setWorkDir(workDir).setTileSize(TILE_SIZE).setTileOverlap(TILE_OVERLAP)
+                .setSeamBandWidth(SEAM_BAND_WIDTH).setLocalWorkers(0).setPollIntervalMillis(20)
+                .setTaskTimeoutMillis(TASK_TIMEOUT_MILLIS).setJobTimeoutMillis(60000);
+    }
+
+    private static Future<Integer> startWorker(ExecutorService executor, final File workDir, final long delayMillis) {
+        return executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                Thread.sleep(delayMillis);
+                return new TileWorker(workDir, 1).run();
+            }
+        });
+    }
+
+    /**
+     * Solves the tile with its overlap on its own, and copies the labels of its core.
+     */
+    private static void solveTile(Mat[] images, Rect core, short[] labels) {
+        int x = Math.max(core.x - TILE_OVERLAP, 0);
+        int y = Math.max(core.y - TILE_OVERLAP, 0);
+        Rect window = new Rect(x, y, Math.min(core.x + core.width + TILE_OVERLAP, WIDTH) - x,
+                Math.min(core.y + core.height + TILE_OVERLAP, HEIGHT) - y);
+        Mat[] windowImages = new Mat[images.length];
+        for (int i = 0; i < images.length; i++) {
+            windowImages[i] = images[i].submat(window).clone();
+        }
+        short[] windowLabels = new short[window.width * window.height];
+        new MLOEnergyMinimizer(windowImages, windowLabels, new SolverOptions()).compute();
+
+        for (int row = core.y; row < core.y + core.height; row++) {
+            System.arraycopy(windowLabels, (row - window.y) * window.width + (core.x - window.x), labels,
+                    row * WIDTH + core.x, core.width);
+        }
+    }
+
+    private static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+
+    /**
+     * Noise over a background that every image shares, with a block that moves from image to image.
+     */
+    private static Mat[] createImages() {
+        Random random = new Random(7);
+        Mat[] images = new Mat[NUM_IMAGES];
+        for (int image = 0; image < NUM_IMAGES; image++) {
+            byte[] values = new byte[WIDTH * HEIGHT * 3];
+            for (int row = 0; row < HEIGHT; row++) {
+                for (int col = 0; col < WIDTH; col++) {
+                    boolean block = col >= image * 20 && col < image * 20 + 30 && row >= 10 && row < 40;
+                    for (int channel = 0; channel < 3; channel++) {
+                        int value = block ? 30 : 180 + channel * 20;
+                        values[(row * WIDTH + col) * 3 + channel] = (byte) (value + random.nextInt(10));
+                    }
+                }
+            }
+            images[image] = new Mat(HEIGHT, WIDTH, CvType.CV_8UC3);
+            images[image].put(0, 0, values);
+        }
+        return images;
+    }
+}
@@ -0,0 +1,95 @@
+package lee.kyuhae.john.compphoto.region;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencv.core.Rect;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class RegionReaderTest {
+    private static final int WIDTH = 40;
+    private static final int HEIGHT = 70;
+    private static final int STRIP_HEIGHT = 16;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void stripsOfABaselineJpegMatchTheWholeImage() throws Exception {
+        assertStripsMatchTheWholeImage(writeJpeg(false));
+    }
+
+    @Test
+    public void stripsOfAProgressiveJpegMatchTheWholeImage() throws Exception {
+        assertStripsMatchTheWholeImage(writeJpeg(true));
+    }
+
+    @Test
+    public void stripsOfAPngMatchTheWholeImage() throws Exception {
+        File file = folder.newFile("image.png");
+        ImageIO.write(createImage(), "png", file);
+        assertStripsMatchTheWholeImage(file);
+    }
+
+    private static void assertStripsMatchTheWholeImage(File file) throws IOException {
+        final byte[] stripped = new byte[WIDTH * HEIGHT * 3];
+        final List<Rect> strips = new ArrayList<>();
+        byte[] whole;
+        try (RegionReader reader = new RegionReader(file)) {
+            reader.readStrips(STRIP_HEIGHT, new RegionReader.StripConsumer() {
+                @Override
+                public void accept(Rect strip, byte[] values) {
+                    System.arraycopy(values, 0, stripped, strip.y * WIDTH * 3, strip.width * strip.height * 3);
+                    strips.add(strip);
+                }
+            });
+            whole = reader.read(new Rect(0, 0, WIDTH, HEIGHT));
+        }
+
+        assertEquals(5, strips.size());
+        for (int i = 0; i < strips.size(); i++) {
+            assertEquals(new Rect(0, i * STRIP_HEIGHT, WIDTH, Math.min(STRIP_HEIGHT, HEIGHT - i * STRIP_HEIGHT)),
+                    strips.get(i));
+        }
+        assertArrayEquals(whole, stripped);
+    }
+
+    private File writeJpeg(boolean progressive) throws IOException {
+        File file = folder.newFile(progressive ? "progressive.jpg" : "baseline.jpg");
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setProgressiveMode(progressive ? ImageWriteParam.MODE_DEFAULT : ImageWriteParam.MODE_DISABLED);
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(file)) {
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(createImage(), null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return file;
+    }
+
+    private static BufferedImage createImage() {
+        Random random = new Random(3);
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_3BYTE_BGR);
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int col = 0; col < WIDTH; col++) {
+                image.setRGB(col, row, (row * 3) << 16 | (col * 5) << 8 | random.nextInt(256));
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,668 @@
+package lee.kyuhae.john.compphoto.regression;
+
+import lee.kyuhae.john.compphoto.algorithm.FrameDeduplicator;
+import lee.kyuhae.john.compphoto.algorithm.ImageProcessor;
+import lee.kyuhae.john.compphoto.algorithm.ParameterSweep;
+import lee.kyuhae.john.compphoto.algorithm.PreviewListener;
+import lee.kyuhae.john.compphoto.algorithm.TournamentCompositor;
+import lee.kyuhae.john.compphoto.algorithm.histogram.CandidatePruning;
+import lee.kyuhae.john.compphoto.algorithm.histogram.LabelInitialization;
+import lee.kyuhae.john.compphoto.algorithm.histogram.MLOEnergyMinimizer;
+import lee.kyuhae.john.compphoto.algorithm.histogram.PreparedStack;
+import lee.kyuhae.john.compphoto.algorithm.histogram.SolverOptions;
+import lee.kyuhae.john.compphoto.algorithm.histogram.StackCompression;
+import lee.kyuhae.john.compphoto.algorithm.histogram.StorageBackend;
+import lee.kyuhae.john.compphoto.algorithm.histogram.StreamingStackBuilder;
+import lee.kyuhae.john.compphoto.algorithm.maxflow.MaxFlowEngine;
+import lee.kyuhae.john.compphoto.distributed.TileWorker;
+import lee.kyuhae.john.compphoto.distributed.TiledSolveOptions;
+import lee.kyuhae.john.compphoto.pipeline.PipelineExecutor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.opencv.core.Mat;
+import org.opencv.highgui.Highgui;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * RegressionTest
+ *
+ * Runs every solver mode on the stacks that come with the repository, one test per case, and checks the results
+ * against the baselines recorded by a trusted run.
+ * - energy: final energy of each case, within ENERGY_TOLERANCE of its baseline.
+ * - goldenAgreement: fraction of pixels whose label matches the golden labels of the stack, i.e. the labels of
+ *   the default case when the baselines were recorded. Should not drop by more than AGREEMENT_TOLERANCE.
+ * - referenceAgreement: agreement of the labels with the reference composite that comes with the stack, on the
+ *   pixels where the choice of the image matters. Those are the pixels whose images differ from the reference by
+ *   at least DECISIVE_DIFFERENCE more for some image than for the closest one. A pixel agrees when its image is
+ *   within REFERENCE_PIXEL_TOLERANCE of the closest one. Should not drop by more than AGREEMENT_TOLERANCE, and
+ *   should be at least the minimum of the stack, or of the case.
+ *   The references are blended in the gradient domain, about 10 levels brighter than the images on attpark and 6
+ *   on cathedral. Only 72% and 56% of their pixels are within REFERENCE_PIXEL_TOLERANCE of any image, and a single
+ *   image is within it at 45-50% and 37-42%, against 49% and 44% for the composites. Comparing the composites
+ *   pixel by pixel therefore says little, which is why the images are compared with each other instead.
+ *
+ * Besides the options of the minimizer, the cases run the other ways of solving a whole stack in this process:
+ * tournament, streaming stack builder, previews, frame deduplication, tiles on a worker thread, and a parameter
+ * sweep of a single variant. Other modes are not cases:
+ * - strokes: constraints painted by a user. No stroke comes with the stacks. See ImageProcessorTest.
+ * - pipeline and server: queue stacks for ImageProcessor.compute(), which the previews case runs, and only
+ *   return JPEGs of the result, whose labels cannot be compared.
+ * - region: solves a window of the stack with a margin, not the whole stack. See RegionReaderTest for the strips
+ *   that it writes.
+ *
+ * Wall time and allocated bytes of each stage (load, prepare, solve, render) are logged against their baselines.
+ * Timings depend on the machine, so a stage slower than SLOWDOWN_FACTOR times its baseline only fails the case
+ * with -Dregression.checkTimings=true.
+ *
+ * Baselines are in src/test/resources/regression/baselines.properties and golden labels in
+ * src/test/resources/regression/STACK.labels. With -Dregression.record=true, the cases write them from the current
+ * code instead of checking against them. Golden labels come from the default case of each stack, so that record
+ * runs every case of a stack, e.g. gradle test --tests '*RegressionTest' -Dregression.record=true.
+ */
+@Slf4j
+@RunWith(Parameterized.class)
+public class RegressionTest {
+    private static final double ENERGY_TOLERANCE = 1e-6;
+    private static final double AGREEMENT_TOLERANCE = 0.005;
+    private static final int REFERENCE_PIXEL_TOLERANCE = 16;
+    private static final int DECISIVE_DIFFERENCE = 48;
+    private static final double SLOWDOWN_FACTOR = 1.5;
+    private static final int TOURNAMENT_GROUP_SIZE = 4;
+    private static final int TILE_SIZE = 256;
+    private static final int NUM_CHANNEL = 3;
+    private static final String GOLDEN_CASE = "default";
+    private static final String[] STAGES = {"load", "prepare", "solve", "render"};
+
+    private static final boolean RECORD = Boolean.getBoolean("regression.record");
+    private static final boolean CHECK_TIMINGS = Boolean.getBoolean("regression.checkTimings");
+    private static final File RESOURCE_DIR = new File("src/main/resources");
+    private static final File REGRESSION_DIR = new File("src/test/resources/regression");
+
+    /**
+     * Baselines to check against, or the ones being recorded. Sorted, so that a new recording diffs well
+     * against the previous one.
+     */
+    private static final Map<String, String> baselines = new TreeMap<>();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Case regressionCase;
+
+    public RegressionTest(Case regressionCase) {
+        this.regressionCase = regressionCase;
+    }
+
+    @Parameterized.Parameters(name = "{0}")
+    public static List<Object[]> cases() {
+        List<Case> cases = new ArrayList<>();
+        // Minimums are below the composites, and above the best single image on cathedral. On attpark, the people
+        // cover so few pixels that the best single image already agrees at 0.81.
+        addStack(cases, "attpark", new File(RESOURCE_DIR, "attpark_composite.jpg"), 0.8d);
+        addStack(cases, "cathedral", new File(RESOURCE_DIR, "cathedral/result.png"), 0.8d);
+
+        List<Object[]> parameters = new ArrayList<>(cases.size());
+        for (Case regressionCase : cases) {
+            parameters.add(new Object[] {regressionCase});
+        }
+        return parameters;
+    }
+
+    /**
+     * Every mode of the solver on the stack. Graphs are built on the solving thread, so that results do not depend
+     * on the number of processors and allocations of the solve are all counted.
+     */
+    private static void addStack(List<Case> cases, String stack, File reference, double minimumReferenceAgreement) {
+        Reference ref = new Reference(reference, minimumReferenceAgreement);
+        cases.add(new Case(stack, ref, GOLDEN_CASE, options()));
+        cases.add(new Case(stack, ref, "alpha-sink", options().setExpansionFlag(true)));
+        // Pixels of the top-k pruning only take the labels of their lowest data costs, which ends at a higher energy
+        // than the default on both stacks, and at about 0.64 and 0.69 of the reference.
+        cases.add(new Case(stack, ref, "pruning-top-k", options().setCandidatePruning(CandidatePruning.TOP_K))
+                .setMinimumReferenceAgreement(0.6d));
+        cases.add(new Case(stack, ref, "speculative-4", options().setSpeculativeExpansions(4)));
+        cases.add(new Case(stack, ref, "argmin-init",
+                options().setLabelInitialization(LabelInitialization.DATA_COST_ARGMIN)));
+        cases.add(new Case(stack, ref, "downscaled-init",
+                options().setLabelInitialization(LabelInitialization.DOWNSCALED_SOLVE)));
+        cases.add(new Case(stack, ref, "direct-storage", options().setStorageBackend(StorageBackend.DIRECT)));
+        cases.add(new Case(stack, ref, "delta-stack", options().setStackCompression(StackCompression.DELTA)));
+        cases.add(new Case(stack, ref, "ibfs", options().setMaxFlowEngine(MaxFlowEngine.IBFS)));
+        // Groups are solved on their own and then their winners, so the tournament minimizes another energy. It ends
+        // at about 0.74 of the reference on cathedral.
+        cases.add(new Case(stack, ref, "tournament", options()).setKind(Kind.TOURNAMENT)
+                .setMinimumReferenceAgreement(0.7d));
+        cases.add(new Case(stack, ref, "streaming", options().setStorageBackend(StorageBackend.MAPPED))
+                .setKind(Kind.STREAMING));
+        cases.add(new Case(stack, ref, "previews", options()).setKind(Kind.PREVIEWS));
+        cases.add(new Case(stack, ref, "deduplicated", options()).setKind(Kind.DEDUPLICATED));
+        cases.add(new Case(stack, ref, "tiled", options()).setKind(Kind.TILED));
+        cases.add(new Case(stack, ref, "sweep", options()).setKind(Kind.SWEEP));
+    }
+
+    private static SolverOptions options() {
+        return new SolverOptions().setGraphBuildParallelism(1);
+    }
+
+    @BeforeClass
+    public static void loadBaselines() throws IOException {
+        nu.pattern.OpenCV.loadLibrary();
+
+        // Recording starts from the current baselines, so that recording some of the cases keeps the others.
+        baselines.clear();
+        File baselineFile = getBaselineFile();
+        if (RECORD && !baselineFile.isFile()) {
+            return;
+        }
+
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(baselineFile)) {
+            properties.load(in);
+        }
+        for (String key : properties.stringPropertyNames()) {
+            baselines.put(key, properties.getProperty(key));
+        }
+    }
+
+    @AfterClass
+    public static void writeBaselines() throws IOException {
+        if (!RECORD) {
+            return;
+        }
+
+        try (PrintWriter out = new PrintWriter(getBaselineFile(), "ISO-8859-1")) {
+            out.println("# Recorded by RegressionTest. Timings are of the recording machine.");
+            for (Map.Entry<String, String> entry : baselines.entrySet()) {
+                out.println(entry.getKey() + "=" + entry.getValue());
+            }
+        }
+        log.info("Recorded baselines into {}.", REGRESSION_DIR);
+    }
+
+    @Test
+    public void matchesBaselines() throws IOException, InterruptedException, ExecutionException {
+        if (RECORD) {
+            record();
+            return;
+        }
+
+        short[] golden = readLabels(getGoldenFile(regressionCase.getStack()));
+        List<String> failures = check(regressionCase, runCase(regressionCase, golden, folder.getRoot()));
+        assertTrue(regressionCase.getName() + ": " + failures, failures.isEmpty());
+    }
+
+    /**
+     * Writes the result of the case as its baselines, and as the golden labels for the default case.
+     */
+    private void record() throws IOException, InterruptedException, ExecutionException {
+        if (!REGRESSION_DIR.isDirectory() && !REGRESSION_DIR.mkdirs()) {
+            throw new IOException("Failed to create " + REGRESSION_DIR + ".");
+        }
+
+        // Golden labels are the labels of the default case, which comes first for each stack.
+        File goldenFile = getGoldenFile(regressionCase.getStack());
+        boolean goldenCase = GOLDEN_CASE.equals(regressionCase.getMode());
+        Result result = runCase(regressionCase, goldenCase ? null : readLabels(goldenFile), folder.getRoot());
+        if (goldenCase) {
+            writeLabels(goldenFile, result.labels);
+            result.goldenAgreement = 1.0d;
+        }
+
+        String key = regressionCase.getName();
+        baselines.put(key + ".energy", String.valueOf(result.energy));
+        baselines.put(key + ".goldenAgreement", String.valueOf(result.goldenAgreement));
+        baselines.put(key + ".referenceAgreement", String.valueOf(result.referenceAgreement));
+        for (int stage = 0; stage < STAGES.length; stage++) {
+            baselines.put(key + "." + STAGES[stage] + ".millis", String.valueOf(result.millis[stage]));
+            baselines.put(key + "." + STAGES[stage] + ".allocatedBytes",
+                    String.valueOf(result.allocatedBytes[stage]));
+        }
+    }
+
+    /**
+     * workDir is for the files of the case, e.g. of the tiled solve.
+     */
+    private static Result runCase(Case regressionCase, short[] golden, File workDir)
+            throws IOException, InterruptedException, ExecutionException {
+        log.info("Running {}.", regressionCase.getName());
+        Result result = new Result();
+        StageClock clock = new StageClock();
+        SolverOptions options = regressionCase.getOptions();
+
+        Mat[] images = PipelineExecutor.loadImages(new File(RESOURCE_DIR, regressionCase.getStack()));
+        int width = images[0].width();
+        int height = images[0].height();
+        clock.end(result, 0);
+
+        // Labels are indices of the loaded images.
+        short[] labels = new short[width * height];
+        switch (regressionCase.getKind()) {
+            case MINIMIZER: {
+                PreparedStack prepared = new PreparedStack(images, options);
+                clock.end(result, 1);
+                result.energy = minimize(prepared, labels, options);
+                break;
+            }
+            case TOURNAMENT: {
+                // Prepare and solve are not separate stages of a tournament. Both are counted as the solve.
+                clock.end(result, 1);
+                TournamentCompositor compositor = new TournamentCompositor(TOURNAMENT_GROUP_SIZE, 1, options);
+                compositor.composite(images);
+                for (int row = 0; row < height; row++) {
+                    for (int col = 0; col < width; col++) {
+                        labels[row * width + col] = (short) compositor.getFrameIndex(col, row);
+                    }
+                }
+                result.energy = compositor.getEnergy();
+                break;
+            }
+            case STREAMING: {
+                StreamingStackBuilder builder = new StreamingStackBuilder(images.length, options);
+                for (Mat image : images) {
+                    builder.add(image);
+                }
+                PreparedStack prepared = builder.build();
+                clock.end(result, 1);
+                result.energy = minimize(prepared, labels, options);
+                break;
+            }
+            case PREVIEWS: {
+                ImageProcessor imageProcessor = new ImageProcessor(images, options);
+                imageProcessor.setPreviewListener(new PreviewListener() {
+                    @Override
+                    public void onPreview(Mat preview, int sweep, double energy) {
+                        preview.release();
+                    }
+                }, 0, 64);
+                imageProcessor.prepare();
+                clock.end(result, 1);
+                imageProcessor.compute();
+                result.energy = imageProcessor.getEnergy();
+                copyLabels(imageProcessor, labels);
+                imageProcessor.release();
+                break;
+            }
+            case DEDUPLICATED: {
+                // Duplicates are released, the representative of each cluster stays in images.
+                FrameDeduplicator deduplicator = new FrameDeduplicator();
+                Mat[] distinct = deduplicator.reduce(images);
+                PreparedStack prepared = new PreparedStack(distinct, options);
+                clock.end(result, 1);
+                result.energy = minimize(prepared, labels, options);
+                for (int index = 0; index < labels.length; index++) {
+                    labels[index] = (short) (int) deduplicator.getFrameIndices(labels[index]).get(0);
+                }
+                break;
+            }
+            case TILED: {
+                // Tiles are solved by a worker on another thread of this process, instead of worker processes.
+                clock.end(result, 1);
+                ImageProcessor imageProcessor = new ImageProcessor(images, options);
+                result.energy = solveTiled(imageProcessor, new File(workDir, "tiles"));
+                copyLabels(imageProcessor, labels);
+                imageProcessor.release();
+                break;
+            }
+            case SWEEP: {
+                ParameterSweep sweep = new ParameterSweep(images, options, 1);
+                clock.end(result, 1);
+                ParameterSweep.Result variant = sweep.run(Collections.singletonList(options)).get(0);
+                System.arraycopy(variant.getLabels(), 0, labels, 0, labels.length);
+                result.energy = variant.getEnergy();
+                break;
+            }
+            default:
+                throw new IllegalStateException("Unknown kind " + regressionCase.getKind());
+        }
+        clock.end(result, 2);
+
+        byte[] composite = renderComposite(images, labels);
+        clock.end(result, 3);
+
+        result.labels = labels;
+        result.goldenAgreement = golden == null ? Double.NaN : labelAgreement(labels, golden);
+        result.referenceAgreement = referenceAgreement(images, composite, regressionCase.getReference().getFile());
+        for (Mat image : images) {
+            image.release();
+        }
+        return result;
+    }
+
+    private static double minimize(PreparedStack prepared, short[] labels, SolverOptions options) {
+        MLOEnergyMinimizer minimizer = new MLOEnergyMinimizer(prepared, labels, options);
+        minimizer.compute();
+        return minimizer.getEnergy();
+    }
+
+    private static double solveTiled(ImageProcessor imageProcessor, final File workDir)
+            throws IOException, InterruptedException, ExecutionException {
+        TiledSolveOptions tiledOptions = new TiledSolveOptions().setWorkDir(workDir).setTileSize(TILE_SIZE)
+                .setLocalWorkers(0).setPollIntervalMillis(50);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> worker = executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return new TileWorker(workDir, 1).run();
+                }
+            });
+            imageProcessor.computeTiled(tiledOptions);
+            worker.get();
+        } finally {
+            executor.shutdownNow();
+        }
+        return imageProcessor.getEnergy();
+    }
+
+    private static void copyLabels(ImageProcessor imageProcessor, short[] labels) {
+        int width = imageProcessor.getCompositeImage().width();
+        for (int index = 0; index < labels.length; index++) {
+            labels[index] = imageProcessor.getLabel(index % width, index / width);
+        }
+    }
+
+    /**
+     * Returns the failed checks.
+     */
+    private static List<String> check(Case regressionCase, Result result) {
+        String key = regressionCase.getName();
+        List<String> failures = new ArrayList<>();
+
+        double energy = getBaseline(key + ".energy");
+        if (Math.abs(result.energy - energy) > ENERGY_TOLERANCE * Math.abs(energy)) {
+            failures.add("energy " + result.energy + ", baseline " + energy);
+        }
+
+        double goldenAgreement = getBaseline(key + ".goldenAgreement");
+        if (result.goldenAgreement < goldenAgreement - AGREEMENT_TOLERANCE) {
+            failures.add(result.goldenAgreement + " of the labels agree with the golden labels, baseline "
+                    + goldenAgreement);
+        }
+
+        double referenceAgreement = getBaseline(key + ".referenceAgreement");
+        if (result.referenceAgreement < referenceAgreement - AGREEMENT_TOLERANCE) {
+            failures.add(result.referenceAgreement + " of the labels agree with the reference, baseline "
+                    + referenceAgreement);
+        }
+        double minimumReferenceAgreement = regressionCase.getMinimumReferenceAgreement();
+        if (result.referenceAgreement < minimumReferenceAgreement) {
+            failures.add(result.referenceAgreement + " of the labels agree with the reference, minimum "
+                    + minimumReferenceAgreement);
+        }
+
+        for (int stage = 0; stage < STAGES.length; stage++) {
+            long millis = (long) getBaseline(key + "." + STAGES[stage] + ".millis");
+            long allocatedBytes = (long) getBaseline(key + "." + STAGES[stage] + ".allocatedBytes");
+            if (CHECK_TIMINGS && result.millis[stage] > SLOWDOWN_FACTOR * Math.max(millis, 1)) {
+                failures.add(STAGES[stage] + " took " + result.millis[stage] + "ms, baseline " + millis + "ms");
+            }
+            log.info("{} {}: {}ms (baseline {}ms), {} bytes allocated (baseline {}).", key, STAGES[stage],
+                    result.millis[stage], millis, result.allocatedBytes[stage], allocatedBytes);
+        }
+
+        log.info("{} {}: energy {}, golden agreement {}, reference agreement {}.", failures.isEmpty() ? "PASS" : "FAIL",
+                key, result.energy, result.goldenAgreement, result.referenceAgreement);
+        return failures;
+    }
+
+    private static double getBaseline(String key) {
+        String value = baselines.get(key);
+        if (value == null) {
+            throw new IllegalStateException("No baseline " + key + " in " + getBaselineFile()
+                    + ". Record it with -Dregression.record=true.");
+        }
+        return Double.parseDouble(value);
+    }
+
+    private static byte[] renderComposite(Mat[] images, short[] labels) {
+        int width = images[0].width();
+        byte[][] rows = new byte[images.length][width * NUM_CHANNEL];
+        byte[] composite = new byte[labels.length * NUM_CHANNEL];
+        for (int row = 0; row < images[0].height(); row++) {
+            for (int i = 0; i < images.length; i++) {
+                images[i].get(row, 0, rows[i]);
+            }
+            for (int col = 0, index = row * width; col < width; col++, index++) {
+                System.arraycopy(rows[labels[index]], col * NUM_CHANNEL, composite, index * NUM_CHANNEL, NUM_CHANNEL);
+            }
+        }
+        return composite;
+    }
+
+    private static double labelAgreement(short[] labels, short[] golden) {
+        if (labels.length != golden.length) {
+            return 0.0d;
+        }
+
+        int agree = 0;
+        for (int index = 0; index < labels.length; index++) {
+            if (labels[index] == golden[index]) {
+                agree++;
+            }
+        }
+        return agree / (double) labels.length;
+    }
+
+    /**
+     * Fraction of the decisive pixels whose composite is about as close to the reference as the closest image.
+     * See the class comment. Released images, e.g. the duplicates of a deduplicated stack, are skipped.
+     */
+    private static double referenceAgreement(Mat[] images, byte[] composite, File referenceFile) {
+        int width = images[0].width();
+        int height = images[0].height();
+        Mat reference = Highgui.imread(referenceFile.getPath());
+        if (reference.empty() || reference.width() != width || reference.height() != height) {
+            log.warn("Reference {} is missing or of another size.", referenceFile);
+            return 0.0d;
+        }
+
+        byte[] referenceRow = new byte[width * NUM_CHANNEL];
+        byte[][] rows = new byte[images.length][width * NUM_CHANNEL];
+        int decisive = 0;
+        int agree = 0;
+        for (int row = 0; row < height; row++) {
+            reference.get(row, 0, referenceRow);
+            for (int i = 0; i < images.length; i++) {
+                if (!images[i].empty()) {
+                    images[i].get(row, 0, rows[i]);
+                }
+            }
+
+            for (int col = 0; col < width; col++) {
+                int offset = col * NUM_CHANNEL;
+                int closest = Integer.MAX_VALUE;
+                int farthest = 0;
+                for (int i = 0; i < images.length; i++) {
+                    if (!images[i].empty()) {
+                        int difference = maxDifference(referenceRow, offset, rows[i], offset);
+                        closest = Math.min(closest, difference);
+                        farthest = Math.max(farthest, difference);
+                    }
+                }
+
+                if (farthest - closest >= DECISIVE_DIFFERENCE) {
+                    decisive++;
+                    int compositeOffset = (row * width + col) * NUM_CHANNEL;
+                    if (maxDifference(referenceRow, offset, composite, compositeOffset)
+                            <= closest + REFERENCE_PIXEL_TOLERANCE) {
+                        agree++;
+                    }
+                }
+            }
+        }
+        reference.release();
+        return decisive == 0 ? 1.0d : agree / (double) decisive;
+    }
+
+    /**
+     * Largest difference of the channels of two pixels.
+     */
+    private static int maxDifference(byte[] a, int aOffset, byte[] b, int bOffset) {
+        int difference = 0;
+        for (int c = 0; c < NUM_CHANNEL; c++) {
+            difference = Math.max(difference, Math.abs((a[aOffset + c] & 0xFF) - (b[bOffset + c] & 0xFF)));
+        }
+        return difference;
+    }
+
+    private static File getBaselineFile() {
+        return new File(REGRESSION_DIR, "baselines.properties");
+    }
+
+    private static File getGoldenFile(String stack) {
+        return new File(REGRESSION_DIR, stack + ".labels");
+    }
+
+    private static void writeLabels(File file, short[] labels) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(labels.length);
+            for (short label : labels) {
+                out.writeShort(label);
+            }
+        }
+    }
+
+    private static short[] readLabels(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(new FileInputStream(file)))) {
+            short[] labels = new short[in.readInt()];
+            for (int index = 0; index < labels.length; index++) {
+                labels[index] = in.readShort();
+            }
+            return labels;
+        }
+    }
+
+    /**
+     * Wall time and bytes allocated by this thread since the previous stage.
+     * Allocated bytes are -1 on JVMs that do not count them.
+     */
+    private static class StageClock {
+        private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        private long startMillis = System.currentTimeMillis();
+        private long startBytes = getAllocatedBytes();
+
+        void end(Result result, int stage) {
+            long millis = System.currentTimeMillis();
+            long bytes = getAllocatedBytes();
+            result.millis[stage] = millis - startMillis;
+            result.allocatedBytes[stage] = bytes < 0 ? -1 : bytes - startBytes;
+            startMillis = millis;
+            startBytes = bytes;
+        }
+
+        private long getAllocatedBytes() {
+            if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadMXBean;
+                if (bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()) {
+                    return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * How a case solves the stack.
+     */
+    enum Kind {
+        MINIMIZER,
+        TOURNAMENT,
+        STREAMING,
+        PREVIEWS,
+        DEDUPLICATED,
+        TILED,
+        SWEEP
+    }
+
+    /**
+     * Reference composite of a stack, and the least referenceAgreement of the cases on it, unless a case has its own.
+     */
+    @Getter
+    static class Reference {
+        private final File file;
+        private final double minimumAgreement;
+
+        Reference(File file, double minimumAgreement) {
+            this.file = file;
+            this.minimumAgreement = minimumAgreement;
+        }
+    }
+
+    @Getter
+    static class Case {
+        private final String stack;
+        private final Reference reference;
+        private final String mode;
+        private final SolverOptions options;
+        private Kind kind = Kind.MINIMIZER;
+        private double minimumReferenceAgreement;
+
+        Case(String stack, Reference reference, String mode, SolverOptions options) {
+            this.stack = stack;
+            this.reference = reference;
+            this.mode = mode;
+            this.options = options;
+            this.minimumReferenceAgreement = reference.getMinimumAgreement();
+        }
+
+        Case setKind(Kind kind) {
+            this.kind = kind;
+            return this;
+        }
+
+        Case setMinimumReferenceAgreement(double minimumReferenceAgreement) {
+            this.minimumReferenceAgreement = minimumReferenceAgreement;
+            return this;
+        }
+
+        String getName() {
+            return stack + "." + mode;
+        }
+
+        @Override
+        public String toString() {
+            return getName();
+        }
+    }
+
+    private static class Result {
+        private short[] labels;
+        private double energy;
+        private double goldenAgreement;
+        private double referenceAgreement;
+        private final long[] millis = new long[STAGES.length];
+        private final long[] allocatedBytes = new long[STAGES.length];
+    }
+}